@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.HprofParser;
+import com.squareup.haha.perflib.RootObj;
+import com.squareup.haha.perflib.Snapshot;
+import com.squareup.haha.perflib.io.MemoryMappedFileBuffer;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import static com.squareup.leakcanary.HprofIndex.NO_OBJECT;
+import static java.util.Arrays.asList;
+
+/**
+ * Measures each step of {@link HeapAnalyzer#checkForLeak(File, String)} on its own, so that a
+ * regression can be traced to a single step. Run with the gc profiler to get the allocations of
+ * each step.
+ *
+ * {@code heapDump} is either the name of one of the analyzer test fixtures, {@code
+ * synthetic-<objectCount>} for a heap dump written by {@link HprofGenerator}, or the absolute path
+ * to a heap dump.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class HeapAnalyzerBenchmark {
+
+  private static final String SYNTHETIC_PREFIX = "synthetic-";
+
+  @Param({
+      "leak_asynctask_pre_m.hprof", //
+      "leak_asynctask_m.hprof", //
+      "leak_asynctask_o.hprof", //
+      "synthetic-1000000"
+  }) public String heapDump;
+
+  private ExcludedRefs excludedRefs;
+  private HeapAnalyzer heapAnalyzer;
+  private File heapDumpFile;
+  private HprofIndex index;
+  private int[] leakingRefs;
+  private ShortestPathFinder.Result[] paths;
+
+  @Setup public void setUp() throws IOException {
+    excludedRefs = ExcludedRefs.builder()
+        .clazz(WeakReference.class.getName())
+        .alwaysExclude()
+        .clazz("java.lang.ref.FinalizerReference")
+        .alwaysExclude()
+        .build();
+    heapAnalyzer = new HeapAnalyzer(excludedRefs);
+    heapDumpFile = resolveHeapDump(heapDump);
+    index = index();
+    leakingRefs = findLeakingRefs(index);
+    paths = newPathFinder().findPaths(index, leakingRefs);
+  }
+
+  /** A parsed snapshot whose GC roots are reset to the duplicated ones before each invocation. */
+  @State(Scope.Benchmark)
+  public static class DuplicatedRootsState {
+    Snapshot snapshot;
+    List<RootObj> roots;
+
+    @Setup public void parse(HeapAnalyzerBenchmark benchmark) throws IOException {
+      snapshot = benchmark.parseSnapshot();
+      roots = new ArrayList<>(snapshot.getGCRoots());
+    }
+
+    @Setup(Level.Invocation) public void resetRoots() {
+      Collection<RootObj> gcRoots = snapshot.getGCRoots();
+      gcRoots.clear();
+      gcRoots.addAll(roots);
+    }
+  }
+
+  /** Dominators are cached by the snapshot, so each invocation gets a freshly parsed one. */
+  @State(Scope.Benchmark)
+  public static class FreshSnapshotState {
+    Snapshot snapshot;
+
+    @Setup(Level.Invocation) public void parse(HeapAnalyzerBenchmark benchmark)
+        throws IOException {
+      snapshot = benchmark.parseSnapshot();
+      benchmark.heapAnalyzer.deduplicateGcRoots(snapshot);
+    }
+  }
+
+  /** A parsed snapshot with dominators, shared by all invocations. */
+  @State(Scope.Benchmark)
+  public static class DominatorsState {
+    Snapshot snapshot;
+
+    @Setup public void parse(HeapAnalyzerBenchmark benchmark) throws IOException {
+      snapshot = benchmark.parseSnapshot();
+      benchmark.heapAnalyzer.deduplicateGcRoots(snapshot);
+      snapshot.computeDominators();
+    }
+  }
+
+  @Benchmark public HprofIndex index() throws IOException {
+    return new HprofIndexer(new MemoryMappedFileBuffer(heapDumpFile), new LinkedHashSet<>(
+        asList(KeyedWeakReference.class.getName(), BitmapRetainedSizes.BITMAP_CLASS_NAME)))
+        .index();
+  }
+
+  @Benchmark public Snapshot parseSnapshot() throws IOException {
+    return new HprofParser(new MemoryMappedFileBuffer(heapDumpFile)).parse();
+  }
+
+  @Benchmark public Snapshot deduplicateGcRoots(DuplicatedRootsState state) {
+    heapAnalyzer.deduplicateGcRoots(state.snapshot);
+    return state.snapshot;
+  }
+
+  @Benchmark public ShortestPathFinder.Result[] findPaths() {
+    return newPathFinder().findPaths(index, leakingRefs);
+  }
+
+  @Benchmark public Snapshot computeDominators(FreshSnapshotState state) {
+    state.snapshot.computeDominators();
+    return state.snapshot;
+  }
+
+  @Benchmark public BitmapRetainedSizes computeBitmapRetainedSizes(DominatorsState state) {
+    return BitmapRetainedSizes.compute(BitmapRetainedSizes.findBuffers(index), state.snapshot);
+  }
+
+  @Benchmark public void computeReachabilityRetainedSize(Blackhole blackhole) {
+    ReferenceGraph referenceGraph = ReferenceGraph.build(index);
+    for (int leakingRef : leakingRefs) {
+      BitArray retainedSet = referenceGraph.retainedSet(leakingRef);
+      blackhole.consume(referenceGraph.shallowSize(retainedSet));
+    }
+  }
+
+  @Benchmark public void buildLeakTraces(Blackhole blackhole) {
+    for (ShortestPathFinder.Result path : paths) {
+      if (path.leakingNode != null) {
+        blackhole.consume(heapAnalyzer.buildLeakTrace(index, path.leakingNode));
+      }
+    }
+  }
+
+  private ShortestPathFinder newPathFinder() {
+    return new ShortestPathFinder(excludedRefs, 1, AnalyzerProgressListener.NONE,
+        ScratchSpace.onHeap());
+  }
+
+  /** Referents of all the {@link KeyedWeakReference} that have not been cleared. */
+  private static int[] findLeakingRefs(HprofIndex index) {
+    int[] weakRefs = index.instancesOf(KeyedWeakReference.class.getName());
+    int[] leakingRefs = new int[weakRefs.length];
+    int count = 0;
+    for (int weakRef : weakRefs) {
+      int referent = index.ordinalOf(index.readReferenceField(weakRef, "referent"));
+      if (referent != NO_OBJECT) {
+        leakingRefs[count++] = referent;
+      }
+    }
+    int[] result = new int[count];
+    System.arraycopy(leakingRefs, 0, result, 0, count);
+    return result;
+  }
+
+  /** Fixtures are packaged in the benchmark jar, they are copied to a file to be memory mapped. */
+  private static File resolveHeapDump(String heapDump) throws IOException {
+    File file = new File(heapDump);
+    if (file.isAbsolute()) {
+      return file;
+    }
+    if (heapDump.startsWith(SYNTHETIC_PREFIX)) {
+      int objectCount = Integer.parseInt(heapDump.substring(SYNTHETIC_PREFIX.length()));
+      file = File.createTempFile("synthetic", ".hprof");
+      file.deleteOnExit();
+      HprofGenerator.builder()
+          .objectCount(objectCount)
+          .chainDepth(100)
+          .gcRootCount(objectCount / 100)
+          .rootCopies(4)
+          .leakCount(10)
+          .build()
+          .write(file);
+      return file;
+    }
+    InputStream input = HeapAnalyzerBenchmark.class.getClassLoader().getResourceAsStream(heapDump);
+    if (input == null) {
+      throw new IllegalArgumentException("No heap dump named " + heapDump);
+    }
+    file = File.createTempFile("benchmark", ".hprof");
+    file.deleteOnExit();
+    try (OutputStream output = new FileOutputStream(file)) {
+      byte[] buffer = new byte[64 * 1024];
+      int read;
+      while ((read = input.read(buffer)) != -1) {
+        output.write(buffer, 0, read);
+      }
+    } finally {
+      input.close();
+    }
+    return file;
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * An {@link AnalyzerProgressListener} that cancels each analysis once it has run for too long or
+ * visited too many nodes, and otherwise forwards to another listener. The budget starts again with
+ * each analysis.
+ */
+public final class AnalysisBudget implements AnalyzerProgressListener {
+
+  /** No limit, for either budget. */
+  public static final long UNLIMITED = Long.MAX_VALUE;
+
+  private final AnalyzerProgressListener listener;
+  private final long maxDurationMs;
+  private final long maxVisitedNodeCount;
+  private long startNanoTime;
+  private long visitedNodeCount;
+
+  /**
+   * @param maxDurationMs wall clock time after which the analysis is canceled, or {@link
+   * #UNLIMITED}.
+   * @param maxVisitedNodeCount number of nodes visited while finding the shortest paths after
+   * which the analysis is canceled, or {@link #UNLIMITED}.
+   */
+  public AnalysisBudget(AnalyzerProgressListener listener, long maxDurationMs,
+      long maxVisitedNodeCount) {
+    if (maxDurationMs < 0) {
+      throw new IllegalArgumentException(
+          "maxDurationMs must not be negative, not " + maxDurationMs);
+    }
+    if (maxVisitedNodeCount < 0) {
+      throw new IllegalArgumentException(
+          "maxVisitedNodeCount must not be negative, not " + maxVisitedNodeCount);
+    }
+    this.listener = listener;
+    this.maxDurationMs = maxDurationMs;
+    this.maxVisitedNodeCount = maxVisitedNodeCount;
+    startNanoTime = System.nanoTime();
+  }
+
+  @Override public void onProgressUpdate(Step step) {
+    if (step == Step.INDEXING_HEAP_DUMP) {
+      startNanoTime = System.nanoTime();
+      visitedNodeCount = 0;
+    }
+    listener.onProgressUpdate(step);
+  }
+
+  @Override public void onNodesVisited(long visitedNodeCount) {
+    this.visitedNodeCount = visitedNodeCount;
+    listener.onNodesVisited(visitedNodeCount);
+  }
+
+  @Override public boolean isCanceled() {
+    return visitedNodeCount > maxVisitedNodeCount
+        || NANOSECONDS.toMillis(System.nanoTime() - startNanoTime) > maxDurationMs
+        || listener.isCanceled();
+  }
+}
@@ -16,21 +16,68 @@
 package com.squareup.leakcanary;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import static java.util.Collections.unmodifiableList;
 
 public final class AnalysisResult implements Serializable {
 
   public static AnalysisResult noLeak(long analysisDurationMs) {
-    return new AnalysisResult(false, false, null, null, null, 0, analysisDurationMs);
+    return noLeak(analysisDurationMs, null);
+  }
+
+  public static AnalysisResult noLeak(long analysisDurationMs, AnalysisStats stats) {
+    return new Builder(analysisDurationMs, stats).build();
   }
 
   public static AnalysisResult leakDetected(boolean excludedLeak, String className,
       LeakTrace leakTrace, long retainedHeapSize, long analysisDurationMs) {
-    return new AnalysisResult(true, excludedLeak, className, leakTrace, null, retainedHeapSize,
-        analysisDurationMs);
+    return leakDetected(excludedLeak, className, leakTrace, Collections.<LeakTrace>emptyList(),
+        retainedHeapSize, analysisDurationMs);
+  }
+
+  public static AnalysisResult leakDetected(boolean excludedLeak, String className,
+      LeakTrace leakTrace, List<LeakTrace> otherLeakTraces, long retainedHeapSize,
+      long analysisDurationMs) {
+    return leakDetected(excludedLeak, className, leakTrace, otherLeakTraces, retainedHeapSize,
+        analysisDurationMs, null);
+  }
+
+  public static AnalysisResult leakDetected(boolean excludedLeak, String className,
+      LeakTrace leakTrace, List<LeakTrace> otherLeakTraces, long retainedHeapSize,
+      long analysisDurationMs, AnalysisStats stats) {
+    Builder builder = new Builder(analysisDurationMs, stats);
+    builder.leak(excludedLeak, className, leakTrace, otherLeakTraces);
+    builder.retainedHeapSize = retainedHeapSize;
+    return builder.build();
+  }
+
+  /**
+   * A leak found by an analysis that was canceled before its retained size was computed, see
+   * {@link #canceled}.
+   */
+  public static AnalysisResult partialLeakDetected(boolean excludedLeak, String className,
+      LeakTrace leakTrace, List<LeakTrace> otherLeakTraces, long analysisDurationMs,
+      AnalysisStats stats) {
+    Builder builder = new Builder(analysisDurationMs, stats);
+    builder.leak(excludedLeak, className, leakTrace, otherLeakTraces);
+    builder.canceled = true;
+    return builder.build();
   }
 
   public static AnalysisResult failure(Throwable failure, long analysisDurationMs) {
-    return new AnalysisResult(false, false, null, null, failure, 0, analysisDurationMs);
+    return failure(failure, analysisDurationMs, null);
+  }
+
+  public static AnalysisResult failure(Throwable failure, long analysisDurationMs,
+      AnalysisStats stats) {
+    Builder builder = new Builder(analysisDurationMs, stats);
+    builder.failure = failure;
+    builder.canceled = failure instanceof CancellationException;
+    return builder.build();
   }
 
   /** True if a leak was found in the heap dump. */
@@ -54,18 +101,39 @@ public final class AnalysisResult implements Serializable {
    */
   public final LeakTrace leakTrace;
 
+  /**
+   * The next shortest paths to GC roots for the leaking object, each differing from {@link
+   * #leakTrace} and from the others by at least one reference. Empty unless the {@link
+   * HeapAnalyzer} was asked for more than one path per leak.
+   */
+  public final List<LeakTrace> otherLeakTraces;
+
   /** Null unless the analysis failed. */
   public final Throwable failure;
 
+  /**
+   * True if the {@link AnalyzerProgressListener} canceled the analysis before this result was
+   * complete. Either {@link #failure} is a {@link CancellationException} because no path was found
+   * yet, or {@link #leakFound} is true and {@link #leakTrace} is the shortest path but {@link
+   * #retainedHeapSize} was not computed.
+   */
+  public final boolean canceled;
+
   /**
    * The number of bytes which would be freed if all references to the leaking object were
-   * released. 0 if {@link #leakFound} is false.
+   * released. 0 if {@link #leakFound} is false or if the analysis was {@link #canceled}.
    */
   public final long retainedHeapSize;
 
   /** Total time spent analyzing the heap. */
   public final long analysisDurationMs;
 
+  /**
+   * Duration of each phase of the analysis, and counters on the heap dump and the traversal. Null
+   * if the result was created without stats.
+   */
+  public final AnalysisStats stats;
+
   /**
    * <p>Creates a new {@link RuntimeException} with a fake stack trace that maps the leak trace.
    *
@@ -125,19 +193,52 @@ public final class AnalysisResult implements Serializable {
     return exception;
   }
 
-  private AnalysisResult(boolean leakFound, boolean excludedLeak, String className,
-      LeakTrace leakTrace, Throwable failure, long retainedHeapSize, long analysisDurationMs) {
-    this.leakFound = leakFound;
-    this.excludedLeak = excludedLeak;
-    this.className = className;
-    this.leakTrace = leakTrace;
-    this.failure = failure;
-    this.retainedHeapSize = retainedHeapSize;
-    this.analysisDurationMs = analysisDurationMs;
+  private AnalysisResult(Builder builder) {
+    leakFound = builder.leakFound;
+    excludedLeak = builder.excludedLeak;
+    className = builder.className;
+    leakTrace = builder.leakTrace;
+    otherLeakTraces = unmodifiableList(new ArrayList<>(builder.otherLeakTraces));
+    failure = builder.failure;
+    retainedHeapSize = builder.retainedHeapSize;
+    analysisDurationMs = builder.analysisDurationMs;
+    stats = builder.stats;
+    canceled = builder.canceled;
   }
 
   private String classSimpleName(String className) {
     int separator = className.lastIndexOf('.');
     return separator == -1 ? className : className.substring(separator + 1);
   }
-}
\ No newline at end of file
+
+  private static final class Builder {
+    boolean leakFound;
+    boolean excludedLeak;
+    String className;
+    LeakTrace leakTrace;
+    List<LeakTrace> otherLeakTraces = Collections.emptyList();
+    Throwable failure;
+    long retainedHeapSize;
+    final long analysisDurationMs;
+    final AnalysisStats stats;
+    boolean canceled;
+
+    Builder(long analysisDurationMs, AnalysisStats stats) {
+      this.analysisDurationMs = analysisDurationMs;
+      this.stats = stats;
+    }
+
+    void leak(boolean excludedLeak, String className, LeakTrace leakTrace,
+        List<LeakTrace> otherLeakTraces) {
+      leakFound = true;
+      this.excludedLeak = excludedLeak;
+      this.className = className;
+      this.leakTrace = leakTrace;
+      this.otherLeakTraces = otherLeakTraces;
+    }
+
+    AnalysisResult build() {
+      return new AnalysisResult(this);
+    }
+  }
+}
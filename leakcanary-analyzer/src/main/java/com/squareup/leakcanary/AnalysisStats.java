@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.io.Serializable;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Where the time of an analysis went, and how large the heap dump and the traversal were. Phases
+ * that did not run for an analysis take 0ms. When several keys are analyzed at once, the phases
+ * they share are counted in the stats of each {@link AnalysisResult}, and each result only counts
+ * the phases that ran before it was created.
+ */
+public final class AnalysisStats implements Serializable {
+
+  /** Indexing every object of the heap dump, GC roots deduplication included. */
+  public final long indexDurationMs;
+  /** Looking up the {@link KeyedWeakReference} instances by key. */
+  public final long keyLookupDurationMs;
+  /** Finding the shortest paths from the GC roots to all the leaking instances. */
+  public final long pathFindingDurationMs;
+  /** Describing every reference of the paths found. */
+  public final long leakTracesDurationMs;
+  /** Parsing the heap dump into an object graph, for {@link RetainedSizeMode#DOMINATOR_TREE}. */
+  public final long snapshotParsingDurationMs;
+  /** Deduplicating the GC roots of the parsed object graph. */
+  public final long rootDeduplicationDurationMs;
+  /** Computing the dominator tree of the parsed object graph. */
+  public final long dominatorsDurationMs;
+  /** Attributing the size of bitmaps held by native GC roots, see {@link BitmapRetainedSizes}. */
+  public final long bitmapSizesDurationMs;
+  /** Computing retained sizes with {@link RetainedSizeMode#REACHABILITY}. */
+  public final long reachabilityDurationMs;
+
+  /** Number of objects in the heap dump: classes, instances and arrays. */
+  public final int objectCount;
+  /** Number of GC roots in the heap dump, duplicates included. */
+  public final int gcRootCount;
+  /** Number of GC roots left once duplicates were removed. */
+  public final int uniqueGcRootCount;
+  /** Number of objects whose references were followed while looking for paths. */
+  public final long visitedNodeCount;
+  /** Number of objects queued to be visited while looking for paths. */
+  public final long enqueuedNodeCount;
+  /** Largest number of objects waiting to be visited at once while looking for paths. */
+  public final int peakQueueSize;
+
+  private AnalysisStats(Builder builder) {
+    indexDurationMs = NANOSECONDS.toMillis(builder.indexNanos);
+    keyLookupDurationMs = NANOSECONDS.toMillis(builder.keyLookupNanos);
+    pathFindingDurationMs = NANOSECONDS.toMillis(builder.pathFindingNanos);
+    leakTracesDurationMs = NANOSECONDS.toMillis(builder.leakTracesNanos);
+    snapshotParsingDurationMs = NANOSECONDS.toMillis(builder.snapshotParsingNanos);
+    rootDeduplicationDurationMs = NANOSECONDS.toMillis(builder.rootDeduplicationNanos);
+    dominatorsDurationMs = NANOSECONDS.toMillis(builder.dominatorsNanos);
+    bitmapSizesDurationMs = NANOSECONDS.toMillis(builder.bitmapSizesNanos);
+    reachabilityDurationMs = NANOSECONDS.toMillis(builder.reachabilityNanos);
+    objectCount = builder.objectCount;
+    gcRootCount = builder.gcRootCount;
+    uniqueGcRootCount = builder.uniqueGcRootCount;
+    visitedNodeCount = builder.visitedNodeCount;
+    enqueuedNodeCount = builder.enqueuedNodeCount;
+    peakQueueSize = builder.peakQueueSize;
+  }
+
+  @Override public String toString() {
+    return "* Analysis phases: index="
+        + indexDurationMs
+        + "ms, key lookup="
+        + keyLookupDurationMs
+        + "ms, paths="
+        + pathFindingDurationMs
+        + "ms, leak traces="
+        + leakTracesDurationMs
+        + "ms, snapshot parsing="
+        + snapshotParsingDurationMs
+        + "ms, root dedup="
+        + rootDeduplicationDurationMs
+        + "ms, dominators="
+        + dominatorsDurationMs
+        + "ms, bitmap sizes="
+        + bitmapSizesDurationMs
+        + "ms, reachability="
+        + reachabilityDurationMs
+        + "ms\n"
+        + "* Analysis counters: objects="
+        + objectCount
+        + ", gc roots="
+        + gcRootCount
+        + " ("
+        + uniqueGcRootCount
+        + " unique), visited="
+        + visitedNodeCount
+        + ", enqueued="
+        + enqueuedNodeCount
+        + ", peak queue="
+        + peakQueueSize
+        + "\n";
+  }
+
+  /** Accumulates the durations of each phase as the {@link HeapAnalyzer} goes. */
+  static final class Builder {
+    long indexNanos;
+    long keyLookupNanos;
+    long pathFindingNanos;
+    long leakTracesNanos;
+    long snapshotParsingNanos;
+    long rootDeduplicationNanos;
+    long dominatorsNanos;
+    long bitmapSizesNanos;
+    long reachabilityNanos;
+    int objectCount;
+    int gcRootCount;
+    int uniqueGcRootCount;
+    long visitedNodeCount;
+    long enqueuedNodeCount;
+    int peakQueueSize;
+
+    AnalysisStats build() {
+      return new AnalysisStats(this);
+    }
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+/**
+ * Follows the progress of a {@link HeapAnalyzer}, and can cancel the analysis. All methods are
+ * called on the thread that runs the analysis.
+ *
+ * Cancellation is cooperative: {@link #isCanceled()} is polled at the start of each {@link Step},
+ * for each leak, and every few thousand nodes visited while finding the shortest paths. Once
+ * canceled, the analysis returns the results it has: leaks whose path was already found are
+ * reported with {@link AnalysisResult#canceled} set, the others fail with a {@link
+ * java.util.concurrent.CancellationException}.
+ */
+public interface AnalyzerProgressListener {
+
+  AnalyzerProgressListener NONE = new AnalyzerProgressListener() {
+    @Override public void onProgressUpdate(Step step) {
+    }
+
+    @Override public void onNodesVisited(long visitedNodeCount) {
+    }
+
+    @Override public boolean isCanceled() {
+      return false;
+    }
+  };
+
+  /** The steps of an analysis, in order. Each step may be skipped. */
+  enum Step {
+    INDEXING_HEAP_DUMP,
+    LOOKING_UP_KEYS,
+    FINDING_SHORTEST_PATHS,
+    BUILDING_LEAK_TRACES,
+    PARSING_SNAPSHOT,
+    DEDUPLICATING_GC_ROOTS,
+    COMPUTING_DOMINATORS,
+    COMPUTING_BITMAP_SIZES,
+    COMPUTING_REACHABILITY
+  }
+
+  void onProgressUpdate(Step step);
+
+  /**
+   * Called periodically while finding the shortest paths.
+   *
+   * @param visitedNodeCount number of objects visited since the search started.
+   */
+  void onNodesVisited(long visitedNodeCount);
+
+  /** Whether the analysis should stop as soon as possible. */
+  boolean isCanceled();
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+/**
+ * A fixed size set of object ordinals, like {@link java.util.BitSet} but over a {@link LongArray}
+ * so that it can live in a scratch file.
+ */
+final class BitArray {
+  private final LongArray words;
+
+  BitArray(ScratchSpace space, int size) {
+    words = space.newLongArray((size + 63) >>> 6);
+  }
+
+  boolean get(int index) {
+    return (words.get(index >>> 6) & (1L << index)) != 0;
+  }
+
+  void set(int index) {
+    int word = index >>> 6;
+    words.set(word, words.get(word) | (1L << index));
+  }
+
+  void clear(int index) {
+    int word = index >>> 6;
+    words.set(word, words.get(word) & ~(1L << index));
+  }
+
+  /** Same as {@link java.util.BitSet#nextSetBit(int)}. */
+  int nextSetBit(int fromIndex) {
+    int word = fromIndex >>> 6;
+    int wordCount = words.size();
+    if (word >= wordCount) {
+      return -1;
+    }
+    long bits = words.get(word) & (-1L << fromIndex);
+    while (bits == 0) {
+      if (++word == wordCount) {
+        return -1;
+      }
+      bits = words.get(word);
+    }
+    return (word << 6) + Long.numberOfTrailingZeros(bits);
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.Instance;
+import com.squareup.haha.perflib.RootObj;
+import com.squareup.haha.perflib.RootType;
+import com.squareup.haha.perflib.Snapshot;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Bitmaps and bitmap byte arrays are sometimes held by native gc roots, so they aren't included
+ * in the retained size because their root dominator is a native gc root. To fix this, the size of
+ * each bitmap is attributed to every instance that dominates it through a native gc root.
+ *
+ * From experience, we've found that bitmap created in code (Bitmap.createBitmap()) are correctly
+ * accounted for, however bitmaps set in layouts are not.
+ *
+ * The dominator chains of all the bitmaps are merged into a single tree and the sizes are summed
+ * bottom-up in one pass, so looking up the bitmap size ignored for any instance is O(1) instead
+ * of a walk up the dominators of every bitmap.
+ */
+final class BitmapRetainedSizes {
+
+  static final String BITMAP_CLASS_NAME = "android.graphics.Bitmap";
+
+  /** An instance on the dominator chain of at least one bitmap. */
+  private static final class Node {
+    Node parent;
+    /** Whether the dominator of this instance is a native root, skipped to reach the parent. */
+    boolean nativeEdge;
+    boolean linked;
+    /** Nodes whose parent is this node that haven't been summed yet. */
+    int pendingChildren;
+    /** Size of the bitmaps below that haven't crossed a native root yet. */
+    long sizeBeforeNativeRoot;
+    /** Size of the bitmaps below that are dominated by this node through a native root. */
+    long ignoredSize;
+  }
+
+  private final Map<Instance, Node> nodes;
+
+  private BitmapRetainedSizes(Map<Instance, Node> nodes) {
+    this.nodes = nodes;
+  }
+
+  /**
+   * Ids of the {@link #BITMAP_CLASS_NAME} instances and of their mBuffer arrays, in pairs. Read
+   * from the index ahead of {@link #compute(long[], Snapshot)} so that the index can be released
+   * before the snapshot is parsed.
+   *
+   * @param index must track {@link #BITMAP_CLASS_NAME} instances.
+   */
+  static long[] findBuffers(HprofIndex index) {
+    int[] bitmaps = index.instancesOf(BITMAP_CLASS_NAME);
+    long[] bitmapBuffers = new long[bitmaps.length * 2];
+    int count = 0;
+    for (int bitmap : bitmaps) {
+      // Since O, the pixels of bitmaps are no longer held by an mBuffer array.
+      if (!index.hasField(bitmap, "mBuffer")) {
+        continue;
+      }
+      long mBufferId = index.readReferenceField(bitmap, "mBuffer");
+      // Native bitmaps have mBuffer set to null. We sadly can't account for them.
+      if (mBufferId != 0) {
+        bitmapBuffers[count++] = index.idAt(bitmap);
+        bitmapBuffers[count++] = mBufferId;
+      }
+    }
+    return Arrays.copyOf(bitmapBuffers, count);
+  }
+
+  /**
+   * Requires {@link Snapshot#computeDominators()} to have been called.
+   *
+   * @param bitmapBuffers see {@link #findBuffers(HprofIndex)}.
+   */
+  static BitmapRetainedSizes compute(long[] bitmapBuffers, Snapshot snapshot) {
+    Map<Instance, Node> nodes = new IdentityHashMap<>();
+    for (int i = 0; i < bitmapBuffers.length; i += 2) {
+      Instance bitmapInstance = snapshot.findInstance(bitmapBuffers[i]);
+      Instance mBufferInstance = snapshot.findInstance(bitmapBuffers[i + 1]);
+      long bufferSize = mBufferInstance.getTotalRetainedSize();
+      long bitmapSize = bitmapInstance.getTotalRetainedSize();
+      // Sometimes the size of the buffer isn't accounted for in the bitmap retained size. Since
+      // the buffer is large, it's easy to detect by checking for bitmap size < buffer size.
+      if (bitmapSize < bufferSize) {
+        bitmapSize += bufferSize;
+      }
+      Node node = node(nodes, bitmapInstance);
+      node.sizeBeforeNativeRoot += bitmapSize;
+      link(nodes, bitmapInstance, node);
+    }
+
+    // Sums the sizes from the bitmaps up to the roots, each node once all its children are done.
+    Deque<Node> ready = new ArrayDeque<>();
+    for (Node node : nodes.values()) {
+      if (node.pendingChildren == 0) {
+        ready.add(node);
+      }
+    }
+    while (!ready.isEmpty()) {
+      Node node = ready.poll();
+      Node parent = node.parent;
+      if (parent == null) {
+        continue;
+      }
+      if (node.nativeEdge) {
+        parent.ignoredSize += node.sizeBeforeNativeRoot + node.ignoredSize;
+      } else {
+        parent.sizeBeforeNativeRoot += node.sizeBeforeNativeRoot;
+        parent.ignoredSize += node.ignoredSize;
+      }
+      if (--parent.pendingChildren == 0) {
+        ready.add(parent);
+      }
+    }
+    return new BitmapRetainedSizes(nodes);
+  }
+
+  /** Size of the bitmaps dominated by {@code instance} through a native gc root. */
+  long ignoredSize(Instance instance) {
+    Node node = nodes.get(instance);
+    return node == null ? 0 : node.ignoredSize;
+  }
+
+  /** Adds the dominator chain of {@code instance} to the tree, up to the first known node. */
+  private static void link(Map<Instance, Node> nodes, Instance instance, Node node) {
+    while (!node.linked) {
+      node.linked = true;
+      Instance immediateDominator = instance.getImmediateDominator();
+      Instance next;
+      if (immediateDominator instanceof RootObj
+          && ((RootObj) immediateDominator).getRootType() == RootType.UNKNOWN) {
+        // Ignore native roots
+        next = instance.getNextInstanceToGcRoot();
+        node.nativeEdge = true;
+      } else {
+        next = immediateDominator;
+      }
+      if (next == null) {
+        return;
+      }
+      Node parent = node(nodes, next);
+      node.parent = parent;
+      parent.pendingChildren++;
+      instance = next;
+      node = parent;
+    }
+  }
+
+  private static Node node(Map<Instance, Node> nodes, Instance instance) {
+    Node node = nodes.get(instance);
+    if (node == null) {
+      node = new Node();
+      nodes.put(instance, node);
+    }
+    return node;
+  }
+}
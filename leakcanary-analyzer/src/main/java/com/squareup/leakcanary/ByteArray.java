@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static com.squareup.leakcanary.ScratchSpace.SEGMENT_MASK;
+import static com.squareup.leakcanary.ScratchSpace.SEGMENT_SHIFT;
+
+/** An array of bytes allocated by a {@link ScratchSpace}, on the heap or in a scratch file. */
+abstract class ByteArray {
+
+  static ByteArray onHeap(int size) {
+    return new Heap(new byte[size]);
+  }
+
+  abstract int size();
+
+  abstract byte get(int index);
+
+  abstract void set(int index, byte value);
+
+  /**
+   * An array of at least {@code minSize} values that starts with the values of this one. Arrays on
+   * the heap are copied, mapped arrays map more segments and return themselves.
+   */
+  abstract ByteArray grow(int minSize);
+
+  private static final class Heap extends ByteArray {
+    private final byte[] values;
+
+    Heap(byte[] values) {
+      this.values = values;
+    }
+
+    @Override int size() {
+      return values.length;
+    }
+
+    @Override byte get(int index) {
+      return values[index];
+    }
+
+    @Override void set(int index, byte value) {
+      values[index] = value;
+    }
+
+    @Override ByteArray grow(int minSize) {
+      return minSize <= values.length ? this
+          : new Heap(Arrays.copyOf(values, Math.max(minSize, values.length * 2)));
+    }
+  }
+
+  static final class Mapped extends ByteArray {
+    private final ScratchSpace.Segments segments;
+    private ByteBuffer[] buffers;
+    private int size;
+
+    Mapped(ScratchSpace.Segments segments, int size) {
+      this.segments = segments;
+      buffers = segments.ensureCapacity(size);
+      this.size = size;
+    }
+
+    @Override int size() {
+      return size;
+    }
+
+    @Override byte get(int index) {
+      return buffers[index >>> SEGMENT_SHIFT].get((int) (index & SEGMENT_MASK));
+    }
+
+    @Override void set(int index, byte value) {
+      buffers[index >>> SEGMENT_SHIFT].put((int) (index & SEGMENT_MASK), value);
+    }
+
+    @Override ByteArray grow(int minSize) {
+      if (minSize > size) {
+        buffers = segments.ensureCapacity(minSize);
+        size = (int) Math.min(Integer.MAX_VALUE, (long) buffers.length << SEGMENT_SHIFT);
+      }
+      return this;
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.Field;
+import com.squareup.haha.trove.TLongObjectHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The {@link ExcludedRefs} that apply to each class of an {@link HprofIndex}, resolved once per
+ * heap dump. Class exclusions and instance field exclusions are already merged along the
+ * superclass chain, so matching an instance is a single lookup by class id followed by array
+ * reads.
+ *
+ * Immutable once compiled, so it can be read from several threads.
+ */
+final class ClassExclusions {
+
+  /** The exclusions that match a given class, only created for classes that have some. */
+  static final class Entry {
+    /** Exclusion of the class or of one of its superclasses, may be null. */
+    final Exclusion classExclusion;
+    /**
+     * Exclusion of each instance field, in the order of {@link FieldLayout#fields}. Null when no
+     * instance field is excluded.
+     */
+    final Exclusion[] fieldExclusions;
+    /** Exclusion of each static field declared by the class. Null when none is excluded. */
+    final Exclusion[] staticFieldExclusions;
+
+    Entry(Exclusion classExclusion, Exclusion[] fieldExclusions,
+        Exclusion[] staticFieldExclusions) {
+      this.classExclusion = classExclusion;
+      this.fieldExclusions = fieldExclusions;
+      this.staticFieldExclusions = staticFieldExclusions;
+    }
+  }
+
+  private final TLongObjectHashMap<Entry> entriesByClassId;
+
+  private ClassExclusions(TLongObjectHashMap<Entry> entriesByClassId) {
+    this.entriesByClassId = entriesByClassId;
+  }
+
+  static ClassExclusions compile(ExcludedRefs excludedRefs, HprofIndex index) {
+    TLongObjectHashMap<Entry> entriesByClassId = new TLongObjectHashMap<>();
+    if (excludedRefs.classNames.isEmpty()
+        && excludedRefs.fieldNameByClassName.isEmpty()
+        && excludedRefs.staticFieldNameByClassName.isEmpty()) {
+      return new ClassExclusions(entriesByClassId);
+    }
+    for (int ordinal : index.classOrdinals()) {
+      IndexedClass indexedClass = index.asClass(ordinal);
+      Entry entry = compileClass(excludedRefs, index, indexedClass);
+      if (entry != null) {
+        entriesByClassId.put(indexedClass.id, entry);
+      }
+    }
+    return new ClassExclusions(entriesByClassId);
+  }
+
+  /** Null when no exclusion applies to {@code indexedClass} or to its instances. */
+  Entry forClass(IndexedClass indexedClass) {
+    return indexedClass == null ? null : entriesByClassId.get(indexedClass.id);
+  }
+
+  private static Entry compileClass(ExcludedRefs excludedRefs, HprofIndex index,
+      IndexedClass indexedClass) {
+    Exclusion classExclusion = null;
+    // Same precedence as a walk from the class up to java.lang.Object: superclass field
+    // exclusions override subclass field exclusions with the same name.
+    Map<String, Exclusion> ignoredFields = null;
+    for (IndexedClass clazz = indexedClass; clazz != null; clazz = index.superClassOf(clazz)) {
+      Exclusion params = excludedRefs.classNames.get(clazz.name);
+      if (params != null) {
+        // true overrides null or false.
+        if (classExclusion == null || !classExclusion.alwaysExclude) {
+          classExclusion = params;
+        }
+      }
+      Map<String, Exclusion> classIgnoredFields = excludedRefs.fieldNameByClassName.get(clazz.name);
+      if (classIgnoredFields != null) {
+        if (ignoredFields == null) {
+          ignoredFields = new LinkedHashMap<>();
+        }
+        ignoredFields.putAll(classIgnoredFields);
+      }
+    }
+
+    Exclusion[] fieldExclusions = null;
+    if (ignoredFields != null) {
+      Field[] fields = index.fieldLayout(indexedClass).fields;
+      fieldExclusions = new Exclusion[fields.length];
+      for (int i = 0; i < fields.length; i++) {
+        fieldExclusions[i] = ignoredFields.get(fields[i].getName());
+      }
+    }
+
+    Exclusion[] staticFieldExclusions = null;
+    Map<String, Exclusion> ignoredStaticFields =
+        excludedRefs.staticFieldNameByClassName.get(indexedClass.name);
+    if (ignoredStaticFields != null) {
+      staticFieldExclusions = new Exclusion[indexedClass.staticFields.length];
+      for (int i = 0; i < staticFieldExclusions.length; i++) {
+        staticFieldExclusions[i] = ignoredStaticFields.get(indexedClass.staticFields[i].getName());
+      }
+    }
+
+    if (classExclusion == null && fieldExclusions == null && staticFieldExclusions == null) {
+      return null;
+    }
+    return new Entry(classExclusion, fieldExclusions, staticFieldExclusions);
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.Field;
+import com.squareup.haha.perflib.Type;
+
+/**
+ * The instance fields of a class and of its superclasses, in the order of {@link
+ * HprofIndex#instanceFieldValues(int)}, with the position of each field value in instance records.
+ * Computed once per class by {@link HprofIndexer}, so that fields can be read by offset without
+ * decoding the other fields.
+ */
+final class FieldLayout {
+  final Field[] fields;
+  /** Offset of each field value from the start of the field values of an instance. */
+  final int[] offsets;
+
+  FieldLayout(Field[] fields, int[] offsets) {
+    this.fields = fields;
+    this.offsets = offsets;
+  }
+
+  /**
+   * Index of the first field with that name, like {@link HahaHelper#fieldValue(java.util.List,
+   * String)}, or -1.
+   */
+  int indexOf(String fieldName) {
+    for (int i = 0; i < fields.length; i++) {
+      if (fields[i].getName().equals(fieldName)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** Offset of the first field with that name and type. */
+  int offsetOf(String fieldName, Type type) {
+    int fieldIndex = indexOf(fieldName);
+    if (fieldIndex == -1) {
+      throw new IllegalArgumentException("Field " + fieldName + " does not exists");
+    }
+    if (fields[fieldIndex].getType() != type) {
+      throw new IllegalArgumentException(
+          "Field " + fieldName + " is a " + fields[fieldIndex].getType() + ", not a " + type);
+    }
+    return offsets[fieldIndex];
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+/**
+ * Set of (root type ordinal, object id) pairs, used to drop duplicated GC roots. Open addressing
+ * over primitive arrays: adding a root allocates nothing unless the table grows.
+ */
+final class GcRootSet {
+
+  private long[] ids;
+  /** Root type ordinal + 1, 0 for empty slots. */
+  private byte[] types;
+  private int size;
+
+  GcRootSet() {
+    ids = new long[256];
+    types = new byte[256];
+  }
+
+  /** Returns true if the root was not already in the set. */
+  boolean add(int rootTypeOrdinal, long id) {
+    if (size * 2 >= ids.length) {
+      grow();
+    }
+    byte type = (byte) (rootTypeOrdinal + 1);
+    int mask = ids.length - 1;
+    int slot = hash(type, id) & mask;
+    while (types[slot] != 0) {
+      if (types[slot] == type && ids[slot] == id) {
+        return false;
+      }
+      slot = (slot + 1) & mask;
+    }
+    types[slot] = type;
+    ids[slot] = id;
+    size++;
+    return true;
+  }
+
+  int size() {
+    return size;
+  }
+
+  private void grow() {
+    long[] oldIds = ids;
+    byte[] oldTypes = types;
+    ids = new long[oldIds.length * 2];
+    types = new byte[oldTypes.length * 2];
+    int mask = ids.length - 1;
+    for (int i = 0; i < oldIds.length; i++) {
+      byte type = oldTypes[i];
+      if (type == 0) {
+        continue;
+      }
+      int slot = hash(type, oldIds[i]) & mask;
+      while (types[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      types[slot] = type;
+      ids[slot] = oldIds[i];
+    }
+  }
+
+  private static int hash(byte type, long id) {
+    long hash = (id ^ ((long) type << 59)) * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ (hash >>> 32));
+  }
+}
@@ -17,7 +17,6 @@ package com.squareup.leakcanary;
 
 import com.squareup.haha.perflib.ArrayInstance;
 import com.squareup.haha.perflib.ClassInstance;
-import com.squareup.haha.perflib.ClassObj;
 import com.squareup.haha.perflib.Instance;
 import com.squareup.haha.perflib.Type;
 import java.lang.reflect.InvocationTargetException;
@@ -37,30 +36,37 @@ public final class HahaHelper {
           Double.class.getName(), Byte.class.getName(), Short.class.getName(),
           Integer.class.getName(), Long.class.getName()));
 
-  static String threadName(Instance holder) {
-    List<ClassInstance.FieldValue> values = classInstanceValues(holder);
-    Object nameField = fieldValue(values, "name");
-    if (nameField == null) {
+  static String threadName(HprofIndex index, int threadOrdinal) {
+    int nameOrdinal = index.ordinalOf(index.readReferenceField(threadOrdinal, "name"));
+    if (nameOrdinal == HprofIndex.NO_OBJECT) {
       // Sometimes we can't find the String at the expected memory address in the heap dump.
       // See https://github.com/square/leakcanary/issues/417 .
       return "Thread name not available";
     }
-    return asString(nameField);
+    return asString(index, nameOrdinal);
   }
 
-  static boolean extendsThread(ClassObj clazz) {
+  static boolean extendsThread(HprofIndex index, IndexedClass clazz) {
     boolean extendsThread = false;
-    ClassObj parentClass = clazz;
-    while (parentClass.getSuperClassObj() != null) {
-      if (parentClass.getClassName().equals(Thread.class.getName())) {
+    IndexedClass parentClass = clazz;
+    while (parentClass.superClassId != 0) {
+      if (parentClass.name.equals(Thread.class.getName())) {
         extendsThread = true;
         break;
       }
-      parentClass = parentClass.getSuperClassObj();
+      parentClass = index.superClassOf(parentClass);
     }
     return extendsThread;
   }
 
+  /**
+   * Same as {@link #asString(Object)}, reading the characters straight from the heap dump instead
+   * of going through HAHA instances. See {@link StringDecoder}.
+   */
+  static String asString(HprofIndex index, int stringOrdinal) {
+    return index.strings().decode(stringOrdinal);
+  }
+
   static String asString(Object stringObject) {
     Instance instance = (Instance) stringObject;
     List<ClassInstance.FieldValue> values = classInstanceValues(instance);
@@ -132,6 +138,19 @@ public final class HahaHelper {
     return WRAPPER_TYPES.contains(arrayInstance.getClassObj().getClassName());
   }
 
+  static boolean isPrimitiveWrapper(HprofIndex index, int ordinal) {
+    return index.kindAt(ordinal) == HprofIndex.INSTANCE && WRAPPER_TYPES.contains(
+        index.classNameOf(ordinal));
+  }
+
+  static boolean isPrimitiveOrWrapperArray(HprofIndex index, int ordinal) {
+    byte kind = index.kindAt(ordinal);
+    if (kind == HprofIndex.PRIMITIVE_ARRAY) {
+      return true;
+    }
+    return kind == HprofIndex.OBJECT_ARRAY && WRAPPER_TYPES.contains(index.classNameOf(ordinal));
+  }
+
   private static boolean isCharArray(Object value) {
     return value instanceof ArrayInstance && ((ArrayInstance) value).getArrayType() == Type.CHAR;
   }
@@ -15,44 +15,51 @@
  */
 package com.squareup.leakcanary;
 
-import com.squareup.haha.perflib.ArrayInstance;
 import com.squareup.haha.perflib.ClassInstance;
-import com.squareup.haha.perflib.ClassObj;
 import com.squareup.haha.perflib.Field;
 import com.squareup.haha.perflib.HprofParser;
 import com.squareup.haha.perflib.Instance;
 import com.squareup.haha.perflib.RootObj;
-import com.squareup.haha.perflib.RootType;
 import com.squareup.haha.perflib.Snapshot;
 import com.squareup.haha.perflib.Type;
 import com.squareup.haha.perflib.io.HprofBuffer;
 import com.squareup.haha.perflib.io.MemoryMappedFileBuffer;
-import com.squareup.haha.trove.THashMap;
-import com.squareup.haha.trove.TObjectProcedure;
+import com.squareup.leakcanary.AnalyzerProgressListener.Step;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static android.os.Build.VERSION.SDK_INT;
 import static android.os.Build.VERSION_CODES.N_MR1;
 import static com.squareup.leakcanary.AnalysisResult.failure;
 import static com.squareup.leakcanary.AnalysisResult.leakDetected;
 import static com.squareup.leakcanary.AnalysisResult.noLeak;
+import static com.squareup.leakcanary.AnalysisResult.partialLeakDetected;
 import static com.squareup.leakcanary.HahaHelper.asString;
-import static com.squareup.leakcanary.HahaHelper.classInstanceValues;
 import static com.squareup.leakcanary.HahaHelper.extendsThread;
-import static com.squareup.leakcanary.HahaHelper.fieldValue;
-import static com.squareup.leakcanary.HahaHelper.hasField;
 import static com.squareup.leakcanary.HahaHelper.threadName;
+import static com.squareup.leakcanary.HprofIndex.NO_OBJECT;
 import static com.squareup.leakcanary.LeakTraceElement.Holder.ARRAY;
 import static com.squareup.leakcanary.LeakTraceElement.Holder.CLASS;
 import static com.squareup.leakcanary.LeakTraceElement.Holder.OBJECT;
 import static com.squareup.leakcanary.LeakTraceElement.Holder.THREAD;
 import static com.squareup.leakcanary.LeakTraceElement.Type.ARRAY_ENTRY;
 import static com.squareup.leakcanary.LeakTraceElement.Type.INSTANCE_FIELD;
+import static com.squareup.leakcanary.LeakTraceElement.Type.LOCAL;
 import static com.squareup.leakcanary.LeakTraceElement.Type.STATIC_FIELD;
+import static java.util.Arrays.asList;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 /**
@@ -62,39 +69,77 @@ public final class HeapAnalyzer {
 
   private static final String ANONYMOUS_CLASS_NAME_PATTERN = "^.+\\$\\d+$";
 
+  /** Rough average size of an object record, to estimate the number of objects of a heap dump. */
+  private static final int AVERAGE_RECORD_SIZE = 32;
+  /**
+   * Rough heap usage of each object: 17 bytes of index, the visit state, and the nodes of the
+   * traversal that reach it.
+   */
+  private static final int HEAP_BYTES_PER_OBJECT = 64;
+
   private final ExcludedRefs excludedRefs;
+  private final RetainedSizeMode retainedSizeMode;
+  private final PathSearchMode pathSearchMode;
+  private final int pathFinderThreadCount;
+  private final int pathsPerLeak;
+  private final AnalyzerProgressListener listener;
+  private final MemoryMode memoryMode;
 
   public HeapAnalyzer(ExcludedRefs excludedRefs) {
-    this.excludedRefs = excludedRefs;
+    this(builder().excludedRefs(excludedRefs));
+  }
+
+  private HeapAnalyzer(Builder builder) {
+    if (builder.excludedRefs == null) {
+      throw new NullPointerException("excludedRefs must not be null");
+    }
+    if (builder.pathFinderThreadCount < 1) {
+      throw new IllegalArgumentException(
+          "pathFinderThreadCount must be at least 1, not " + builder.pathFinderThreadCount);
+    }
+    if (builder.pathsPerLeak < 1) {
+      throw new IllegalArgumentException(
+          "pathsPerLeak must be at least 1, not " + builder.pathsPerLeak);
+    }
+    this.excludedRefs = builder.excludedRefs;
+    this.retainedSizeMode = builder.retainedSizeMode;
+    this.pathSearchMode = builder.pathSearchMode;
+    this.pathFinderThreadCount = builder.pathFinderThreadCount;
+    this.pathsPerLeak = builder.pathsPerLeak;
+    this.listener = builder.listener;
+    this.memoryMode = builder.memoryMode;
+  }
+
+  public static Builder builder() {
+    return new Builder();
   }
 
   public List<TrackedReference> findTrackedReferences(File heapDumpFile) {
     if (!heapDumpFile.exists()) {
       throw new IllegalArgumentException("File does not exist: " + heapDumpFile);
     }
+    ScratchSpace space = scratchSpace(heapDumpFile);
     try {
       HprofBuffer buffer = new MemoryMappedFileBuffer(heapDumpFile);
-      HprofParser parser = new HprofParser(buffer);
-      Snapshot snapshot = parser.parse();
-      deduplicateGcRoots(snapshot);
+      HprofIndex index = indexHeapDump(buffer, space);
 
-      ClassObj refClass = snapshot.findClass(KeyedWeakReference.class.getName());
       List<TrackedReference> references = new ArrayList<>();
-      for (Instance weakRef : refClass.getInstancesList()) {
-        List<ClassInstance.FieldValue> values = classInstanceValues(weakRef);
-        String key = asString(fieldValue(values, "key"));
-        String name =
-            hasField(values, "name") ? asString(fieldValue(values, "name")) : "(No name field)";
-        Instance instance = fieldValue(values, "referent");
-        if (instance != null) {
-          String className = getClassName(instance);
-          List<LeakReference> fields = describeFields(instance);
+      for (int weakRef : index.instancesOf(KeyedWeakReference.class.getName())) {
+        String key = asString(index, index.ordinalOf(index.readReferenceField(weakRef, "key")));
+        String name = index.hasField(weakRef, "name") ? asString(index,
+            index.ordinalOf(index.readReferenceField(weakRef, "name"))) : "(No name field)";
+        int instance = index.ordinalOf(index.readReferenceField(weakRef, "referent"));
+        if (instance != NO_OBJECT) {
+          String className = getClassName(index, instance);
+          List<LeakReference> fields = describeFields(index, instance);
           references.add(new TrackedReference(key, name, className, fields));
         }
       }
       return references;
     } catch (Throwable e) {
       throw new RuntimeException(e);
+    } finally {
+      space.close();
     }
   }
 
@@ -103,168 +148,353 @@ public final class HeapAnalyzer {
    * and then computes the shortest strong reference path from that instance to the GC roots.
    */
   public AnalysisResult checkForLeak(File heapDumpFile, String referenceKey) {
-    long analysisStartNanoTime = System.nanoTime();
+    return checkForLeaks(heapDumpFile, Collections.singleton(referenceKey)).get(referenceKey);
+  }
 
+  /**
+   * Same as {@link #checkForLeak(File, String)} for several keys at once: the heap dump is parsed
+   * once and a single traversal finds the shortest strong reference path to every leaking
+   * instance.
+   *
+   * @return one {@link AnalysisResult} per key, in the iteration order of {@code referenceKeys}.
+   */
+  public Map<String, AnalysisResult> checkForLeaks(File heapDumpFile, Set<String> referenceKeys) {
+    long analysisStartNanoTime = System.nanoTime();
     if (!heapDumpFile.exists()) {
       Exception exception = new IllegalArgumentException("File does not exist: " + heapDumpFile);
-      return failure(exception, since(analysisStartNanoTime));
+      AnalysisStats stats = new AnalysisStats.Builder().build();
+      Map<String, AnalysisResult> results = new LinkedHashMap<>();
+      for (String referenceKey : referenceKeys) {
+        results.put(referenceKey, failure(exception, since(analysisStartNanoTime), stats));
+      }
+      return results;
     }
 
+    Analysis analysis =
+        new Analysis(heapDumpFile, scratchSpace(heapDumpFile), analysisStartNanoTime);
+    AnalysisStats.Builder stats = analysis.stats;
+    Map<String, AnalysisResult> results = analysis.results;
+    ScratchSpace space = analysis.space;
     try {
-      // 将 dump 文件解析成 snapshot 对象，haha库的用法
+      // 将 dump 文件索引一遍，对象内容在查找路径时按需解析
+      enterStep(Step.INDEXING_HEAP_DUMP);
+      long phaseStartNanoTime = System.nanoTime();
       HprofBuffer buffer = new MemoryMappedFileBuffer(heapDumpFile);
-      HprofParser parser = new HprofParser(buffer);
-      Snapshot snapshot = parser.parse();
-      deduplicateGcRoots(snapshot);
-
-      Instance leakingRef = findLeakingReference(referenceKey, snapshot);
-
-      // False alarm, weak reference was cleared in between key check and heap dump.
-      if (leakingRef == null) {
-        return noLeak(since(analysisStartNanoTime));
+      HprofIndex index = indexHeapDump(buffer, space);
+      stats.indexNanos = System.nanoTime() - phaseStartNanoTime;
+      stats.objectCount = index.objectCount();
+      stats.uniqueGcRootCount = index.rootCount();
+      stats.gcRootCount = index.rootCount() + index.duplicatedRootCount();
+
+      enterStep(Step.LOOKING_UP_KEYS);
+      phaseStartNanoTime = System.nanoTime();
+      ReferenceKeyIndex weakRefsByKey = ReferenceKeyIndex.build(index);
+
+      Map<String, Integer> leakingRefsByKey = new LinkedHashMap<>();
+      List<String> keysToTrace = new ArrayList<>();
+      for (String referenceKey : referenceKeys) {
+        int weakRef = weakRefsByKey.find(referenceKey);
+        if (weakRef == NO_OBJECT) {
+          Exception exception = new IllegalStateException(
+              "Could not find weak reference with key " + referenceKey + " among "
+                  + weakRefsByKey.size() + " keyed weak references");
+          results.put(referenceKey,
+              failure(exception, analysis.durationMs(), stats.build()));
+          continue;
+        }
+        int leakingRef = index.ordinalOf(index.readReferenceField(weakRef, "referent"));
+        if (leakingRef == NO_OBJECT) {
+          // False alarm, weak reference was cleared in between key check and heap dump.
+          results.put(referenceKey, noLeak(analysis.durationMs(), stats.build()));
+        } else {
+          leakingRefsByKey.put(referenceKey, leakingRef);
+          keysToTrace.add(referenceKey);
+        }
+      }
+      stats.keyLookupNanos = System.nanoTime() - phaseStartNanoTime;
+
+      if (!keysToTrace.isEmpty()) {
+        // Dominators are computed on a Snapshot that holds the whole heap dump, see MemoryMode.
+        RetainedSizeMode retainedSizeMode =
+            space.isMapped() ? RetainedSizeMode.REACHABILITY : this.retainedSizeMode;
+        // 找到泄漏路径
+        findLeakTraces(analysis, index, leakingRefsByKey, keysToTrace);
+        if (retainedSizeMode == RetainedSizeMode.REACHABILITY) {
+          computeReachableSizes(analysis, index, leakingRefsByKey);
+        } else {
+          Map<String, Long> leakingIdsByKey = new LinkedHashMap<>();
+          for (Map.Entry<String, Integer> entry : leakingRefsByKey.entrySet()) {
+            if (results.get(entry.getKey()).leakFound) {
+              leakingIdsByKey.put(entry.getKey(), index.idAt(entry.getValue()));
+            }
+          }
+          // TODO: check O sources and see what happened to android.graphics.Bitmap.mBuffer
+          long[] bitmapBuffers = !leakingIdsByKey.isEmpty() && SDK_INT <= N_MR1
+              ? BitmapRetainedSizes.findBuffers(index) : null;
+          computeDominatedSizes(analysis, leakingIdsByKey, bitmapBuffers);
+        }
       }
-      // 找到泄漏路径
-      return findLeakTrace(analysisStartNanoTime, snapshot, leakingRef);
     } catch (Throwable e) {
-      return failure(e, since(analysisStartNanoTime));
+      // Only a cancellation keeps the leaks found so far, an error may have left them inconsistent.
+      boolean canceled = e instanceof CancellationException;
+      for (String referenceKey : referenceKeys) {
+        if (!canceled || !results.containsKey(referenceKey)) {
+          results.put(referenceKey, failure(e, analysis.durationMs(), stats.build()));
+        }
+      }
+    } finally {
+      space.close();
+    }
+
+    // Keep the order of referenceKeys.
+    Map<String, AnalysisResult> orderedResults = new LinkedHashMap<>();
+    for (String referenceKey : referenceKeys) {
+      orderedResults.put(referenceKey, results.get(referenceKey));
     }
+    return orderedResults;
   }
 
   /**
    * Pruning duplicates reduces memory pressure from hprof bloat added in Marshmallow.
+   *
+   * @return the number of duplicated roots that were removed.
    */
-  void deduplicateGcRoots(Snapshot snapshot) {
-    // THashMap has a smaller memory footprint than HashMap.
-    final THashMap<String, RootObj> uniqueRootMap = new THashMap<>();
-
-    final Collection<RootObj> gcRoots = snapshot.getGCRoots();
-    for (RootObj root : gcRoots) {
-      String key = generateRootKey(root);
-      if (!uniqueRootMap.containsKey(key)) {
-        uniqueRootMap.put(key, root);
+  int deduplicateGcRoots(Snapshot snapshot) {
+    GcRootSet uniqueRoots = new GcRootSet();
+    Collection<RootObj> gcRoots = snapshot.getGCRoots();
+    int rootCount = gcRoots.size();
+    if (gcRoots instanceof List && gcRoots instanceof RandomAccess) {
+      // Compacts the unique roots at the start of the list, keeping their order.
+      List<RootObj> rootList = (List<RootObj>) gcRoots;
+      int uniqueCount = 0;
+      for (int i = 0; i < rootCount; i++) {
+        RootObj root = rootList.get(i);
+        if (uniqueRoots.add(root.getRootType().ordinal(), root.getId())) {
+          rootList.set(uniqueCount++, root);
+        }
       }
-    }
-
-    // Repopulate snapshot with unique GC roots.
-    gcRoots.clear();
-    uniqueRootMap.forEach(new TObjectProcedure<String>() {
-      @Override public boolean execute(String key) {
-        return gcRoots.add(uniqueRootMap.get(key));
+      rootList.subList(uniqueCount, rootCount).clear();
+    } else {
+      for (Iterator<RootObj> iterator = gcRoots.iterator(); iterator.hasNext(); ) {
+        RootObj root = iterator.next();
+        if (!uniqueRoots.add(root.getRootType().ordinal(), root.getId())) {
+          iterator.remove();
+        }
       }
-    });
+    }
+    return rootCount - uniqueRoots.size();
   }
 
-  private String generateRootKey(RootObj root) {
-    return String.format("%s@0x%08x", root.getRootType().getName(), root.getId());
+  /**
+   * Whether the per object state of an analysis is expected to fit in half of the heap, estimated
+   * from the size of the heap dump.
+   */
+  static boolean fitsInHeap(long heapDumpLength, long maxMemory) {
+    long estimatedObjectCount = heapDumpLength / AVERAGE_RECORD_SIZE;
+    return estimatedObjectCount * HEAP_BYTES_PER_OBJECT <= maxMemory / 2;
   }
 
-  private Instance findLeakingReference(String key, Snapshot snapshot) {
-    ClassObj refClass = snapshot.findClass(KeyedWeakReference.class.getName());
-    List<String> keysFound = new ArrayList<>();
-    for (Instance instance : refClass.getInstancesList()) {
-      List<ClassInstance.FieldValue> values = classInstanceValues(instance);
-      String keyCandidate = asString(fieldValue(values, "key"));
-      if (keyCandidate.equals(key)) {
-        return fieldValue(values, "referent");
-      }
-      keysFound.add(keyCandidate);
+  private ScratchSpace scratchSpace(File heapDumpFile) {
+    boolean useScratchFiles = memoryMode == MemoryMode.SCRATCH_FILES
+        || (memoryMode == MemoryMode.AUTOMATIC
+        && !fitsInHeap(heapDumpFile.length(), Runtime.getRuntime().maxMemory()));
+    if (!useScratchFiles) {
+      return ScratchSpace.onHeap();
     }
-    throw new IllegalStateException(
-        "Could not find weak reference with key " + key + " in " + keysFound);
+    File heapDumpDirectory = heapDumpFile.getAbsoluteFile().getParentFile();
+    return ScratchSpace.mapped(heapDumpDirectory, heapDumpFile.getName());
   }
 
-  private AnalysisResult findLeakTrace(long analysisStartNanoTime, Snapshot snapshot,
-      Instance leakingRef) {
-
-    ShortestPathFinder pathFinder = new ShortestPathFinder(excludedRefs);
-    ShortestPathFinder.Result result = pathFinder.findPath(snapshot, leakingRef);
+  private HprofIndex indexHeapDump(HprofBuffer buffer, ScratchSpace space) {
+    Set<String> trackedClassNames = new LinkedHashSet<>(
+        asList(KeyedWeakReference.class.getName(), BitmapRetainedSizes.BITMAP_CLASS_NAME));
+    HprofIndexer indexer = new HprofIndexer(buffer, trackedClassNames, space);
+    return indexer.index();
+  }
 
-    // False alarm, no strong reference path to GC Roots.
-    if (result.leakingNode == null) {
-      return noLeak(since(analysisStartNanoTime));
+  private void findLeakTraces(Analysis analysis, HprofIndex index,
+      Map<String, Integer> leakingRefsByKey, List<String> referenceKeys) throws IOException {
+    int[] leakingRefs = new int[referenceKeys.size()];
+    for (int i = 0; i < leakingRefs.length; i++) {
+      leakingRefs[i] = leakingRefsByKey.get(referenceKeys.get(i));
     }
 
-    LeakTrace leakTrace = buildLeakTrace(result.leakingNode);
+    enterStep(Step.FINDING_SHORTEST_PATHS);
+    long phaseStartNanoTime = System.nanoTime();
+    ShortestPathFinder pathFinder =
+        new ShortestPathFinder(excludedRefs, pathsPerLeak, listener, analysis.space);
+    ShortestPathFinder.Result[] paths = findPaths(pathFinder, analysis, index, leakingRefs);
+    analysis.stats.pathFindingNanos = System.nanoTime() - phaseStartNanoTime;
+
+    // Leaks are reported without their retained size until it is computed, in case the analysis
+    // gets canceled in between. Leak traces are cheap to build, even once canceled.
+    listener.onProgressUpdate(Step.BUILDING_LEAK_TRACES);
+    for (int i = 0; i < leakingRefs.length; i++) {
+      String referenceKey = referenceKeys.get(i);
+      ShortestPathFinder.Result result = paths[i];
+
+      if (result.leakingNode == null) {
+        // False alarm, no strong reference path to GC Roots.
+        if (!pathFinder.canceled()) {
+          analysis.results.put(referenceKey,
+              noLeak(analysis.durationMs(), analysis.stats.build()));
+        }
+        continue;
+      }
 
-    String className = leakingRef.getClassObj().getClassName();
+      phaseStartNanoTime = System.nanoTime();
+      LeakTrace leakTrace = buildLeakTrace(index, result.leakingNode);
+      List<LeakTrace> otherLeakTraces = new ArrayList<>();
+      for (LeakNode otherLeakingNode : result.otherLeakingNodes) {
+        otherLeakTraces.add(buildLeakTrace(index, otherLeakingNode));
+      }
+      analysis.stats.leakTracesNanos += System.nanoTime() - phaseStartNanoTime;
 
-    // Side effect: computes retained size.
-    snapshot.computeDominators();
+      String className = index.classNameOf(leakingRefs[i]);
+      analysis.results.put(referenceKey,
+          partialLeakDetected(result.excludingKnownLeaks, className, leakTrace, otherLeakTraces,
+              analysis.durationMs(), analysis.stats.build()));
+    }
+    if (pathFinder.canceled()) {
+      throw canceledException(Step.FINDING_SHORTEST_PATHS);
+    }
+  }
 
-    Instance leakingInstance = result.leakingNode.instance;
+  private void computeReachableSizes(Analysis analysis, HprofIndex index,
+      Map<String, Integer> leakingRefsByKey) {
+    ReferenceGraph referenceGraph = null;
+    for (Map.Entry<String, Integer> entry : leakingRefsByKey.entrySet()) {
+      String referenceKey = entry.getKey();
+      AnalysisResult partialResult = analysis.results.get(referenceKey);
+      if (!partialResult.leakFound) {
+        continue;
+      }
 
-    long retainedSize = leakingInstance.getTotalRetainedSize();
+      long phaseStartNanoTime = System.nanoTime();
+      if (referenceGraph == null) {
+        enterStep(Step.COMPUTING_REACHABILITY);
+        referenceGraph = ReferenceGraph.build(index, analysis.space);
+      }
+      // Bitmaps held by native gc roots are not accounted for, see RetainedSizeMode.
+      long retainedSize =
+          referenceGraph.shallowSize(referenceGraph.retainedSet(entry.getValue()));
+      analysis.stats.reachabilityNanos += System.nanoTime() - phaseStartNanoTime;
 
-    // TODO: check O sources and see what happened to android.graphics.Bitmap.mBuffer
-    if (SDK_INT <= N_MR1) {
-      retainedSize += computeIgnoredBitmapRetainedSize(snapshot, leakingInstance);
+      analysis.results.put(referenceKey, withRetainedSize(analysis, partialResult, retainedSize));
+      checkCanceled(Step.COMPUTING_REACHABILITY);
     }
-
-    // 使用haha这个库去建立最短引用路径
-    return leakDetected(result.excludingKnownLeaks, className, leakTrace, retainedSize,
-        since(analysisStartNanoTime));
   }
 
   /**
-   * Bitmaps and bitmap byte arrays are sometimes held by native gc roots, so they aren't included
-   * in the retained size because their root dominator is a native gc root.
-   * To fix this, we check if the leaking instance is a dominator for each bitmap instance and then
-   * add the bitmap size.
-   *
-   * From experience, we've found that bitmap created in code (Bitmap.createBitmap()) are correctly
-   * accounted for, however bitmaps set in layouts are not.
+   * @param bitmapBuffers see {@link BitmapRetainedSizes#findBuffers(HprofIndex)}, null to skip
+   * the bitmaps.
    */
-  private long computeIgnoredBitmapRetainedSize(Snapshot snapshot, Instance leakingInstance) {
-    long bitmapRetainedSize = 0;
-    ClassObj bitmapClass = snapshot.findClass("android.graphics.Bitmap");
-
-    for (Instance bitmapInstance : bitmapClass.getInstancesList()) {
-      if (isIgnoredDominator(leakingInstance, bitmapInstance)) {
-        ArrayInstance mBufferInstance = fieldValue(classInstanceValues(bitmapInstance), "mBuffer");
-        // Native bitmaps have mBuffer set to null. We sadly can't account for them.
-        if (mBufferInstance == null) {
-          continue;
+  private void computeDominatedSizes(Analysis analysis, Map<String, Long> leakingIdsByKey,
+      long[] bitmapBuffers) throws IOException {
+    Snapshot snapshot = null;
+    BitmapRetainedSizes bitmapSizes = null;
+    for (Map.Entry<String, Long> entry : leakingIdsByKey.entrySet()) {
+      String referenceKey = entry.getKey();
+      if (snapshot == null) {
+        snapshot = parseDominatorTree(analysis.heapDumpFile, analysis.stats);
+        if (bitmapBuffers != null) {
+          enterStep(Step.COMPUTING_BITMAP_SIZES);
+          long phaseStartNanoTime = System.nanoTime();
+          bitmapSizes = BitmapRetainedSizes.compute(bitmapBuffers, snapshot);
+          analysis.stats.bitmapSizesNanos = System.nanoTime() - phaseStartNanoTime;
         }
-        long bufferSize = mBufferInstance.getTotalRetainedSize();
-        long bitmapSize = bitmapInstance.getTotalRetainedSize();
-        // Sometimes the size of the buffer isn't accounted for in the bitmap retained size. Since
-        // the buffer is large, it's easy to detect by checking for bitmap size < buffer size.
-        if (bitmapSize < bufferSize) {
-          bitmapSize += bufferSize;
-        }
-        bitmapRetainedSize += bitmapSize;
       }
+      long retainedSize = computeRetainedSize(snapshot, bitmapSizes, entry.getValue());
+
+      AnalysisResult partialResult = analysis.results.get(referenceKey);
+      analysis.results.put(referenceKey, withRetainedSize(analysis, partialResult, retainedSize));
+      checkCanceled(Step.COMPUTING_DOMINATORS);
     }
-    return bitmapRetainedSize;
   }
 
-  private boolean isIgnoredDominator(Instance dominator, Instance instance) {
-    boolean foundNativeRoot = false;
-    while (true) {
-      Instance immediateDominator = instance.getImmediateDominator();
-      if (immediateDominator instanceof RootObj
-          && ((RootObj) immediateDominator).getRootType() == RootType.UNKNOWN) {
-        // Ignore native roots
-        instance = instance.getNextInstanceToGcRoot();
-        foundNativeRoot = true;
-      } else {
-        instance = immediateDominator;
-      }
-      if (instance == null) {
-        return false;
+  private static AnalysisResult withRetainedSize(Analysis analysis, AnalysisResult partialResult,
+      long retainedSize) {
+    // 使用haha这个库去建立最短引用路径
+    return leakDetected(partialResult.excludedLeak, partialResult.className,
+        partialResult.leakTrace, partialResult.otherLeakTraces, retainedSize,
+        analysis.durationMs(), analysis.stats.build());
+  }
+
+  /**
+   * Dominators need the whole object graph, so this is the only step that still parses the heap
+   * dump into a {@link Snapshot}, and only once a leak has been found.
+   */
+  private Snapshot parseDominatorTree(File heapDumpFile, AnalysisStats.Builder stats)
+      throws IOException {
+    enterStep(Step.PARSING_SNAPSHOT);
+    long phaseStartNanoTime = System.nanoTime();
+    HprofBuffer buffer = new MemoryMappedFileBuffer(heapDumpFile);
+    HprofParser parser = new HprofParser(buffer);
+    Snapshot snapshot = parser.parse();
+    stats.snapshotParsingNanos = System.nanoTime() - phaseStartNanoTime;
+
+    enterStep(Step.DEDUPLICATING_GC_ROOTS);
+    phaseStartNanoTime = System.nanoTime();
+    deduplicateGcRoots(snapshot);
+    stats.rootDeduplicationNanos = System.nanoTime() - phaseStartNanoTime;
+
+    // Side effect: computes retained size.
+    enterStep(Step.COMPUTING_DOMINATORS);
+    phaseStartNanoTime = System.nanoTime();
+    snapshot.computeDominators();
+    stats.dominatorsNanos = System.nanoTime() - phaseStartNanoTime;
+    return snapshot;
+  }
+
+  private long computeRetainedSize(Snapshot snapshot, BitmapRetainedSizes bitmapSizes,
+      long leakingInstanceId) {
+    Instance leakingInstance = snapshot.findInstance(leakingInstanceId);
+
+    long retainedSize = leakingInstance.getTotalRetainedSize();
+
+    if (bitmapSizes != null) {
+      retainedSize += bitmapSizes.ignoredSize(leakingInstance);
+    }
+    return retainedSize;
+  }
+
+  private ShortestPathFinder.Result[] findPaths(ShortestPathFinder pathFinder, Analysis analysis,
+      HprofIndex index, int[] leakingRefs) throws IOException {
+    // Only a single path per leak can be found bidirectionally, see PathSearchMode, and the
+    // bidirectional search keeps its state on the heap, see MemoryMode.
+    boolean bidirectional = pathSearchMode == PathSearchMode.BIDIRECTIONAL && pathsPerLeak == 1
+        && !analysis.space.isMapped();
+    InboundReferences inboundReferences = bidirectional ? InboundReferences.build(index) : null;
+    ShortestPathFinder.Result[] paths;
+    if (pathFinderThreadCount == 1) {
+      paths = pathFinder.findPaths(index, inboundReferences, leakingRefs,
+          Collections.<HprofIndex>emptyList(), null);
+    } else {
+      // Each thread reads the heap dump through its own buffer.
+      List<HprofIndex> workerIndexes = new ArrayList<>();
+      for (int i = 0; i < pathFinderThreadCount; i++) {
+        workerIndexes.add(index.withBuffer(new MemoryMappedFileBuffer(analysis.heapDumpFile)));
       }
-      if (instance == dominator) {
-        return foundNativeRoot;
+      ExecutorService executor = Executors.newFixedThreadPool(pathFinderThreadCount);
+      try {
+        paths =
+            pathFinder.findPaths(index, inboundReferences, leakingRefs, workerIndexes, executor);
+      } finally {
+        executor.shutdown();
       }
     }
+    analysis.stats.visitedNodeCount = pathFinder.visitedNodeCount();
+    analysis.stats.enqueuedNodeCount = pathFinder.enqueuedNodeCount();
+    analysis.stats.peakQueueSize = pathFinder.peakQueueSize();
+    return paths;
   }
 
-  private LeakTrace buildLeakTrace(LeakNode leakingNode) {
+  LeakTrace buildLeakTrace(HprofIndex index, LeakNode leakingNode) {
     List<LeakTraceElement> elements = new ArrayList<>();
     // We iterate from the leak to the GC root
-    LeakNode node = new LeakNode(null, null, leakingNode, null);
+    LeakNode node = new LeakNode(null, NO_OBJECT, leakingNode, null, -1);
     while (node != null) {
-      LeakTraceElement element = buildLeakElement(node);
+      LeakTraceElement element = buildLeakElement(index, node);
       if (element != null) {
         elements.add(0, element);
       }
@@ -273,52 +503,51 @@ public final class HeapAnalyzer {
     return new LeakTrace(elements);
   }
 
-  private LeakTraceElement buildLeakElement(LeakNode node) {
+  private LeakTraceElement buildLeakElement(HprofIndex index, LeakNode node) {
     if (node.parent == null) {
       // Ignore any root node.
       return null;
     }
-    Instance holder = node.parent.instance;
+    int holder = node.parent.instance;
 
-    if (holder instanceof RootObj) {
-      return null;
-    }
     LeakTraceElement.Holder holderType;
     String className;
     String extra = null;
-    List<LeakReference> leakReferences = describeFields(holder);
+    List<LeakReference> leakReferences = describeFields(index, holder);
 
-    className = getClassName(holder);
+    className = getClassName(index, holder);
 
     List<String> classHierarchy = new ArrayList<>();
     classHierarchy.add(className);
     String rootClassName = Object.class.getName();
-    if (holder instanceof ClassInstance) {
-      ClassObj classObj = holder.getClassObj();
-      while (!(classObj = classObj.getSuperClassObj()).getClassName().equals(rootClassName)) {
-        classHierarchy.add(classObj.getClassName());
+    byte holderKind = index.kindAt(holder);
+    if (holderKind == HprofIndex.INSTANCE) {
+      IndexedClass classObj = index.classOf(holder);
+      while (!(classObj = index.superClassOf(classObj)).name.equals(rootClassName)) {
+        classHierarchy.add(classObj.name);
       }
     }
 
-    if (holder instanceof ClassObj) {
+    if (holderKind == HprofIndex.CLASS) {
       holderType = CLASS;
-    } else if (holder instanceof ArrayInstance) {
+    } else if (holderKind == HprofIndex.OBJECT_ARRAY
+        || holderKind == HprofIndex.PRIMITIVE_ARRAY) {
       holderType = ARRAY;
     } else {
-      ClassObj classObj = holder.getClassObj();
-      if (extendsThread(classObj)) {
+      IndexedClass classObj = index.classOf(holder);
+      if (extendsThread(index, classObj)) {
         holderType = THREAD;
-        String threadName = threadName(holder);
+        String threadName = threadName(index, holder);
         extra = "(named '" + threadName + "')";
       } else if (className.matches(ANONYMOUS_CLASS_NAME_PATTERN)) {
-        String parentClassName = classObj.getSuperClassObj().getClassName();
+        String parentClassName = index.superClassOf(classObj).name;
         if (rootClassName.equals(parentClassName)) {
           holderType = OBJECT;
           try {
             // This is an anonymous class implementing an interface. The API does not give access
             // to the interfaces implemented by the class. We check if it's in the class path and
             // use that instead.
-            Class<?> actualClass = Class.forName(classObj.getClassName());
+            Class<?> actualClass = Class.forName(classObj.name);
             Class<?>[] interfaces = actualClass.getInterfaces();
             if (interfaces.length > 0) {
               Class<?> implementedInterface = interfaces[0];
@@ -337,63 +566,191 @@ public final class HeapAnalyzer {
         holderType = OBJECT;
       }
     }
-    return new LeakTraceElement(node.leakReference, holderType, classHierarchy, extra,
-        node.exclusion, leakReferences);
+    LeakReference reference = buildLeakReference(index, node);
+    return new LeakTraceElement(reference, holderType, classHierarchy, extra, node.exclusion,
+        leakReferences);
   }
 
-  private List<LeakReference> describeFields(Instance instance) {
+  /** Describes the reference from the parent of a node to that node. */
+  private LeakReference buildLeakReference(HprofIndex index, LeakNode node) {
+    if (node.referenceType == null) {
+      return null;
+    }
+    int holder = node.parent.instance;
+    switch (node.referenceType) {
+      case LOCAL:
+        return new LeakReference(LOCAL, null, null);
+      case STATIC_FIELD:
+        String staticFieldName = index.asClass(holder).staticFields[node.referenceIndex].getName();
+        return new LeakReference(STATIC_FIELD, staticFieldName, index.describe(node.instance));
+      case INSTANCE_FIELD:
+        String fieldName =
+            index.fieldLayout(index.classOf(holder)).fields[node.referenceIndex].getName();
+        return new LeakReference(INSTANCE_FIELD, fieldName,
+            index.describe(node.instance));
+      case ARRAY_ENTRY:
+        return new LeakReference(ARRAY_ENTRY, Integer.toString(node.referenceIndex),
+            index.describe(node.instance));
+      default:
+        throw new IllegalStateException("Unknown reference type " + node.referenceType);
+    }
+  }
+
+  private List<LeakReference> describeFields(HprofIndex index, int instance) {
     List<LeakReference> leakReferences = new ArrayList<>();
 
-    if (instance instanceof ClassObj) {
-      ClassObj classObj = (ClassObj) instance;
-      for (Map.Entry<Field, Object> entry : classObj.getStaticFieldValues().entrySet()) {
-        String name = entry.getKey().getName();
-        String value = entry.getValue() == null ? "null" : entry.getValue().toString();
-        leakReferences.add(new LeakReference(STATIC_FIELD, name, value));
-      }
-    } else if (instance instanceof ArrayInstance) {
-      ArrayInstance arrayInstance = (ArrayInstance) instance;
-      if (arrayInstance.getArrayType() == Type.OBJECT) {
-        Object[] values = arrayInstance.getValues();
+    switch (index.kindAt(instance)) {
+      case HprofIndex.CLASS:
+        describeStaticFields(index, index.asClass(instance), leakReferences);
+        break;
+      case HprofIndex.OBJECT_ARRAY:
+        long[] values = index.objectArrayElements(instance);
         for (int i = 0; i < values.length; i++) {
           String name = Integer.toString(i);
-          String value = values[i] == null ? "null" : values[i].toString();
+          String value = index.valueToString(Type.OBJECT, values[i] == 0 ? null : values[i]);
           leakReferences.add(new LeakReference(ARRAY_ENTRY, name, value));
         }
-      }
-    } else {
-      ClassObj classObj = instance.getClassObj();
-      for (Map.Entry<Field, Object> entry : classObj.getStaticFieldValues().entrySet()) {
-        String name = entry.getKey().getName();
-        String value = entry.getValue() == null ? "null" : entry.getValue().toString();
-        leakReferences.add(new LeakReference(STATIC_FIELD, name, value));
-      }
-      ClassInstance classInstance = (ClassInstance) instance;
-      for (ClassInstance.FieldValue field : classInstance.getValues()) {
-        String name = field.getField().getName();
-        String value = field.getValue() == null ? "null" : field.getValue().toString();
-        leakReferences.add(new LeakReference(INSTANCE_FIELD, name, value));
-      }
+        break;
+      case HprofIndex.PRIMITIVE_ARRAY:
+        break;
+      default:
+        describeStaticFields(index, index.classOf(instance), leakReferences);
+        for (ClassInstance.FieldValue field : index.instanceFieldValues(instance)) {
+          String name = field.getField().getName();
+          String value = index.valueToString(field.getField().getType(), field.getValue());
+          leakReferences.add(new LeakReference(INSTANCE_FIELD, name, value));
+        }
     }
     return leakReferences;
   }
 
-  private String getClassName(Instance instance) {
-    String className;
-    if (instance instanceof ClassObj) {
-      ClassObj classObj = (ClassObj) instance;
-      className = classObj.getClassName();
-    } else if (instance instanceof ArrayInstance) {
-      ArrayInstance arrayInstance = (ArrayInstance) instance;
-      className = arrayInstance.getClassObj().getClassName();
-    } else {
-      ClassObj classObj = instance.getClassObj();
-      className = classObj.getClassName();
+  private void describeStaticFields(HprofIndex index, IndexedClass classObj,
+      List<LeakReference> leakReferences) {
+    for (int i = 0; i < classObj.staticFields.length; i++) {
+      Field field = classObj.staticFields[i];
+      String value = index.valueToString(field.getType(), classObj.staticValues[i]);
+      leakReferences.add(new LeakReference(STATIC_FIELD, field.getName(), value));
+    }
+  }
+
+  private String getClassName(HprofIndex index, int instance) {
+    if (index.kindAt(instance) == HprofIndex.CLASS) {
+      return index.asClass(instance).name;
     }
-    return className;
+    return index.classNameOf(instance);
   }
 
-  private long since(long analysisStartNanoTime) {
+  /** Notifies the listener, then stops the analysis if it was canceled. */
+  private void enterStep(Step step) {
+    listener.onProgressUpdate(step);
+    checkCanceled(step);
+  }
+
+  private void checkCanceled(Step step) {
+    if (listener.isCanceled()) {
+      throw canceledException(step);
+    }
+  }
+
+  private static CancellationException canceledException(Step step) {
+    return new CancellationException("Analysis canceled at step " + step);
+  }
+
+  private static long since(long analysisStartNanoTime) {
     return NANOSECONDS.toMillis(System.nanoTime() - analysisStartNanoTime);
   }
+
+  /** State of one {@link #checkForLeaks(File, Set)} call, shared by its phases. */
+  private static final class Analysis {
+    final File heapDumpFile;
+    final ScratchSpace space;
+    final long startNanoTime;
+    final AnalysisStats.Builder stats = new AnalysisStats.Builder();
+    /** Results by key, completed phase after phase. */
+    final Map<String, AnalysisResult> results = new LinkedHashMap<>();
+
+    Analysis(File heapDumpFile, ScratchSpace space, long startNanoTime) {
+      this.heapDumpFile = heapDumpFile;
+      this.space = space;
+      this.startNanoTime = startNanoTime;
+    }
+
+    long durationMs() {
+      return since(startNanoTime);
+    }
+  }
+
+  public static final class Builder {
+    ExcludedRefs excludedRefs;
+    RetainedSizeMode retainedSizeMode = RetainedSizeMode.DOMINATOR_TREE;
+    PathSearchMode pathSearchMode = PathSearchMode.FORWARD;
+    int pathFinderThreadCount = 1;
+    int pathsPerLeak = 1;
+    AnalyzerProgressListener listener = AnalyzerProgressListener.NONE;
+    MemoryMode memoryMode = MemoryMode.HEAP;
+
+    Builder() {
+    }
+
+    /** References that should be ignored when looking for the shortest paths. Required. */
+    public Builder excludedRefs(ExcludedRefs excludedRefs) {
+      this.excludedRefs = excludedRefs;
+      return this;
+    }
+
+    /** Defaults to {@link RetainedSizeMode#DOMINATOR_TREE}. */
+    public Builder retainedSizeMode(RetainedSizeMode retainedSizeMode) {
+      this.retainedSizeMode = retainedSizeMode;
+      return this;
+    }
+
+    /** Defaults to {@link PathSearchMode#FORWARD}. */
+    public Builder pathSearchMode(PathSearchMode pathSearchMode) {
+      this.pathSearchMode = pathSearchMode;
+      return this;
+    }
+
+    /**
+     * Number of threads that search for the shortest paths to the GC roots, 1 by default. The
+     * paths are the same whatever the number of threads.
+     */
+    public Builder pathFinderThreadCount(int pathFinderThreadCount) {
+      this.pathFinderThreadCount = pathFinderThreadCount;
+      return this;
+    }
+
+    /**
+     * Maximum number of paths to the GC roots to find for each leak, 1 by default. The first one
+     * is in {@link AnalysisResult#leakTrace} and the others in {@link
+     * AnalysisResult#otherLeakTraces}. Finding more than one path requires a longer traversal of
+     * the heap dump, but saves analyzing another heap dump once the first path has been fixed.
+     */
+    public Builder pathsPerLeak(int pathsPerLeak) {
+      this.pathsPerLeak = pathsPerLeak;
+      return this;
+    }
+
+    /**
+     * Notified of the progress of each analysis, and polled to cancel it. See {@link
+     * AnalysisBudget} to cap the duration of the analyses.
+     */
+    public Builder listener(AnalyzerProgressListener listener) {
+      this.listener = listener;
+      return this;
+    }
+
+    /**
+     * Whether to keep the state of each object on the heap, the default, or in scratch files next
+     * to the heap dump. Scratch files override the retained size and path search modes, see
+     * {@link MemoryMode#SCRATCH_FILES}.
+     */
+    public Builder memoryMode(MemoryMode memoryMode) {
+      this.memoryMode = memoryMode;
+      return this;
+    }
+
+    public HeapAnalyzer build() {
+      return new HeapAnalyzer(this);
+    }
+  }
 }
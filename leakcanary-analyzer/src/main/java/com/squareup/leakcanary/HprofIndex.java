@@ -0,0 +1,507 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.ClassInstance;
+import com.squareup.haha.perflib.Field;
+import com.squareup.haha.perflib.RootType;
+import com.squareup.haha.perflib.Type;
+import com.squareup.haha.perflib.io.HprofBuffer;
+import com.squareup.haha.trove.TIntObjectHashMap;
+import com.squareup.haha.trove.TLongObjectHashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact index of a heap dump built by {@link HprofIndexer}. Objects are identified by their
+ * ordinal, their position in the index once sorted by id. The index only knows where each object
+ * record starts; object contents are decoded from the underlying {@link HprofBuffer} on demand.
+ * That per object state is held in arrays from the {@link ScratchSpace} of the indexer.
+ *
+ * Not thread safe: all reads share the position of the buffer. See {@link
+ * #withBuffer(HprofBuffer)}.
+ */
+final class HprofIndex {
+
+  /** Returned by {@link #ordinalOf(long)} when there is no object with that id in the dump. */
+  static final int NO_OBJECT = -1;
+
+  static final byte CLASS = 1;
+  static final byte INSTANCE = 2;
+  static final byte OBJECT_ARRAY = 3;
+  static final byte PRIMITIVE_ARRAY = 4;
+
+  private static final RootType[] ROOT_TYPES = RootType.values();
+
+  /** The id, record position and kind of each object, in the order of their ordinals. */
+  static final class ObjectTable {
+    final int count;
+    /** Sorted. */
+    final LongArray ids;
+    /** Position of the record of each object, right after its sub-record tag. */
+    final LongArray positions;
+    final ByteArray kinds;
+
+    ObjectTable(int count, LongArray ids, LongArray positions, ByteArray kinds) {
+      this.count = count;
+      this.ids = ids;
+      this.positions = positions;
+      this.kinds = kinds;
+    }
+  }
+
+  /** The unique GC roots of a heap dump, and the threads of their serial numbers. */
+  static final class RootTable {
+    final int count;
+    /** {@link RootType} ordinals. */
+    final byte[] types;
+    final long[] ids;
+    final int[] threadSerialNumbers;
+    final TIntObjectHashMap<Long> threadIdsBySerialNumber;
+    /** Roots of the heap dump that were dropped because they were listed already. */
+    final int duplicatedCount;
+
+    RootTable(int count, byte[] types, long[] ids, int[] threadSerialNumbers,
+        TIntObjectHashMap<Long> threadIdsBySerialNumber, int duplicatedCount) {
+      this.count = count;
+      this.types = types;
+      this.ids = ids;
+      this.threadSerialNumbers = threadSerialNumbers;
+      this.threadIdsBySerialNumber = threadIdsBySerialNumber;
+      this.duplicatedCount = duplicatedCount;
+    }
+  }
+
+  private final HprofBuffer buffer;
+  private final int idSize;
+  private final long idSizeMask;
+
+  private final ObjectTable objects;
+  private final int objectCount;
+  private final LongArray objectIds;
+  private final LongArray objectPositions;
+  private final ByteArray objectKinds;
+
+  private final TLongObjectHashMap<IndexedClass> classesById;
+  private final TLongObjectHashMap<FieldLayout> layoutsByClassId;
+  private final Map<String, long[]> instanceIdsByClassName;
+
+  private final RootTable roots;
+  private final int rootCount;
+  private final byte[] rootTypes;
+  private final long[] rootIds;
+  private final int[] rootThreadSerialNumbers;
+  private final TIntObjectHashMap<Long> threadIdsBySerialNumber;
+
+  private StringDecoder strings;
+
+  HprofIndex(HprofBuffer buffer, int idSize, ObjectTable objects,
+      TLongObjectHashMap<IndexedClass> classesById,
+      TLongObjectHashMap<FieldLayout> layoutsByClassId, Map<String, long[]> instanceIdsByClassName,
+      RootTable roots) {
+    this.buffer = buffer;
+    this.idSize = idSize;
+    idSizeMask = idSize == 8 ? -1L : (1L << (idSize * 8)) - 1;
+    this.objects = objects;
+    objectCount = objects.count;
+    objectIds = objects.ids;
+    objectPositions = objects.positions;
+    objectKinds = objects.kinds;
+    this.classesById = classesById;
+    this.layoutsByClassId = layoutsByClassId;
+    this.instanceIdsByClassName = instanceIdsByClassName;
+    this.roots = roots;
+    rootCount = roots.count;
+    rootTypes = roots.types;
+    rootIds = roots.ids;
+    rootThreadSerialNumbers = roots.threadSerialNumbers;
+    threadIdsBySerialNumber = roots.threadIdsBySerialNumber;
+  }
+
+  /**
+   * A view of this index that reads object contents from {@code buffer}, which must be another
+   * buffer over the same heap dump. Lets several threads read objects at once, one view each.
+   */
+  HprofIndex withBuffer(HprofBuffer buffer) {
+    return new HprofIndex(buffer, idSize, objects, classesById, layoutsByClassId,
+        instanceIdsByClassName, roots);
+  }
+
+  int objectCount() {
+    return objectCount;
+  }
+
+  int ordinalOf(long id) {
+    if (id == 0) {
+      return NO_OBJECT;
+    }
+    int ordinal = objectIds.binarySearch(objectCount, id);
+    return ordinal >= 0 ? ordinal : NO_OBJECT;
+  }
+
+  /** Ordinal of the object referenced by a {@link Type#OBJECT} value, or {@link #NO_OBJECT}. */
+  int ordinalOf(Object referenceValue) {
+    return referenceValue == null ? NO_OBJECT : ordinalOf((long) (Long) referenceValue);
+  }
+
+  long idAt(int ordinal) {
+    return objectIds.get(ordinal);
+  }
+
+  byte kindAt(int ordinal) {
+    return objectKinds.get(ordinal);
+  }
+
+  int rootCount() {
+    return rootCount;
+  }
+
+  /** Number of roots of the heap dump that were dropped because they were listed already. */
+  int duplicatedRootCount() {
+    return roots.duplicatedCount;
+  }
+
+  RootType rootType(int rootIndex) {
+    return ROOT_TYPES[rootTypes[rootIndex]];
+  }
+
+  long rootId(int rootIndex) {
+    return rootIds[rootIndex];
+  }
+
+  int rootThreadSerialNumber(int rootIndex) {
+    return rootThreadSerialNumbers[rootIndex];
+  }
+
+  /** Ordinal of the thread instance with the provided serial number, or {@link #NO_OBJECT}. */
+  int threadOrdinal(int threadSerialNumber) {
+    Long threadId = threadIdsBySerialNumber.get(threadSerialNumber);
+    return threadId == null ? NO_OBJECT : ordinalOf((long) threadId);
+  }
+
+  /**
+   * Ordinals of every {@link #CLASS} object, in increasing order. Read from the class table, so
+   * much faster than looking for classes among all objects.
+   */
+  int[] classOrdinals() {
+    Object[] classes = classesById.getValues();
+    int[] ordinals = new int[classes.length];
+    int count = 0;
+    for (Object indexedClass : classes) {
+      int ordinal = ordinalOf(((IndexedClass) indexedClass).id);
+      if (ordinal != NO_OBJECT) {
+        ordinals[count++] = ordinal;
+      }
+    }
+    Arrays.sort(ordinals, 0, count);
+    return count == ordinals.length ? ordinals : Arrays.copyOf(ordinals, count);
+  }
+
+  IndexedClass classById(long classId) {
+    return classesById.get(classId);
+  }
+
+  /** The class record of a {@link #CLASS} object. */
+  IndexedClass asClass(int ordinal) {
+    return classesById.get(objectIds.get(ordinal));
+  }
+
+  IndexedClass superClassOf(IndexedClass indexedClass) {
+    return indexedClass.superClassId == 0 ? null : classesById.get(indexedClass.superClassId);
+  }
+
+  /** Id of the class loader of a {@link #CLASS} object, 0 for the boot class loader. */
+  long classLoaderIdOf(int ordinal) {
+    buffer.setPosition(objectPositions.get(ordinal) + idSize + 4 + idSize);
+    return readId();
+  }
+
+  /**
+   * The class of an {@link #INSTANCE} or an {@link #OBJECT_ARRAY}, null for classes and primitive
+   * arrays.
+   */
+  IndexedClass classOf(int ordinal) {
+    switch (objectKinds.get(ordinal)) {
+      case INSTANCE:
+        buffer.setPosition(objectPositions.get(ordinal) + idSize + 4);
+        return classesById.get(readId());
+      case OBJECT_ARRAY:
+        buffer.setPosition(objectPositions.get(ordinal) + idSize + 4 + 4);
+        return classesById.get(readId());
+      default:
+        return null;
+    }
+  }
+
+  /** Same as {@link com.squareup.haha.perflib.Instance#getClassObj()} class name. */
+  String classNameOf(int ordinal) {
+    switch (objectKinds.get(ordinal)) {
+      case CLASS:
+        return "java.lang.Class";
+      case PRIMITIVE_ARRAY:
+        return Type.getClassNameOfPrimitiveArray(primitiveArrayType(ordinal));
+      default:
+        IndexedClass indexedClass = classOf(ordinal);
+        return indexedClass == null ? null : indexedClass.name;
+    }
+  }
+
+  /**
+   * Ordinals of all the instances of classes with the provided name. Only available for the class
+   * names that were passed to the {@link HprofIndexer}.
+   */
+  int[] instancesOf(String className) {
+    long[] instanceIds = instanceIdsByClassName.get(className);
+    if (instanceIds == null) {
+      throw new IllegalArgumentException(className + " instances were not indexed");
+    }
+    int[] ordinals = new int[instanceIds.length];
+    int count = 0;
+    for (long instanceId : instanceIds) {
+      int ordinal = ordinalOf(instanceId);
+      if (ordinal != NO_OBJECT) {
+        ordinals[count++] = ordinal;
+      }
+    }
+    return count == ordinals.length ? ordinals : Arrays.copyOf(ordinals, count);
+  }
+
+  /**
+   * Decodes the fields of an {@link #INSTANCE}, in the same order as {@link
+   * ClassInstance#getValues()}: fields declared by the class first, then its superclass fields.
+   * {@link Type#OBJECT} values are the {@link Long} id of the referenced object, or null.
+   */
+  List<ClassInstance.FieldValue> instanceFieldValues(int ordinal) {
+    IndexedClass indexedClass = classOf(ordinal);
+    List<ClassInstance.FieldValue> values = new ArrayList<>();
+    buffer.setPosition(objectPositions.get(ordinal) + idSize + 4 + idSize + 4);
+    while (indexedClass != null) {
+      for (Field field : indexedClass.fields) {
+        values.add(new ClassInstance.FieldValue(field, readValue(field.getType())));
+      }
+      indexedClass = superClassOf(indexedClass);
+    }
+    return values;
+  }
+
+  /** Decodes the strings of this view, see {@link HahaHelper#asString(HprofIndex, int)}. */
+  StringDecoder strings() {
+    if (strings == null) {
+      strings = new StringDecoder(this);
+    }
+    return strings;
+  }
+
+  /** The instance fields of {@code indexedClass} and of its superclasses. */
+  FieldLayout fieldLayout(IndexedClass indexedClass) {
+    return layoutsByClassId.get(indexedClass.id);
+  }
+
+  /** Whether an {@link #INSTANCE} has a field with that name. */
+  boolean hasField(int ordinal, String fieldName) {
+    return fieldLayout(classOf(ordinal)).indexOf(fieldName) != -1;
+  }
+
+  /**
+   * Reads the first {@link Type#OBJECT} field with that name of an {@link #INSTANCE}, without
+   * decoding its other fields. Returns the id of the referenced object or 0.
+   */
+  long readReferenceField(int ordinal, String fieldName) {
+    return readReferenceField(ordinal,
+        fieldLayout(classOf(ordinal)).offsetOf(fieldName, Type.OBJECT));
+  }
+
+  /** Same as {@link #readReferenceField(int, String)} for an int field. */
+  int readIntField(int ordinal, String fieldName) {
+    return readIntField(ordinal, fieldLayout(classOf(ordinal)).offsetOf(fieldName, Type.INT));
+  }
+
+  /**
+   * Reads the int at {@code byteOffset} in the field values of an {@link #INSTANCE}, see {@link
+   * FieldLayout#offsets}.
+   */
+  int readIntField(int ordinal, int byteOffset) {
+    buffer.setPosition(objectPositions.get(ordinal) + idSize + 4 + idSize + 4 + byteOffset);
+    return buffer.readInt();
+  }
+
+  /**
+   * Same as {@link #readIntField(int, int)} for a {@link Type#OBJECT} field, returns the id of the
+   * referenced object or 0.
+   */
+  long readReferenceField(int ordinal, int byteOffset) {
+    buffer.setPosition(objectPositions.get(ordinal) + idSize + 4 + idSize + 4 + byteOffset);
+    return readId();
+  }
+
+  int arrayLength(int ordinal) {
+    buffer.setPosition(objectPositions.get(ordinal) + idSize + 4);
+    return buffer.readInt();
+  }
+
+  Type primitiveArrayType(int ordinal) {
+    buffer.setPosition(objectPositions.get(ordinal) + idSize + 4 + 4);
+    return Type.getType(buffer.readByte());
+  }
+
+  /** Ids of the elements of an {@link #OBJECT_ARRAY}, 0 for null elements. */
+  long[] objectArrayElements(int ordinal) {
+    buffer.setPosition(objectPositions.get(ordinal) + idSize + 4);
+    int length = buffer.readInt();
+    readId();
+    long[] elements = new long[length];
+    for (int i = 0; i < length; i++) {
+      elements[i] = readId();
+    }
+    return elements;
+  }
+
+  char[] readChars(int ordinal, int offset, int count) {
+    buffer.setPosition(objectPositions.get(ordinal) + idSize + 4 + 4 + 1 + offset * 2L);
+    char[] chars = new char[count];
+    for (int i = 0; i < count; i++) {
+      chars[i] = buffer.readChar();
+    }
+    return chars;
+  }
+
+  /** Same as {@link String#hashCode()} of {@link #readChars(int, int, int)}, without copying. */
+  int hashChars(int ordinal, int offset, int count) {
+    buffer.setPosition(objectPositions.get(ordinal) + idSize + 4 + 4 + 1 + offset * 2L);
+    int hash = 0;
+    for (int i = 0; i < count; i++) {
+      hash = 31 * hash + buffer.readChar();
+    }
+    return hash;
+  }
+
+  /**
+   * Hash of the unsigned values of {@link #readBytes(int, int)}, computed like {@link
+   * String#hashCode()} so that it matches it for ASCII strings.
+   */
+  int hashBytes(int ordinal, int count) {
+    buffer.setPosition(objectPositions.get(ordinal) + idSize + 4 + 4 + 1);
+    int hash = 0;
+    for (int i = 0; i < count; i++) {
+      hash = 31 * hash + (buffer.readByte() & 0xff);
+    }
+    return hash;
+  }
+
+  byte[] readBytes(int ordinal, int count) {
+    buffer.setPosition(objectPositions.get(ordinal) + idSize + 4 + 4 + 1);
+    byte[] bytes = new byte[count];
+    buffer.read(bytes);
+    return bytes;
+  }
+
+  /** Same as {@link com.squareup.haha.perflib.Instance#getSize()}. */
+  int shallowSize(int ordinal) {
+    switch (objectKinds.get(ordinal)) {
+      case CLASS:
+        int size = 0;
+        for (Field field : asClass(ordinal).staticFields) {
+          size += typeSize(field.getType());
+        }
+        return size;
+      case INSTANCE:
+        IndexedClass indexedClass = classOf(ordinal);
+        return indexedClass == null ? 0 : indexedClass.instanceSize;
+      case OBJECT_ARRAY:
+        return arrayLength(ordinal) * idSize;
+      default:
+        return arrayLength(ordinal) * primitiveArrayType(ordinal).getSize();
+    }
+  }
+
+  /** Same format as {@link Object#toString()} on the corresponding HAHA values. */
+  String valueToString(Type type, Object value) {
+    if (value == null) {
+      return "null";
+    }
+    if (type != Type.OBJECT) {
+      return value.toString();
+    }
+    int ordinal = ordinalOf(value);
+    return ordinal == NO_OBJECT ? "null" : describe(ordinal);
+  }
+
+  /** Same format as {@link com.squareup.haha.perflib.Instance#toString()}. */
+  String describe(int ordinal) {
+    long uniqueId = objectIds.get(ordinal) & idSizeMask;
+    switch (objectKinds.get(ordinal)) {
+      case CLASS:
+        return asClass(ordinal).name.replace('/', '.');
+      case INSTANCE:
+        return String.format("%s@%d (0x%x)", classNameOf(ordinal), uniqueId, uniqueId);
+      default:
+        String className = classNameOf(ordinal);
+        if (className.endsWith("[]")) {
+          className = className.substring(0, className.length() - 2);
+        }
+        return String.format("%s[%d]@%d (0x%x)", className, arrayLength(ordinal), uniqueId,
+            uniqueId);
+    }
+  }
+
+  int typeSize(Type type) {
+    return type == Type.OBJECT ? idSize : type.getSize();
+  }
+
+  private Object readValue(Type type) {
+    switch (type) {
+      case OBJECT:
+        long id = readId();
+        return id == 0 ? null : id;
+      case BOOLEAN:
+        return buffer.readByte() != 0;
+      case CHAR:
+        return buffer.readChar();
+      case FLOAT:
+        return buffer.readFloat();
+      case DOUBLE:
+        return buffer.readDouble();
+      case BYTE:
+        return buffer.readByte();
+      case SHORT:
+        return buffer.readShort();
+      case INT:
+        return buffer.readInt();
+      case LONG:
+        return buffer.readLong();
+      default:
+        throw new IllegalStateException("Unexpected type " + type);
+    }
+  }
+
+  private long readId() {
+    // Same sign extension as HprofParser, so that ids match the ones from a HAHA Snapshot.
+    switch (idSize) {
+      case 1:
+        return buffer.readByte();
+      case 2:
+        return buffer.readShort();
+      case 4:
+        return buffer.readInt();
+      case 8:
+        return buffer.readLong();
+      default:
+        throw new IllegalArgumentException("ID Length must be 1, 2, 4, or 8");
+    }
+  }
+}
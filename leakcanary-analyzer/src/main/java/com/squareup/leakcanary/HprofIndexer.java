@@ -0,0 +1,542 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.Field;
+import com.squareup.haha.perflib.RootType;
+import com.squareup.haha.perflib.Type;
+import com.squareup.haha.perflib.io.HprofBuffer;
+import com.squareup.haha.trove.TIntObjectHashMap;
+import com.squareup.haha.trove.TLongObjectHashMap;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads a heap dump in a single streaming pass and builds an {@link HprofIndex}, without
+ * materializing a {@link com.squareup.haha.perflib.Snapshot}. Records are read the same way as
+ * {@link com.squareup.haha.perflib.HprofParser} reads them, but only the position of each object
+ * record is kept. Class dumps, GC roots and the instances of a few tracked classes are kept in
+ * primitive arrays.
+ */
+final class HprofIndexer {
+
+  private static final int STRING_IN_UTF8 = 0x01;
+  private static final int LOAD_CLASS = 0x02;
+  private static final int HEAP_DUMP = 0x0c;
+  private static final int HEAP_DUMP_SEGMENT = 0x1c;
+
+  private static final int ROOT_UNKNOWN = 0xff;
+  private static final int ROOT_JNI_GLOBAL = 0x01;
+  private static final int ROOT_JNI_LOCAL = 0x02;
+  private static final int ROOT_JAVA_FRAME = 0x03;
+  private static final int ROOT_NATIVE_STACK = 0x04;
+  private static final int ROOT_STICKY_CLASS = 0x05;
+  private static final int ROOT_THREAD_BLOCK = 0x06;
+  private static final int ROOT_MONITOR_USED = 0x07;
+  private static final int ROOT_THREAD_OBJECT = 0x08;
+  private static final int ROOT_INTERNED_STRING = 0x89;
+  private static final int ROOT_FINALIZING = 0x8a;
+  private static final int ROOT_DEBUGGER = 0x8b;
+  private static final int ROOT_REFERENCE_CLEANUP = 0x8c;
+  private static final int ROOT_VM_INTERNAL = 0x8d;
+  private static final int ROOT_JNI_MONITOR = 0x8e;
+  private static final int ROOT_UNREACHABLE = 0x90;
+
+  private static final int CLASS_DUMP = 0x20;
+  private static final int INSTANCE_DUMP = 0x21;
+  private static final int OBJECT_ARRAY_DUMP = 0x22;
+  private static final int PRIMITIVE_ARRAY_DUMP = 0x23;
+  private static final int PRIMITIVE_ARRAY_NODATA = 0xc3;
+  private static final int HEAP_DUMP_INFO = 0xfe;
+
+  private final HprofBuffer buffer;
+  private final Set<String> trackedClassNames;
+  private int idSize;
+
+  private final TLongObjectHashMap<String> strings = new TLongObjectHashMap<>();
+  private final TLongObjectHashMap<String> classNames = new TLongObjectHashMap<>();
+  private final TLongObjectHashMap<LongList> trackedInstancesByClassId = new TLongObjectHashMap<>();
+  private final Map<String, LongList> trackedInstancesByClassName = new LinkedHashMap<>();
+
+  private int objectCount;
+  private LongArray objectIds;
+  private LongArray objectPositions;
+  private ByteArray objectKinds;
+
+  private final GcRootSet uniqueRoots = new GcRootSet();
+  private int duplicatedRootCount;
+  private int rootCount;
+  private byte[] rootTypes = new byte[256];
+  private long[] rootIds = new long[256];
+  private int[] rootThreadSerialNumbers = new int[256];
+
+  private final TLongObjectHashMap<IndexedClass> classesById = new TLongObjectHashMap<>();
+  private final List<IndexedClass> classes = new ArrayList<>();
+  private final TIntObjectHashMap<Long> threadIdsBySerialNumber = new TIntObjectHashMap<>();
+
+  /**
+   * @param trackedClassNames names of the classes for which {@link HprofIndex#instancesOf(String)}
+   * should be available.
+   */
+  HprofIndexer(HprofBuffer buffer, Set<String> trackedClassNames) {
+    this(buffer, trackedClassNames, ScratchSpace.onHeap());
+  }
+
+  /** @param space where the id, position and kind of each object are kept. */
+  HprofIndexer(HprofBuffer buffer, Set<String> trackedClassNames, ScratchSpace space) {
+    this.buffer = buffer;
+    this.trackedClassNames = trackedClassNames;
+    objectIds = space.newLongArray(1024);
+    objectPositions = space.newLongArray(1024);
+    objectKinds = space.newByteArray(1024);
+    for (String className : trackedClassNames) {
+      trackedInstancesByClassName.put(className, new LongList());
+    }
+  }
+
+  HprofIndex index() {
+    readNullTerminatedString();
+    idSize = buffer.readInt();
+    // Timestamp.
+    buffer.readLong();
+
+    while (buffer.hasRemaining()) {
+      int tag = readUnsignedByte();
+      // Time offset.
+      buffer.readInt();
+      long length = readUnsignedInt();
+
+      switch (tag) {
+        case STRING_IN_UTF8:
+          long stringId = readId();
+          strings.put(stringId, readUtf8((int) length - idSize));
+          break;
+        case LOAD_CLASS:
+          loadClass();
+          break;
+        case HEAP_DUMP:
+        case HEAP_DUMP_SEGMENT:
+          loadHeapDump(length);
+          break;
+        default:
+          skip(length);
+      }
+    }
+
+    Map<String, long[]> instanceIdsByClassName = new LinkedHashMap<>();
+    for (Map.Entry<String, LongList> entry : trackedInstancesByClassName.entrySet()) {
+      instanceIdsByClassName.put(entry.getKey(), entry.getValue().toArray());
+    }
+
+    sortObjects();
+    HprofIndex.ObjectTable objects =
+        new HprofIndex.ObjectTable(objectCount, objectIds, objectPositions, objectKinds);
+    HprofIndex.RootTable roots = new HprofIndex.RootTable(rootCount, rootTypes, rootIds,
+        rootThreadSerialNumbers, threadIdsBySerialNumber, duplicatedRootCount);
+    return new HprofIndex(buffer, idSize, objects, classesById, computeFieldLayouts(),
+        instanceIdsByClassName, roots);
+  }
+
+  private void loadClass() {
+    // Serial number.
+    buffer.readInt();
+    long classId = readId();
+    // Stack trace serial number.
+    buffer.readInt();
+    String className = strings.get(readId());
+    classNames.put(classId, className);
+    if (trackedClassNames.contains(className)) {
+      trackedInstancesByClassId.put(classId, trackedInstancesByClassName.get(className));
+    }
+  }
+
+  private void loadHeapDump(long length) {
+    long end = buffer.position() + length;
+    while (buffer.position() < end) {
+      int tag = readUnsignedByte();
+      long recordPosition = buffer.position();
+      switch (tag) {
+        case ROOT_UNKNOWN:
+          addRoot(RootType.UNKNOWN, readId(), 0);
+          break;
+        case ROOT_JNI_GLOBAL:
+          addRoot(RootType.NATIVE_STATIC, readId(), 0);
+          // JNI global ref id.
+          readId();
+          break;
+        case ROOT_JNI_LOCAL:
+          addRoot(RootType.NATIVE_LOCAL, readId(), buffer.readInt());
+          // Frame number.
+          buffer.readInt();
+          break;
+        case ROOT_JAVA_FRAME:
+          addRoot(RootType.JAVA_LOCAL, readId(), buffer.readInt());
+          // Frame number.
+          buffer.readInt();
+          break;
+        case ROOT_NATIVE_STACK:
+          addRoot(RootType.NATIVE_STACK, readId(), buffer.readInt());
+          break;
+        case ROOT_STICKY_CLASS:
+          addRoot(RootType.SYSTEM_CLASS, readId(), 0);
+          break;
+        case ROOT_THREAD_BLOCK:
+          addRoot(RootType.THREAD_BLOCK, readId(), buffer.readInt());
+          break;
+        case ROOT_MONITOR_USED:
+          addRoot(RootType.BUSY_MONITOR, readId(), 0);
+          break;
+        case ROOT_THREAD_OBJECT:
+          long threadId = readId();
+          threadIdsBySerialNumber.put(buffer.readInt(), threadId);
+          // Stack trace serial number.
+          buffer.readInt();
+          break;
+        case ROOT_INTERNED_STRING:
+          addRoot(RootType.INTERNED_STRING, readId(), 0);
+          break;
+        case ROOT_FINALIZING:
+          addRoot(RootType.FINALIZING, readId(), 0);
+          break;
+        case ROOT_DEBUGGER:
+          addRoot(RootType.DEBUGGER, readId(), 0);
+          break;
+        case ROOT_REFERENCE_CLEANUP:
+          addRoot(RootType.REFERENCE_CLEANUP, readId(), 0);
+          break;
+        case ROOT_VM_INTERNAL:
+          addRoot(RootType.VM_INTERNAL, readId(), 0);
+          break;
+        case ROOT_JNI_MONITOR:
+          addRoot(RootType.NATIVE_MONITOR, readId(), buffer.readInt());
+          // Stack depth.
+          buffer.readInt();
+          break;
+        case ROOT_UNREACHABLE:
+          addRoot(RootType.UNREACHABLE, readId(), 0);
+          break;
+        case CLASS_DUMP:
+          loadClassDump(recordPosition);
+          break;
+        case INSTANCE_DUMP:
+          loadInstanceDump(recordPosition);
+          break;
+        case OBJECT_ARRAY_DUMP:
+          long arrayId = readId();
+          // Stack trace serial number.
+          buffer.readInt();
+          int arrayLength = buffer.readInt();
+          // Array class id.
+          readId();
+          skip((long) arrayLength * idSize);
+          addObject(arrayId, recordPosition, HprofIndex.OBJECT_ARRAY);
+          break;
+        case PRIMITIVE_ARRAY_DUMP:
+          long primitiveArrayId = readId();
+          // Stack trace serial number.
+          buffer.readInt();
+          int primitiveArrayLength = buffer.readInt();
+          Type type = Type.getType(readUnsignedByte());
+          skip((long) primitiveArrayLength * type.getSize());
+          addObject(primitiveArrayId, recordPosition, HprofIndex.PRIMITIVE_ARRAY);
+          break;
+        case PRIMITIVE_ARRAY_NODATA:
+          throw new IllegalArgumentException("Don't know how to load a nodata array");
+        case HEAP_DUMP_INFO:
+          // Heap id.
+          buffer.readInt();
+          // Heap name string id.
+          readId();
+          break;
+        default:
+          throw new IllegalArgumentException(
+              "loadHeapDump loop with unknown tag " + tag + " with " + (end - buffer.position())
+                  + " bytes possibly remaining");
+      }
+    }
+  }
+
+  private void loadClassDump(long recordPosition) {
+    long classId = readId();
+    // Stack trace serial number.
+    buffer.readInt();
+    long superClassId = readId();
+    // Class loader id, signers id, protection domain id, 2 reserved ids.
+    skip(5L * idSize);
+    int instanceSize = buffer.readInt();
+
+    int constantPoolCount = readUnsignedShort();
+    for (int i = 0; i < constantPoolCount; i++) {
+      // Constant pool index.
+      readUnsignedShort();
+      skip(typeSize(Type.getType(readUnsignedByte())));
+    }
+
+    int staticFieldCount = readUnsignedShort();
+    Field[] staticFields = new Field[staticFieldCount];
+    Object[] staticValues = new Object[staticFieldCount];
+    for (int i = 0; i < staticFieldCount; i++) {
+      String name = strings.get(readId());
+      Type type = Type.getType(readUnsignedByte());
+      staticFields[i] = new Field(type, name);
+      staticValues[i] = readValue(type);
+    }
+
+    int fieldCount = readUnsignedShort();
+    Field[] fields = new Field[fieldCount];
+    for (int i = 0; i < fieldCount; i++) {
+      String name = strings.get(readId());
+      Type type = Type.getType(readUnsignedByte());
+      fields[i] = new Field(type, name);
+    }
+
+    IndexedClass indexedClass =
+        new IndexedClass(classId, classNames.get(classId), superClassId, instanceSize,
+            staticFields, staticValues, fields);
+    classesById.put(classId, indexedClass);
+    classes.add(indexedClass);
+    addObject(classId, recordPosition, HprofIndex.CLASS);
+  }
+
+  /** Superclasses may be dumped after their subclasses, so layouts are computed at the end. */
+  private TLongObjectHashMap<FieldLayout> computeFieldLayouts() {
+    TLongObjectHashMap<FieldLayout> layoutsByClassId = new TLongObjectHashMap<>();
+    List<Field> fields = new ArrayList<>();
+    for (IndexedClass indexedClass : classes) {
+      fields.clear();
+      for (IndexedClass clazz = indexedClass; clazz != null;
+          clazz = clazz.superClassId == 0 ? null : classesById.get(clazz.superClassId)) {
+        Collections.addAll(fields, clazz.fields);
+      }
+      int[] offsets = new int[fields.size()];
+      int offset = 0;
+      for (int i = 0; i < offsets.length; i++) {
+        offsets[i] = offset;
+        offset += typeSize(fields.get(i).getType());
+      }
+      layoutsByClassId.put(indexedClass.id,
+          new FieldLayout(fields.toArray(new Field[fields.size()]), offsets));
+    }
+    return layoutsByClassId;
+  }
+
+  private void loadInstanceDump(long recordPosition) {
+    long instanceId = readId();
+    // Stack trace serial number.
+    buffer.readInt();
+    long classId = readId();
+    int remaining = buffer.readInt();
+    skip(remaining);
+    addObject(instanceId, recordPosition, HprofIndex.INSTANCE);
+    LongList trackedInstances = trackedInstancesByClassId.get(classId);
+    if (trackedInstances != null) {
+      trackedInstances.add(instanceId);
+    }
+  }
+
+  private void addObject(long id, long position, byte kind) {
+    if (objectCount == objectIds.size()) {
+      int newLength = objectCount * 2;
+      objectIds = objectIds.grow(newLength);
+      objectPositions = objectPositions.grow(newLength);
+      objectKinds = objectKinds.grow(newLength);
+    }
+    objectIds.set(objectCount, id);
+    objectPositions.set(objectCount, position);
+    objectKinds.set(objectCount, kind);
+    objectCount++;
+  }
+
+  /**
+   * Marshmallow heap dumps list the same roots many times, only the first occurrence of each root
+   * type and object id is kept.
+   */
+  private void addRoot(RootType rootType, long id, int threadSerialNumber) {
+    if (!uniqueRoots.add(rootType.ordinal(), id)) {
+      duplicatedRootCount++;
+      return;
+    }
+    if (rootCount == rootIds.length) {
+      int newLength = rootCount * 2;
+      rootTypes = Arrays.copyOf(rootTypes, newLength);
+      rootIds = Arrays.copyOf(rootIds, newLength);
+      rootThreadSerialNumbers = Arrays.copyOf(rootThreadSerialNumbers, newLength);
+    }
+    rootTypes[rootCount] = (byte) rootType.ordinal();
+    rootIds[rootCount] = id;
+    rootThreadSerialNumbers[rootCount] = threadSerialNumber;
+    rootCount++;
+  }
+
+  /**
+   * Heap dumps usually list objects by increasing address, so this is most often a single linear
+   * check.
+   */
+  private void sortObjects() {
+    for (int i = 1; i < objectCount; i++) {
+      if (objectIds.get(i - 1) > objectIds.get(i)) {
+        quickSort(0, objectCount - 1);
+        return;
+      }
+    }
+  }
+
+  private void quickSort(int low, int high) {
+    while (high - low > 16) {
+      int middle = (low + high) >>> 1;
+      long pivot = objectIds.get(middle);
+      int i = low;
+      int j = high;
+      while (i <= j) {
+        while (objectIds.get(i) < pivot) {
+          i++;
+        }
+        while (objectIds.get(j) > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          swap(i++, j--);
+        }
+      }
+      // Recurse on the smaller side to bound the stack depth.
+      if (j - low < high - i) {
+        quickSort(low, j);
+        low = i;
+      } else {
+        quickSort(i, high);
+        high = j;
+      }
+    }
+    for (int i = low + 1; i <= high; i++) {
+      for (int j = i; j > low && objectIds.get(j - 1) > objectIds.get(j); j--) {
+        swap(j - 1, j);
+      }
+    }
+  }
+
+  private void swap(int i, int j) {
+    long id = objectIds.get(i);
+    objectIds.set(i, objectIds.get(j));
+    objectIds.set(j, id);
+    long position = objectPositions.get(i);
+    objectPositions.set(i, objectPositions.get(j));
+    objectPositions.set(j, position);
+    byte kind = objectKinds.get(i);
+    objectKinds.set(i, objectKinds.get(j));
+    objectKinds.set(j, kind);
+  }
+
+  private Object readValue(Type type) {
+    switch (type) {
+      case OBJECT:
+        long id = readId();
+        return id == 0 ? null : id;
+      case BOOLEAN:
+        return buffer.readByte() != 0;
+      case CHAR:
+        return buffer.readChar();
+      case FLOAT:
+        return buffer.readFloat();
+      case DOUBLE:
+        return buffer.readDouble();
+      case BYTE:
+        return buffer.readByte();
+      case SHORT:
+        return buffer.readShort();
+      case INT:
+        return buffer.readInt();
+      case LONG:
+        return buffer.readLong();
+      default:
+        throw new IllegalStateException("Unexpected type " + type);
+    }
+  }
+
+  private int typeSize(Type type) {
+    return type == Type.OBJECT ? idSize : type.getSize();
+  }
+
+  private long readId() {
+    switch (idSize) {
+      case 1:
+        return buffer.readByte();
+      case 2:
+        return buffer.readShort();
+      case 4:
+        return buffer.readInt();
+      case 8:
+        return buffer.readLong();
+      default:
+        throw new IllegalArgumentException("ID Length must be 1, 2, 4, or 8");
+    }
+  }
+
+  private int readUnsignedByte() {
+    return buffer.readByte() & 0xff;
+  }
+
+  private int readUnsignedShort() {
+    return buffer.readShort() & 0xffff;
+  }
+
+  private long readUnsignedInt() {
+    return buffer.readInt() & 0xffffffffL;
+  }
+
+  private void skip(long byteCount) {
+    buffer.setPosition(buffer.position() + byteCount);
+  }
+
+  private String readNullTerminatedString() {
+    StringBuilder builder = new StringBuilder();
+    for (byte b = buffer.readByte(); b != 0; b = buffer.readByte()) {
+      builder.append((char) b);
+    }
+    return builder.toString();
+  }
+
+  private String readUtf8(int length) {
+    byte[] bytes = new byte[length];
+    buffer.read(bytes);
+    try {
+      return new String(bytes, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static final class LongList {
+    long[] values = new long[16];
+    int size;
+
+    void add(long value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+
+    long[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.Type;
+import java.util.Arrays;
+
+import static com.squareup.leakcanary.HprofIndex.NO_OBJECT;
+
+/**
+ * The objects that reference each object of an {@link HprofIndex}, stored as primitive adjacency
+ * arrays indexed by object ordinal. Every reference field, static field and array entry counts,
+ * the {@code referent} of {@link java.lang.ref.Reference} instances included: filtering out
+ * excluded references is up to the {@link ShortestPathFinder}, which walks this index backward
+ * from the leaking instances.
+ *
+ * An object that references another one through several fields is listed once per field.
+ */
+final class InboundReferences {
+
+  /** Objects that reference object i are in {@code parents[offsets[i]..offsets[i + 1]]}. */
+  private final int[] offsets;
+  private final int[] parents;
+
+  private InboundReferences(int[] offsets, int[] parents) {
+    this.offsets = offsets;
+    this.parents = parents;
+  }
+
+  /**
+   * Decodes every object twice: a first pass counts the parents of each object to size the arrays
+   * exactly, a second pass stores each parent in the slots of the object it references.
+   */
+  static InboundReferences build(HprofIndex index) {
+    int objectCount = index.objectCount();
+    int[] offsets = new int[objectCount + 1];
+    scan(index, offsets, null);
+    for (int ordinal = 0; ordinal < objectCount; ordinal++) {
+      offsets[ordinal + 1] += offsets[ordinal];
+    }
+    int[] parents = new int[offsets[objectCount]];
+    // Next free slot of each object in parents.
+    int[] next = Arrays.copyOf(offsets, objectCount);
+    scan(index, next, parents);
+    return new InboundReferences(offsets, parents);
+  }
+
+  /**
+   * Visits every reference between two indexed objects. When {@code parents} is null, counts the
+   * parents of each object in {@code slots[ordinal + 1]}. Otherwise stores the parent at {@code
+   * slots[ordinal]} and moves it to the next slot.
+   */
+  private static void scan(HprofIndex index, int[] slots, int[] parents) {
+    for (int ordinal = 0, objectCount = index.objectCount(); ordinal < objectCount; ordinal++) {
+      switch (index.kindAt(ordinal)) {
+        case HprofIndex.CLASS:
+          IndexedClass indexedClass = index.asClass(ordinal);
+          for (int i = 0; i < indexedClass.staticFields.length; i++) {
+            if (indexedClass.staticFields[i].getType() == Type.OBJECT) {
+              add(slots, parents, ordinal, index.ordinalOf(indexedClass.staticValues[i]));
+            }
+          }
+          break;
+        case HprofIndex.INSTANCE:
+          FieldLayout layout = index.fieldLayout(index.classOf(ordinal));
+          for (int i = 0; i < layout.fields.length; i++) {
+            if (layout.fields[i].getType() == Type.OBJECT) {
+              add(slots, parents, ordinal,
+                  index.ordinalOf(index.readReferenceField(ordinal, layout.offsets[i])));
+            }
+          }
+          break;
+        case HprofIndex.OBJECT_ARRAY:
+          for (long elementId : index.objectArrayElements(ordinal)) {
+            add(slots, parents, ordinal, index.ordinalOf(elementId));
+          }
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  private static void add(int[] slots, int[] parents, int parent, int reference) {
+    if (reference == NO_OBJECT) {
+      return;
+    }
+    if (parents == null) {
+      slots[reference + 1]++;
+    } else {
+      parents[slots[reference]++] = parent;
+    }
+  }
+
+  /** Index of the first parent of {@code ordinal}, see {@link #parentAt(int)}. */
+  int start(int ordinal) {
+    return offsets[ordinal];
+  }
+
+  /** Index after the last parent of {@code ordinal}, see {@link #parentAt(int)}. */
+  int end(int ordinal) {
+    return offsets[ordinal + 1];
+  }
+
+  int parentAt(int i) {
+    return parents[i];
+  }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.Field;
+
+/**
+ * A class dump record, as read by {@link HprofIndexer}. Static field values are decoded eagerly
+ * since there are few of them, instance field values are read from the heap dump on demand.
+ */
+final class IndexedClass {
+  final long id;
+  final String name;
+  /** 0 for java.lang.Object. */
+  final long superClassId;
+  final int instanceSize;
+  final Field[] staticFields;
+  /**
+   * Boxed primitives, or the {@link Long} id of the referenced object for {@link
+   * com.squareup.haha.perflib.Type#OBJECT} fields. Null for null references.
+   */
+  final Object[] staticValues;
+  /** Fields declared by this class only, in the order they appear in instance dumps. */
+  final Field[] fields;
+
+  IndexedClass(long id, String name, long superClassId, int instanceSize, Field[] staticFields,
+      Object[] staticValues, Field[] fields) {
+    this.id = id;
+    this.name = name;
+    this.superClassId = superClassId;
+    this.instanceSize = instanceSize;
+    this.staticFields = staticFields;
+    this.staticValues = staticValues;
+    this.fields = fields;
+  }
+}
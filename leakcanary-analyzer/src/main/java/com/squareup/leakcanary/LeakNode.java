@@ -15,19 +15,29 @@
  */
 package com.squareup.leakcanary;
 
-import com.squareup.haha.perflib.Instance;
-
 final class LeakNode {
   /** May be null. */
   final Exclusion exclusion;
-  final Instance instance;
+  /** Ordinal of the instance in the {@link HprofIndex}. */
+  final int instance;
   final LeakNode parent;
-  final LeakReference leakReference;
+  /**
+   * Type of the reference from the parent to this node, null when there is no known reference.
+   * The {@link LeakReference} is only built for nodes that end up in the leak trace.
+   */
+  final LeakTraceElement.Type referenceType;
+  /**
+   * Index of the static field, of the instance field in {@link FieldLayout#fields} or of the array
+   * entry that holds the reference in the parent.
+   */
+  final int referenceIndex;
 
-  LeakNode(Exclusion exclusion, Instance instance, LeakNode parent, LeakReference leakReference) {
+  LeakNode(Exclusion exclusion, int instance, LeakNode parent,
+      LeakTraceElement.Type referenceType, int referenceIndex) {
     this.exclusion = exclusion;
     this.instance = instance;
     this.parent = parent;
-    this.leakReference = leakReference;
+    this.referenceType = referenceType;
+    this.referenceIndex = referenceIndex;
   }
 }
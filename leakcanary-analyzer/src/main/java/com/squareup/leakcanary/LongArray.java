@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static com.squareup.leakcanary.ScratchSpace.SEGMENT_MASK;
+import static com.squareup.leakcanary.ScratchSpace.SEGMENT_SHIFT;
+
+/** An array of longs allocated by a {@link ScratchSpace}, on the heap or in a scratch file. */
+abstract class LongArray {
+
+  static LongArray onHeap(int size) {
+    return new Heap(new long[size]);
+  }
+
+  abstract int size();
+
+  abstract long get(int index);
+
+  abstract void set(int index, long value);
+
+  /**
+   * An array of at least {@code minSize} values that starts with the values of this one. Arrays on
+   * the heap are copied, mapped arrays map more segments and return themselves.
+   */
+  abstract LongArray grow(int minSize);
+
+  /** Same as {@link Arrays#binarySearch(long[], int, int, long)} from 0 to {@code count}. */
+  abstract int binarySearch(int count, long key);
+
+  private static final class Heap extends LongArray {
+    private final long[] values;
+
+    Heap(long[] values) {
+      this.values = values;
+    }
+
+    @Override int size() {
+      return values.length;
+    }
+
+    @Override long get(int index) {
+      return values[index];
+    }
+
+    @Override void set(int index, long value) {
+      values[index] = value;
+    }
+
+    @Override LongArray grow(int minSize) {
+      return minSize <= values.length ? this
+          : new Heap(Arrays.copyOf(values, Math.max(minSize, values.length * 2)));
+    }
+
+    @Override int binarySearch(int count, long key) {
+      return Arrays.binarySearch(values, 0, count, key);
+    }
+  }
+
+  static final class Mapped extends LongArray {
+    private final ScratchSpace.Segments segments;
+    private ByteBuffer[] buffers;
+    private int size;
+
+    Mapped(ScratchSpace.Segments segments, int size) {
+      this.segments = segments;
+      buffers = segments.ensureCapacity((long) size << 3);
+      this.size = size;
+    }
+
+    @Override int size() {
+      return size;
+    }
+
+    @Override long get(int index) {
+      long offset = (long) index << 3;
+      return buffers[(int) (offset >>> SEGMENT_SHIFT)].getLong((int) (offset & SEGMENT_MASK));
+    }
+
+    @Override void set(int index, long value) {
+      long offset = (long) index << 3;
+      buffers[(int) (offset >>> SEGMENT_SHIFT)].putLong((int) (offset & SEGMENT_MASK), value);
+    }
+
+    @Override LongArray grow(int minSize) {
+      if (minSize > size) {
+        buffers = segments.ensureCapacity((long) minSize << 3);
+        size = (int) Math.min(Integer.MAX_VALUE, ((long) buffers.length << SEGMENT_SHIFT) >>> 3);
+      }
+      return this;
+    }
+
+    @Override int binarySearch(int count, long key) {
+      int low = 0;
+      int high = count - 1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        long value = get(middle);
+        if (value < key) {
+          low = middle + 1;
+        } else if (value > key) {
+          high = middle - 1;
+        } else {
+          return middle;
+        }
+      }
+      return -(low + 1);
+    }
+  }
+}
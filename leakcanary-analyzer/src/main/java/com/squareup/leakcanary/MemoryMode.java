@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+/** Where {@link HeapAnalyzer} keeps the state it needs for every object of a heap dump. */
+public enum MemoryMode {
+  /** On the Java heap. The fastest, as long as the heap dump is small enough for the heap. */
+  HEAP,
+
+  /**
+   * In memory mapped scratch files next to the heap dump, deleted once the analysis is done: the
+   * object index, the visit state and the parent pointers of the path search. The kernel pages
+   * them in and out, so heap dumps larger than the Java heap can be analyzed, but more slowly.
+   * Retained sizes are then always computed with {@link RetainedSizeMode#REACHABILITY}, since
+   * {@link RetainedSizeMode#DOMINATOR_TREE} parses the whole heap dump on the heap, and paths are
+   * always searched {@link PathSearchMode#FORWARD}.
+   */
+  SCRATCH_FILES,
+
+  /**
+   * {@link #HEAP} when the state estimated from the size of the heap dump fits in a share of
+   * {@link Runtime#maxMemory()}, {@link #SCRATCH_FILES} otherwise.
+   */
+  AUTOMATIC
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+/** How {@link HeapAnalyzer} searches for the shortest path from the GC roots to a leak. */
+public enum PathSearchMode {
+  /**
+   * Breadth first traversal from all the GC roots until every leaking instance is reached. Often
+   * visits most of the heap before reaching an instance that sits deep in the object graph.
+   */
+  FORWARD,
+
+  /**
+   * Indexes the inbound references of every object first, then searches backward from each
+   * leaking instance and forward from the GC roots until the two searches meet, so only the
+   * objects close to either end are visited. The path is as short as a {@link #FORWARD} one, but
+   * may go through other objects when several paths have the same length. Leaks that can only be
+   * reached through excluded references, and requests for more than one path per leak, fall back
+   * to {@link #FORWARD}.
+   */
+  BIDIRECTIONAL
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.Field;
+import com.squareup.haha.perflib.RootType;
+import com.squareup.haha.perflib.Type;
+import com.squareup.haha.trove.TIntObjectHashMap;
+import com.squareup.haha.trove.TLongObjectHashMap;
+import java.util.Arrays;
+
+import static com.squareup.leakcanary.HprofIndex.NO_OBJECT;
+
+/**
+ * Strong references between the objects of an {@link HprofIndex}, stored as primitive adjacency
+ * arrays indexed by object ordinal. The referent of {@link java.lang.ref.Reference} instances is
+ * not a strong reference and is left out, like HAHA does when computing dominators. Instances and
+ * object arrays reference their class, a class references its class loader and a class loader
+ * references the classes it loaded, so a class is never counted as retained by one of its
+ * instances while its class loader is still reachable.
+ *
+ * Used to compute the retained size of a leaking instance without a dominator tree: an object is
+ * retained if it is reachable from the leaking instance but no longer reachable from the GC roots
+ * once the leaking instance is removed.
+ *
+ * The adjacency arrays and the sets of objects come from a {@link ScratchSpace}.
+ */
+final class ReferenceGraph {
+
+  private final HprofIndex index;
+  private final ScratchSpace space;
+  /** References of object i are in {@code references[offsets[i]..offsets[i + 1]]}. */
+  private final IntArray offsets;
+  private final IntArray references;
+
+  private ReferenceGraph(HprofIndex index, ScratchSpace space, IntArray offsets,
+      IntArray references) {
+    this.index = index;
+    this.space = space;
+    this.offsets = offsets;
+    this.references = references;
+  }
+
+  static ReferenceGraph build(HprofIndex index) {
+    return build(index, ScratchSpace.onHeap());
+  }
+
+  static ReferenceGraph build(HprofIndex index, ScratchSpace space) {
+    int objectCount = index.objectCount();
+    TIntObjectHashMap<IntStack> classesByLoader = classesByLoader(index);
+    IntArray offsets = space.newIntArray(objectCount + 1);
+    IntArray references = space.newIntArray(objectCount);
+    int referenceCount = 0;
+    TLongObjectHashMap<Boolean> referenceClasses = new TLongObjectHashMap<>();
+    for (int ordinal = 0; ordinal < objectCount; ordinal++) {
+      offsets.set(ordinal, referenceCount);
+      switch (index.kindAt(ordinal)) {
+        case HprofIndex.CLASS:
+          IndexedClass indexedClass = index.asClass(ordinal);
+          for (int i = 0; i < indexedClass.staticFields.length; i++) {
+            if (indexedClass.staticFields[i].getType() == Type.OBJECT) {
+              int reference = index.ordinalOf(indexedClass.staticValues[i]);
+              if (reference != NO_OBJECT) {
+                references = references.grow(referenceCount + 1);
+                references.set(referenceCount++, reference);
+              }
+            }
+          }
+          int classLoader = index.ordinalOf(index.classLoaderIdOf(ordinal));
+          if (classLoader != NO_OBJECT) {
+            references = references.grow(referenceCount + 1);
+            references.set(referenceCount++, classLoader);
+          }
+          break;
+        case HprofIndex.INSTANCE:
+          IndexedClass instanceClass = index.classOf(ordinal);
+          int instanceClassOrdinal = index.ordinalOf(instanceClass.id);
+          if (instanceClassOrdinal != NO_OBJECT) {
+            references = references.grow(referenceCount + 1);
+            references.set(referenceCount++, instanceClassOrdinal);
+          }
+          // A class loader keeps the classes it loaded.
+          IntStack loadedClasses = classesByLoader.get(ordinal);
+          if (loadedClasses != null) {
+            references = references.grow(referenceCount + loadedClasses.size);
+            for (int i = 0; i < loadedClasses.size; i++) {
+              references.set(referenceCount++, loadedClasses.values[i]);
+            }
+          }
+          boolean skipReferent = isReferenceClass(index, instanceClass, referenceClasses);
+          FieldLayout layout = index.fieldLayout(instanceClass);
+          for (int i = 0; i < layout.fields.length; i++) {
+            Field field = layout.fields[i];
+            if (field.getType() != Type.OBJECT || (skipReferent && field.getName()
+                .equals("referent"))) {
+              continue;
+            }
+            int reference =
+                index.ordinalOf(index.readReferenceField(ordinal, layout.offsets[i]));
+            if (reference != NO_OBJECT) {
+              references = references.grow(referenceCount + 1);
+              references.set(referenceCount++, reference);
+            }
+          }
+          break;
+        case HprofIndex.OBJECT_ARRAY:
+          int arrayClassOrdinal = index.ordinalOf(index.classOf(ordinal).id);
+          if (arrayClassOrdinal != NO_OBJECT) {
+            references = references.grow(referenceCount + 1);
+            references.set(referenceCount++, arrayClassOrdinal);
+          }
+          for (long elementId : index.objectArrayElements(ordinal)) {
+            int reference = index.ordinalOf(elementId);
+            if (reference != NO_OBJECT) {
+              references = references.grow(referenceCount + 1);
+              references.set(referenceCount++, reference);
+            }
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    offsets.set(objectCount, referenceCount);
+    return new ReferenceGraph(index, space, offsets, references);
+  }
+
+  /**
+   * The objects that are reachable from {@code retainer}, but not reachable from the GC roots
+   * without going through {@code retainer}. Two passes over the graph: the first marks everything
+   * reachable from the roots while never entering {@code retainer}, the second collects what is
+   * reachable from {@code retainer} and was not marked.
+   */
+  BitArray retainedSet(int retainer) {
+    BitArray reachable = new BitArray(space, index.objectCount());
+    reachable.set(retainer);
+    IntStack stack = new IntStack();
+    for (int i = 0, rootCount = index.rootCount(); i < rootCount; i++) {
+      RootType rootType = index.rootType(i);
+      if (rootType == RootType.UNREACHABLE || rootType == RootType.INVALID_TYPE) {
+        continue;
+      }
+      int root = index.ordinalOf(index.rootId(i));
+      if (root != NO_OBJECT && !reachable.get(root)) {
+        reachable.set(root);
+        stack.push(root);
+      }
+    }
+    markReachable(stack, reachable);
+
+    BitArray retained = new BitArray(space, index.objectCount());
+    retained.set(retainer);
+    stack.push(retainer);
+    while (!stack.isEmpty()) {
+      int ordinal = stack.pop();
+      for (int i = offsets.get(ordinal), end = offsets.get(ordinal + 1); i < end; i++) {
+        int reference = references.get(i);
+        if (!reachable.get(reference) && !retained.get(reference)) {
+          retained.set(reference);
+          stack.push(reference);
+        }
+      }
+    }
+    return retained;
+  }
+
+  /** Sum of the shallow sizes of the objects in {@code objects}. */
+  long shallowSize(BitArray objects) {
+    long size = 0;
+    for (int ordinal = objects.nextSetBit(0); ordinal >= 0;
+        ordinal = objects.nextSetBit(ordinal + 1)) {
+      size += index.shallowSize(ordinal);
+    }
+    return size;
+  }
+
+  private void markReachable(IntStack stack, BitArray reachable) {
+    while (!stack.isEmpty()) {
+      int ordinal = stack.pop();
+      for (int i = offsets.get(ordinal), end = offsets.get(ordinal + 1); i < end; i++) {
+        int reference = references.get(i);
+        if (!reachable.get(reference)) {
+          reachable.set(reference);
+          stack.push(reference);
+        }
+      }
+    }
+  }
+
+  /** Ordinals of the classes loaded by each class loader, by class loader ordinal. */
+  private static TIntObjectHashMap<IntStack> classesByLoader(HprofIndex index) {
+    TIntObjectHashMap<IntStack> classesByLoader = new TIntObjectHashMap<>();
+    for (int ordinal : index.classOrdinals()) {
+      int classLoader = index.ordinalOf(index.classLoaderIdOf(ordinal));
+      if (classLoader != NO_OBJECT) {
+        IntStack loadedClasses = classesByLoader.get(classLoader);
+        if (loadedClasses == null) {
+          loadedClasses = new IntStack();
+          classesByLoader.put(classLoader, loadedClasses);
+        }
+        loadedClasses.push(ordinal);
+      }
+    }
+    return classesByLoader;
+  }
+
+  private static boolean isReferenceClass(HprofIndex index, IndexedClass indexedClass,
+      TLongObjectHashMap<Boolean> referenceClasses) {
+    if (indexedClass == null) {
+      return false;
+    }
+    Boolean isReferenceClass = referenceClasses.get(indexedClass.id);
+    if (isReferenceClass == null) {
+      isReferenceClass = false;
+      for (IndexedClass clazz = indexedClass; clazz != null; clazz = index.superClassOf(clazz)) {
+        if (java.lang.ref.Reference.class.getName().equals(clazz.name)) {
+          isReferenceClass = true;
+          break;
+        }
+      }
+      referenceClasses.put(indexedClass.id, isReferenceClass);
+    }
+    return isReferenceClass;
+  }
+
+  private static int[] grow(int[] array, int size) {
+    return size < array.length ? array : Arrays.copyOf(array, Math.max(16, size * 2));
+  }
+
+  private static final class IntStack {
+    int[] values = new int[256];
+    int size;
+
+    void push(int value) {
+      values = grow(values, size);
+      values[size++] = value;
+    }
+
+    int pop() {
+      return values[--size];
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+  }
+}
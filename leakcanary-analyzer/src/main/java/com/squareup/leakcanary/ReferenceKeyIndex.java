@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.nio.charset.Charset;
+
+import static com.squareup.leakcanary.HprofIndex.NO_OBJECT;
+
+/**
+ * Finds {@link KeyedWeakReference} instances by key. The keys are hashed from the raw content of
+ * their value arrays when the table is built, so that no string is decoded except the few
+ * candidates that have the same hash as a looked up key.
+ *
+ * Built right after the streaming pass of the {@link HprofIndexer}: key strings are often dumped
+ * after the references that point to them, so their content isn't known while streaming.
+ *
+ * Not thread safe, like the {@link HprofIndex} it reads from.
+ */
+final class ReferenceKeyIndex {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final HprofIndex index;
+  /** {@link KeyedWeakReference} ordinals that have a key, in heap dump order. */
+  private final int[] weakRefs;
+  private final int[] keyOrdinals;
+  /** Open addressing table of entry index + 1, 0 for empty slots. */
+  private final int[] slots;
+  private final int[] slotHashes;
+  private final int size;
+
+  private ReferenceKeyIndex(HprofIndex index, int[] weakRefs, int[] keyOrdinals, int[] slots,
+      int[] slotHashes, int size) {
+    this.index = index;
+    this.weakRefs = weakRefs;
+    this.keyOrdinals = keyOrdinals;
+    this.slots = slots;
+    this.slotHashes = slotHashes;
+    this.size = size;
+  }
+
+  static ReferenceKeyIndex build(HprofIndex index) {
+    int[] instances = index.instancesOf(KeyedWeakReference.class.getName());
+    int[] weakRefs = new int[instances.length];
+    int[] keyOrdinals = new int[instances.length];
+    int tableSize = Integer.highestOneBit(Math.max(instances.length, 1) * 2 - 1) << 1;
+    int[] slots = new int[tableSize];
+    int[] slotHashes = new int[tableSize];
+    int mask = tableSize - 1;
+    StringDecoder strings = index.strings();
+    int count = 0;
+    for (int weakRef : instances) {
+      int keyOrdinal = index.ordinalOf(index.readReferenceField(weakRef, "key"));
+      if (keyOrdinal == NO_OBJECT) {
+        continue;
+      }
+      weakRefs[count] = weakRef;
+      keyOrdinals[count] = keyOrdinal;
+      int hash = strings.hash(keyOrdinal);
+      // Linear probing keeps references with the same key in heap dump order.
+      int slot = mix(hash) & mask;
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = ++count;
+      slotHashes[slot] = hash;
+    }
+    return new ReferenceKeyIndex(index, weakRefs, keyOrdinals, slots, slotHashes, count);
+  }
+
+  /**
+   * Ordinal of the first {@link KeyedWeakReference} with that key in the heap dump, or {@link
+   * HprofIndex#NO_OBJECT}.
+   */
+  int find(String key) {
+    int charHash = key.hashCode();
+    int entry = find(key, charHash);
+    // Byte array strings hash their UTF-8 bytes, which only differ from chars for non ASCII keys.
+    int byteHash = byteHash(key);
+    if (byteHash != charHash) {
+      int byteEntry = find(key, byteHash);
+      if (entry == -1 || (byteEntry != -1 && byteEntry < entry)) {
+        entry = byteEntry;
+      }
+    }
+    return entry == -1 ? NO_OBJECT : weakRefs[entry];
+  }
+
+  /** Number of {@link KeyedWeakReference} instances that have a key. */
+  int size() {
+    return size;
+  }
+
+  private int find(String key, int hash) {
+    int mask = slots.length - 1;
+    for (int slot = mix(hash) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+      int entry = slots[slot] - 1;
+      if (slotHashes[slot] == hash && key.equals(index.strings().decode(keyOrdinals[entry]))) {
+        return entry;
+      }
+    }
+    return -1;
+  }
+
+  private static int byteHash(String key) {
+    int hash = 0;
+    for (byte b : key.getBytes(UTF_8)) {
+      hash = 31 * hash + (b & 0xff);
+    }
+    return hash;
+  }
+
+  private static int mix(int hash) {
+    hash *= 0x9E3779B9;
+    return hash ^ (hash >>> 16);
+  }
+}
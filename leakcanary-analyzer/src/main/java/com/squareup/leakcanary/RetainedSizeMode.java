@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+/** How {@link HeapAnalyzer} computes {@link AnalysisResult#retainedHeapSize}. */
+public enum RetainedSizeMode {
+  /**
+   * Computes the dominator tree of the whole heap with HAHA. This is the reference value, and
+   * it accounts for bitmaps held by native roots, but it requires parsing the whole heap dump
+   * into memory again once a leak is found.
+   */
+  DOMINATOR_TREE,
+
+  /**
+   * Only computes the set of objects that are reachable through the leaking instance and nowhere
+   * else, with two passes over the strong references of the heap dump. Much faster than
+   * {@link #DOMINATOR_TREE}, but bitmaps held by native roots are not accounted for.
+   */
+  REACHABILITY
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Allocates the arrays that hold state for every object of a heap dump: the {@link HprofIndex},
+ * the visit state and parent pointers of the {@link ShortestPathFinder} and the {@link
+ * ReferenceGraph}. Arrays are either regular arrays on the Java heap, or memory mapped scratch
+ * files that the kernel pages in and out, so that heap dumps larger than the Java heap can be
+ * analyzed. See {@link MemoryMode}.
+ *
+ * Closing the space deletes its scratch files. Mapped arrays must not be used once closed.
+ */
+final class ScratchSpace implements Closeable {
+
+  /** Scratch files are mapped in segments of 4MB, so that arrays grow without copying. */
+  static final int SEGMENT_SHIFT = 22;
+  static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+  static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+  private static final ScratchSpace ON_HEAP = new ScratchSpace(null, null);
+
+  /** Null on the heap. */
+  private final File directory;
+  private final String prefix;
+  private final List<Segments> files = new ArrayList<>();
+
+  private ScratchSpace(File directory, String prefix) {
+    this.directory = directory;
+    this.prefix = prefix;
+  }
+
+  static ScratchSpace onHeap() {
+    return ON_HEAP;
+  }
+
+  /**
+   * @param prefix start of the name of each scratch file, followed by a counter and {@code
+   * .scratch}.
+   */
+  static ScratchSpace mapped(File directory, String prefix) {
+    return new ScratchSpace(directory, prefix);
+  }
+
+  boolean isMapped() {
+    return directory != null;
+  }
+
+  LongArray newLongArray(int size) {
+    return isMapped() ? new LongArray.Mapped(newSegments(), size) : LongArray.onHeap(size);
+  }
+
+  IntArray newIntArray(int size) {
+    return isMapped() ? new IntArray.Mapped(newSegments(), size) : IntArray.onHeap(size);
+  }
+
+  ByteArray newByteArray(int size) {
+    return isMapped() ? new ByteArray.Mapped(newSegments(), size) : ByteArray.onHeap(size);
+  }
+
+  /** Deletes the scratch files. Does nothing on the heap. */
+  @Override public void close() {
+    synchronized (files) {
+      for (Segments segments : files) {
+        segments.delete();
+      }
+      files.clear();
+    }
+  }
+
+  private Segments newSegments() {
+    synchronized (files) {
+      File file = new File(directory, prefix + "." + files.size() + ".scratch");
+      Segments segments = new Segments(file);
+      files.add(segments);
+      return segments;
+    }
+  }
+
+  /**
+   * A scratch file mapped one {@link #SEGMENT_SIZE} segment at a time. The file starts empty and
+   * grows as segments are mapped, so the bytes it holds start as zeros.
+   */
+  static final class Segments {
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private ByteBuffer[] buffers = new ByteBuffer[0];
+
+    Segments(File file) {
+      this.file = file;
+      randomAccessFile = open(file);
+    }
+
+    /** Maps segments until at least {@code byteCount} bytes are mapped, returns all of them. */
+    ByteBuffer[] ensureCapacity(long byteCount) {
+      int segmentCount = (int) ((byteCount + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+      if (segmentCount > buffers.length) {
+        ByteBuffer[] newBuffers = Arrays.copyOf(buffers, segmentCount);
+        try {
+          FileChannel channel = randomAccessFile.getChannel();
+          for (int i = buffers.length; i < newBuffers.length; i++) {
+            newBuffers[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * SEGMENT_SIZE,
+                SEGMENT_SIZE).order(ByteOrder.nativeOrder());
+          }
+        } catch (IOException e) {
+          throw new RuntimeException("Could not map scratch file " + file, e);
+        }
+        buffers = newBuffers;
+      }
+      return buffers;
+    }
+
+    /**
+     * The mappings stay valid until they are garbage collected, deleting the file only removes
+     * its name.
+     */
+    void delete() {
+      try {
+        randomAccessFile.close();
+      } catch (IOException ignored) {
+      }
+      if (!file.delete()) {
+        file.deleteOnExit();
+      }
+    }
+
+    private static RandomAccessFile open(File file) {
+      try {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(0);
+        return randomAccessFile;
+      } catch (IOException e) {
+        throw new RuntimeException("Could not create scratch file " + file, e);
+      }
+    }
+  }
+}
@@ -15,25 +15,26 @@
  */
 package com.squareup.leakcanary;
 
-import com.squareup.haha.perflib.ArrayInstance;
-import com.squareup.haha.perflib.ClassInstance;
-import com.squareup.haha.perflib.ClassObj;
 import com.squareup.haha.perflib.Field;
-import com.squareup.haha.perflib.HahaSpy;
-import com.squareup.haha.perflib.Instance;
-import com.squareup.haha.perflib.RootObj;
-import com.squareup.haha.perflib.RootType;
-import com.squareup.haha.perflib.Snapshot;
 import com.squareup.haha.perflib.Type;
+import com.squareup.haha.trove.TIntObjectHashMap;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.Deque;
-import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.squareup.leakcanary.HahaHelper.isPrimitiveOrWrapperArray;
 import static com.squareup.leakcanary.HahaHelper.isPrimitiveWrapper;
 import static com.squareup.leakcanary.HahaHelper.threadName;
+import static com.squareup.leakcanary.HprofIndex.NO_OBJECT;
 import static com.squareup.leakcanary.LeakTraceElement.Type.ARRAY_ENTRY;
 import static com.squareup.leakcanary.LeakTraceElement.Type.INSTANCE_FIELD;
 import static com.squareup.leakcanary.LeakTraceElement.Type.LOCAL;
@@ -45,98 +46,616 @@ import static com.squareup.leakcanary.LeakTraceElement.Type.STATIC_FIELD;
  * Finds the shortest path from a leaking reference to a gc root, ignoring excluded
  * refs first and then including the ones that are not "always ignorable" as needed if no path is
  * found.
+ *
+ * GC roots are not nodes of the path: the objects they refer to are enqueued directly. Objects are
+ * decoded from the {@link HprofIndex} as they are visited.
+ *
+ * The traversal is level synchronous: all the nodes of the current level are expanded, then their
+ * children are enqueued in the order of the level, so that the first parent in breadth first order
+ * always wins. Expanding a level can be spread over several threads, each decoding objects with its
+ * own {@link HprofIndex}, and still yields the exact same paths as a single threaded traversal.
+ *
+ * When more than one path per leaking reference is requested, leaking references can be enqueued
+ * again after they were first reached, through different parents. Each time they are reached
+ * through a new reference, that path is kept, up to the requested number of paths. The leaking
+ * references are still only expanded once, so the other paths come from the same traversal.
+ *
+ * With {@link InboundReferences}, each leaking reference is first searched bidirectionally over
+ * the references that are not excluded: backward from the leaking reference and forward from the
+ * GC roots, expanding the smaller frontier one level at a time until they meet. Leaking references
+ * that can't be reached that way go through the regular traversal, which handles exclusions.
+ *
+ * Every {@link #PROGRESS_INTERVAL} visited nodes or so, the {@link AnalyzerProgressListener} is
+ * notified and may cancel the search: the leaking references that were not reached yet then get
+ * no leaking node, and {@link #canceled()} returns true.
+ *
+ * The visited sets come from a {@link ScratchSpace}. When it is mapped, the parent of each visited
+ * node is also written to a {@link ParentTable}, and queued nodes only hold a copy of their parent
+ * without its own parent: the nodes of the visited part of the graph are not kept on the heap, and
+ * the paths are rebuilt from the table once found.
  */
 final class ShortestPathFinder {
 
+  /** Levels smaller than this are expanded on the calling thread. */
+  private static final int MIN_PARALLEL_LEVEL_SIZE = 512;
+  /** Number of nodes a worker claims at once when expanding a level in parallel. */
+  private static final int PARALLEL_CHUNK_SIZE = 128;
+  /** Number of visited nodes between two progress updates. Large levels are expanded in slices. */
+  static final int PROGRESS_INTERVAL = 8192;
+
   private final ExcludedRefs excludedRefs;
+  private final int pathsPerLeak;
+  private final AnalyzerProgressListener listener;
+  private final ScratchSpace space;
   private final Deque<LeakNode> toVisitQueue;
   private final Deque<LeakNode> toVisitIfNoPathQueue;
-  private final LinkedHashSet<Instance> toVisitSet;
-  private final LinkedHashSet<Instance> toVisitIfNoPathSet;
-  private final LinkedHashSet<Instance> visitedSet;
+  /** Sets of object ordinals, dense since ordinals go from 0 to the number of objects. */
+  private BitArray toVisitSet;
+  private BitArray toVisitIfNoPathSet;
+  private BitArray visitedSet;
+  /** Null unless the scratch space is mapped. */
+  private ParentTable parentTable;
+  private HprofIndex index;
+  private ClassExclusions classExclusions;
   private boolean canIgnoreStrings;
+  /** Leaking references that can still be reached through other paths. */
+  private BitArray wantsMorePathsSet;
+  private long visitedNodeCount;
+  private long enqueuedNodeCount;
+  private int peakQueueSize;
+  private long nextProgressNodeCount;
+  private boolean canceled;
 
-  ShortestPathFinder(ExcludedRefs excludedRefs) {
+  /**
+   * @param pathsPerLeak maximum number of paths to find for each leaking reference, see {@link
+   * Result#otherLeakingNodes}.
+   * @param space where the visit state of each object is kept, see {@link MemoryMode}.
+   */
+  ShortestPathFinder(ExcludedRefs excludedRefs, int pathsPerLeak,
+      AnalyzerProgressListener listener, ScratchSpace space) {
+    if (pathsPerLeak < 1) {
+      throw new IllegalArgumentException("pathsPerLeak must be at least 1, not " + pathsPerLeak);
+    }
     this.excludedRefs = excludedRefs;
+    this.pathsPerLeak = pathsPerLeak;
+    this.listener = listener;
+    this.space = space;
     toVisitQueue = new ArrayDeque<>();
     toVisitIfNoPathQueue = new ArrayDeque<>();
-    toVisitSet = new LinkedHashSet<>();
-    toVisitIfNoPathSet = new LinkedHashSet<>();
-    visitedSet = new LinkedHashSet<>();
   }
 
   static final class Result {
     final LeakNode leakingNode;
     final boolean excludingKnownLeaks;
+    /**
+     * Leaking nodes of the next shortest paths, which differ from {@link #leakingNode} and from
+     * each other by at least one reference. Only paths with the same {@link #excludingKnownLeaks}
+     * are kept. Empty unless more than one path per leak was requested.
+     */
+    final List<LeakNode> otherLeakingNodes;
 
-    Result(LeakNode leakingNode, boolean excludingKnownLeaks) {
+    Result(LeakNode leakingNode, boolean excludingKnownLeaks, List<LeakNode> otherLeakingNodes) {
       this.leakingNode = leakingNode;
       this.excludingKnownLeaks = excludingKnownLeaks;
+      this.otherLeakingNodes = otherLeakingNodes;
+    }
+  }
+
+  /**
+   * Finds the shortest path to each of the leaking references in a single traversal. Leaking
+   * references are visited like any other node once reached, since other leaking references may
+   * only be reachable through them.
+   *
+   * @return one result per leaking reference, in the same order.
+   */
+  Result[] findPaths(HprofIndex index, int[] leakingRefs) {
+    return findPaths(index, null, leakingRefs, Collections.<HprofIndex>emptyList(), null);
+  }
+
+  /**
+   * Same as {@link #findPaths(HprofIndex, int[])}, searching each leaking reference
+   * bidirectionally first when {@code inboundReferences} isn't null and a single path per leak is
+   * requested, and expanding large levels of the traversal on {@code executor} when it isn't null.
+   *
+   * @param workerIndexes one view of {@code index} per concurrent task, see {@link
+   * HprofIndex#withBuffer(com.squareup.haha.perflib.io.HprofBuffer)}.
+   */
+  Result[] findPaths(HprofIndex index, InboundReferences inboundReferences, int[] leakingRefs,
+      List<HprofIndex> workerIndexes, ExecutorService executor) {
+    visitedNodeCount = 0;
+    enqueuedNodeCount = 0;
+    peakQueueSize = 0;
+    nextProgressNodeCount = PROGRESS_INTERVAL;
+    canceled = false;
+    if (inboundReferences == null || pathsPerLeak > 1) {
+      return traverse(index, leakingRefs, workerIndexes, executor);
+    }
+    Result[] results = new Result[leakingRefs.length];
+    int[] unreached = new int[leakingRefs.length];
+    int unreachedCount = 0;
+    setUp(index, leakingRefs);
+    List<LeakNode> rootNodes = rootNodes();
+    for (int i = 0; i < leakingRefs.length; i++) {
+      LeakNode leakingNode = canceled ? null
+          : findPathBidirectionally(leakingRefs[i], rootNodes, inboundReferences);
+      if (leakingNode != null) {
+        results[i] = new Result(leakingNode, false, Collections.<LeakNode>emptyList());
+      } else if (canceled) {
+        results[i] = new Result(null, false, Collections.<LeakNode>emptyList());
+      } else {
+        unreached[unreachedCount++] = i;
+      }
     }
+    tearDown();
+
+    if (unreachedCount > 0) {
+      int[] unreachedRefs = new int[unreachedCount];
+      for (int i = 0; i < unreachedCount; i++) {
+        unreachedRefs[i] = leakingRefs[unreached[i]];
+      }
+      Result[] unreachedResults = traverse(index, unreachedRefs, workerIndexes, executor);
+      for (int i = 0; i < unreachedCount; i++) {
+        results[unreached[i]] = unreachedResults[i];
+      }
+    }
+    return results;
+  }
+
+  /** Number of objects whose references were followed by the last call to findPaths. */
+  long visitedNodeCount() {
+    return visitedNodeCount;
   }
 
-  Result findPath(Snapshot snapshot, Instance leakingRef) {
-    clearState();
-    canIgnoreStrings = !isString(leakingRef);
+  /** Number of objects queued to be visited by the last call to findPaths. */
+  long enqueuedNodeCount() {
+    return enqueuedNodeCount;
+  }
+
+  /** Largest number of objects waiting to be visited at once during the last call to findPaths. */
+  int peakQueueSize() {
+    return peakQueueSize;
+  }
 
-    enqueueGcRoots(snapshot);
+  /** Whether the listener canceled the last call to findPaths before all paths were found. */
+  boolean canceled() {
+    return canceled;
+  }
 
-    boolean excludingKnownLeaks = false;
-    LeakNode leakingNode = null;
-    while (!toVisitQueue.isEmpty() || !toVisitIfNoPathQueue.isEmpty()) {
-      LeakNode node;
+  private Result[] traverse(HprofIndex index, int[] leakingRefs, List<HprofIndex> workerIndexes,
+      ExecutorService executor) {
+    setUp(index, leakingRefs);
+    int[] targets = leakingRefs.clone();
+    Arrays.sort(targets);
+    LeakNode[][] leakingNodes = new LeakNode[targets.length][pathsPerLeak];
+    int[] pathCounts = new int[targets.length];
+    boolean[] excludingKnownLeaks = new boolean[targets.length];
+    int targetsLeft = countDistinct(targets);
+    if (pathsPerLeak > 1) {
+      for (int target : targets) {
+        wantsMorePathsSet.set(target);
+      }
+    }
+
+    Children children = new Children();
+    enqueueGcRoots(children);
+    enqueue(children);
+
+    boolean visitingExcludedRefs = false;
+    List<LeakNode> toExpand = new ArrayList<>();
+    while (targetsLeft > 0
+        && !canceled
+        && (!toVisitQueue.isEmpty() || !toVisitIfNoPathQueue.isEmpty())) {
+      List<LeakNode> level;
       if (!toVisitQueue.isEmpty()) {
-        node = toVisitQueue.poll();
+        level = new ArrayList<>(toVisitQueue);
+        toVisitQueue.clear();
       } else {
-        node = toVisitIfNoPathQueue.poll();
+        LeakNode node = toVisitIfNoPathQueue.poll();
         if (node.exclusion == null) {
           throw new IllegalStateException("Expected node to have an exclusion " + node);
         }
-        excludingKnownLeaks = true;
+        if (!visitingExcludedRefs) {
+          // Other paths would go through known leaks, unlike the paths already found.
+          for (int target = 0; target < targets.length; target++) {
+            if (pathCounts[target] > 0 && wantsMorePathsSet.get(targets[target])) {
+              wantsMorePathsSet.clear(targets[target]);
+              targetsLeft--;
+            }
+          }
+        }
+        visitingExcludedRefs = true;
+        level = Collections.singletonList(node);
       }
 
-      // Termination
-      if (node.instance == leakingRef) {
-        leakingNode = node;
+      toExpand.clear();
+      for (LeakNode node : level) {
+        // Termination
+        int target = Arrays.binarySearch(targets, node.instance);
+        if (target >= 0 && pathCounts[target] < pathsPerLeak
+            && (pathCounts[target] == 0 || wantsMorePathsSet.get(node.instance))
+            && !isKnownPath(leakingNodes[target], pathCounts[target], node)) {
+          if (pathCounts[target] == 0) {
+            excludingKnownLeaks[target] = visitingExcludedRefs;
+          }
+          leakingNodes[target][pathCounts[target]++] = node;
+          if (pathCounts[target] == pathsPerLeak) {
+            wantsMorePathsSet.clear(node.instance);
+            targetsLeft--;
+          } else if (pathCounts[target] == 1 && pathsPerLeak > 1 && visitingExcludedRefs) {
+            wantsMorePathsSet.clear(node.instance);
+            targetsLeft--;
+          }
+        }
+
+        if (!checkSeen(node)) {
+          toExpand.add(parentTable == null ? node : parentTable.record(node));
+        }
+      }
+      if (targetsLeft == 0) {
         break;
       }
 
-      if (checkSeen(node)) {
-        continue;
+      // Enqueuing each slice before expanding the next one keeps the order of the level.
+      for (int start = 0; start < toExpand.size() && !canceled; start += PROGRESS_INTERVAL) {
+        int end = Math.min(start + PROGRESS_INTERVAL, toExpand.size());
+        if (executor == null
+            || workerIndexes.isEmpty()
+            || end - start < MIN_PARALLEL_LEVEL_SIZE) {
+          children.clear();
+          expand(index, toExpand, start, end, children);
+          enqueue(children);
+        } else {
+          List<LeakNode> slice = toExpand.subList(start, end);
+          for (Children chunkChildren : expandInParallel(slice, workerIndexes, executor)) {
+            enqueue(chunkChildren);
+          }
+        }
+        visitedNodeCount += end - start;
+        checkCanceled();
       }
+    }
 
-      if (node.instance instanceof RootObj) {
-        visitRootObj(node);
-      } else if (node.instance instanceof ClassObj) {
-        visitClassObj(node);
-      } else if (node.instance instanceof ClassInstance) {
-        visitClassInstance(node);
-      } else if (node.instance instanceof ArrayInstance) {
-        visitArrayInstance(node);
-      } else {
-        throw new IllegalStateException("Unexpected type for " + node.instance);
+    if (parentTable != null) {
+      for (int target = 0; target < targets.length; target++) {
+        for (int i = 0; i < pathCounts[target]; i++) {
+          leakingNodes[target][i] = parentTable.attach(leakingNodes[target][i]);
+        }
+      }
+    }
+    tearDown();
+
+    Result[] results = new Result[leakingRefs.length];
+    for (int i = 0; i < leakingRefs.length; i++) {
+      int target = Arrays.binarySearch(targets, leakingRefs[i]);
+      List<LeakNode> otherLeakingNodes = pathCounts[target] <= 1
+          ? Collections.<LeakNode>emptyList()
+          : Arrays.asList(leakingNodes[target]).subList(1, pathCounts[target]);
+      results[i] = new Result(leakingNodes[target][0], excludingKnownLeaks[target],
+          otherLeakingNodes);
+    }
+    return results;
+  }
+
+  /**
+   * Whether {@code node} ends with the same reference as one of the paths already found. Several
+   * GC roots may hold the same instance, which yields identical leak traces.
+   */
+  private static boolean isKnownPath(LeakNode[] paths, int pathCount, LeakNode node) {
+    for (int i = 0; i < pathCount; i++) {
+      LeakNode path = paths[i];
+      if (path.parent == node.parent
+          && path.referenceType == node.referenceType
+          && path.referenceIndex == node.referenceIndex) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void setUp(HprofIndex index, int[] leakingRefs) {
+    toVisitQueue.clear();
+    toVisitIfNoPathQueue.clear();
+    int objectCount = index.objectCount();
+    toVisitSet = new BitArray(space, objectCount);
+    toVisitIfNoPathSet = new BitArray(space, objectCount);
+    visitedSet = new BitArray(space, objectCount);
+    wantsMorePathsSet = new BitArray(space, objectCount);
+    parentTable = space.isMapped() ? new ParentTable(space, objectCount) : null;
+    this.index = index;
+    classExclusions = ClassExclusions.compile(excludedRefs, index);
+    canIgnoreStrings = true;
+    for (int leakingRef : leakingRefs) {
+      if (isString(index, leakingRef)) {
+        canIgnoreStrings = false;
       }
     }
-    return new Result(leakingNode, excludingKnownLeaks);
   }
 
-  private void clearState() {
+  private void tearDown() {
+    index = null;
+    classExclusions = null;
     toVisitQueue.clear();
     toVisitIfNoPathQueue.clear();
-    toVisitSet.clear();
-    toVisitIfNoPathSet.clear();
-    visitedSet.clear();
+    toVisitSet = null;
+    toVisitIfNoPathSet = null;
+    visitedSet = null;
+    wantsMorePathsSet = null;
+    parentTable = null;
+  }
+
+  /** The objects held by GC roots through references that are not excluded, in root order. */
+  private List<LeakNode> rootNodes() {
+    Children children = new Children();
+    enqueueGcRoots(children);
+    List<LeakNode> rootNodes = new ArrayList<>();
+    BitSet rootSet = new BitSet();
+    for (int i = 0; i < children.size; i++) {
+      int child = children.instances[i];
+      if (children.exclusions[i] == null && !rootSet.get(child)) {
+        rootSet.set(child);
+        rootNodes.add(new LeakNode(null, child, children.parents[i], children.referenceTypes[i],
+            children.referenceIndexes[i]));
+      }
+    }
+    return rootNodes;
   }
 
-  private void enqueueGcRoots(Snapshot snapshot) {
-    for (RootObj rootObj : snapshot.getGCRoots()) {
-      switch (rootObj.getRootType()) {
+  /**
+   * Searches a path without excluded references, alternately expanding the smallest of the
+   * forward and backward frontiers by one level. Whichever side finds the first object that the
+   * other side already reached, no shorter path exists: all the paths up to the current depths
+   * would have met already.
+   *
+   * @return the leaking node of a shortest path, or null if there is no path without excluded
+   * references.
+   */
+  private LeakNode findPathBidirectionally(int leakingRef, List<LeakNode> rootNodes,
+      InboundReferences inboundReferences) {
+    TIntObjectHashMap<LeakNode> forwardNodes = new TIntObjectHashMap<>();
+    List<LeakNode> forwardLevel = new ArrayList<>();
+    for (LeakNode rootNode : rootNodes) {
+      forwardNodes.put(rootNode.instance, rootNode);
+      forwardLevel.add(rootNode);
+    }
+    LeakNode leakingRoot = forwardNodes.get(leakingRef);
+    if (leakingRoot != null) {
+      return leakingRoot;
+    }
+    TIntObjectHashMap<BackwardNode> backwardNodes = new TIntObjectHashMap<>();
+    List<BackwardNode> backwardLevel = new ArrayList<>();
+    BackwardNode leakingNode = new BackwardNode(leakingRef, null, null, -1);
+    backwardNodes.put(leakingRef, leakingNode);
+    backwardLevel.add(leakingNode);
+
+    Children children = new Children();
+    while (!forwardLevel.isEmpty() && !backwardLevel.isEmpty() && !checkCanceled()) {
+      peakQueueSize = Math.max(peakQueueSize, forwardLevel.size() + backwardLevel.size());
+      if (forwardLevel.size() <= backwardLevel.size()) {
+        visitedNodeCount += forwardLevel.size();
+        children.clear();
+        expand(index, forwardLevel, 0, forwardLevel.size(), children);
+        List<LeakNode> nextLevel = new ArrayList<>();
+        for (int i = 0; i < children.size; i++) {
+          int child = children.instances[i];
+          if (children.exclusions[i] != null || forwardNodes.get(child) != null) {
+            continue;
+          }
+          LeakNode node = new LeakNode(null, child, children.parents[i],
+              children.referenceTypes[i], children.referenceIndexes[i]);
+          BackwardNode meeting = backwardNodes.get(child);
+          if (meeting != null) {
+            return join(node, meeting);
+          }
+          forwardNodes.put(child, node);
+          nextLevel.add(node);
+          enqueuedNodeCount++;
+        }
+        forwardLevel = nextLevel;
+      } else {
+        visitedNodeCount += backwardLevel.size();
+        List<BackwardNode> nextLevel = new ArrayList<>();
+        for (BackwardNode node : backwardLevel) {
+          for (int i = inboundReferences.start(node.instance),
+              end = inboundReferences.end(node.instance); i < end; i++) {
+            int parent = inboundReferences.parentAt(i);
+            if (backwardNodes.get(parent) != null) {
+              continue;
+            }
+            BackwardNode parentNode = referenceTo(parent, node);
+            if (parentNode == null) {
+              continue;
+            }
+            LeakNode meeting = forwardNodes.get(parent);
+            if (meeting != null) {
+              return join(meeting, parentNode);
+            }
+            backwardNodes.put(parent, parentNode);
+            nextLevel.add(parentNode);
+            enqueuedNodeCount++;
+          }
+        }
+        backwardLevel = nextLevel;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The first reference from {@code parent} to {@code child} that the forward traversal would
+   * follow without exclusion, or null if there is none.
+   */
+  private BackwardNode referenceTo(int parent, BackwardNode child) {
+    if (isPrimitiveOrWrapperArray(index, parent) || isPrimitiveWrapper(index, parent)) {
+      return null;
+    }
+    if (canIgnoreStrings && isString(index, parent)) {
+      return null;
+    }
+    switch (index.kindAt(parent)) {
+      case HprofIndex.CLASS:
+        IndexedClass classObj = index.asClass(parent);
+        ClassExclusions.Entry classObjExclusions = classExclusions.forClass(classObj);
+        Exclusion[] ignoredStaticFields =
+            classObjExclusions == null ? null : classObjExclusions.staticFieldExclusions;
+        for (int i = 0; i < classObj.staticFields.length; i++) {
+          Field field = classObj.staticFields[i];
+          if (field.getType() == Type.OBJECT
+              && !field.getName().equals("$staticOverhead")
+              && (ignoredStaticFields == null || ignoredStaticFields[i] == null)
+              && index.ordinalOf(classObj.staticValues[i]) == child.instance) {
+            return new BackwardNode(parent, child, STATIC_FIELD, i);
+          }
+        }
+        return null;
+      case HprofIndex.INSTANCE:
+        IndexedClass indexedClass = index.classOf(parent);
+        ClassExclusions.Entry exclusions = classExclusions.forClass(indexedClass);
+        if (exclusions != null && exclusions.classExclusion != null) {
+          return null;
+        }
+        Exclusion[] ignoredFields = exclusions == null ? null : exclusions.fieldExclusions;
+        FieldLayout layout = index.fieldLayout(indexedClass);
+        long childId = index.idAt(child.instance);
+        for (int i = 0; i < layout.fields.length; i++) {
+          if (layout.fields[i].getType() == Type.OBJECT
+              && (ignoredFields == null || ignoredFields[i] == null)
+              && index.readReferenceField(parent, layout.offsets[i]) == childId) {
+            return new BackwardNode(parent, child, INSTANCE_FIELD, i);
+          }
+        }
+        return null;
+      case HprofIndex.OBJECT_ARRAY:
+        long[] elements = index.objectArrayElements(parent);
+        long elementId = index.idAt(child.instance);
+        for (int i = 0; i < elements.length; i++) {
+          if (elements[i] == elementId) {
+            return new BackwardNode(parent, child, ARRAY_ENTRY, i);
+          }
+        }
+        return null;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Notifies the listener if {@link #PROGRESS_INTERVAL} nodes were visited since the last time.
+   *
+   * @return whether the search was canceled.
+   */
+  private boolean checkCanceled() {
+    if (!canceled && visitedNodeCount >= nextProgressNodeCount) {
+      nextProgressNodeCount = visitedNodeCount + PROGRESS_INTERVAL;
+      listener.onNodesVisited(visitedNodeCount);
+      canceled = listener.isCanceled();
+    }
+    return canceled;
+  }
+
+  /** Appends the path from {@code backward} to the leaking reference to {@code forward}. */
+  private static LeakNode join(LeakNode forward, BackwardNode backward) {
+    LeakNode node = forward;
+    for (BackwardNode step = backward; step.next != null; step = step.next) {
+      node = new LeakNode(null, step.next.instance, node, step.referenceType, step.referenceIndex);
+    }
+    return node;
+  }
+
+  private static int countDistinct(int[] sortedValues) {
+    int count = 0;
+    for (int i = 0; i < sortedValues.length; i++) {
+      if (i == 0 || sortedValues[i] != sortedValues[i - 1]) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private void expand(HprofIndex index, List<LeakNode> nodes, int start, int end,
+      Children children) {
+    for (int i = start; i < end; i++) {
+      LeakNode node = nodes.get(i);
+      switch (index.kindAt(node.instance)) {
+        case HprofIndex.CLASS:
+          visitClassObj(index, node, children);
+          break;
+        case HprofIndex.INSTANCE:
+          visitClassInstance(index, node, children);
+          break;
+        case HprofIndex.OBJECT_ARRAY:
+        case HprofIndex.PRIMITIVE_ARRAY:
+          visitArrayInstance(index, node, children);
+          break;
+        default:
+          throw new IllegalStateException("Unexpected type for " + index.describe(node.instance));
+      }
+    }
+  }
+
+  /**
+   * Splits {@code nodes} in chunks that the workers claim in turn. Each worker only reads from its
+   * own index and the visited sets, which are not written to until all chunks are expanded.
+   *
+   * @return the children of each chunk, in the order of {@code nodes}.
+   */
+  private Children[] expandInParallel(final List<LeakNode> nodes, List<HprofIndex> workerIndexes,
+      ExecutorService executor) {
+    final int chunkCount = (nodes.size() + PARALLEL_CHUNK_SIZE - 1) / PARALLEL_CHUNK_SIZE;
+    final Children[] chunks = new Children[chunkCount];
+    final AtomicInteger nextChunk = new AtomicInteger();
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for (final HprofIndex workerIndex : workerIndexes) {
+      tasks.add(new Callable<Void>() {
+        @Override public Void call() {
+          int chunk;
+          while ((chunk = nextChunk.getAndIncrement()) < chunkCount) {
+            Children children = new Children();
+            int start = chunk * PARALLEL_CHUNK_SIZE;
+            int end = Math.min(start + PARALLEL_CHUNK_SIZE, nodes.size());
+            expand(workerIndex, nodes, start, end, children);
+            chunks[chunk] = children;
+          }
+          return null;
+        }
+      });
+    }
+    try {
+      for (Future<Void> future : executor.invokeAll(tasks)) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+    return chunks;
+  }
+
+  private void enqueueGcRoots(Children children) {
+    // Apps have thousands of locals per thread, each thread is only resolved once.
+    TIntObjectHashMap<RootThread> threads = new TIntObjectHashMap<>();
+    // Serial numbers already resolved, the map holds null for the ones that have no thread.
+    BitSet resolvedThreads = new BitSet();
+    for (int i = 0, rootCount = index.rootCount(); i < rootCount; i++) {
+      int child = index.ordinalOf(index.rootId(i));
+      switch (index.rootType(i)) {
         case JAVA_LOCAL:
-          Instance thread = HahaSpy.allocatingThread(rootObj);
-          String threadName = threadName(thread);
-          Exclusion params = excludedRefs.threadNames.get(threadName);
-          if (params == null || !params.alwaysExclude) {
-            enqueue(params, null, rootObj, null);
+          RootThread thread =
+              rootThread(threads, resolvedThreads, index.rootThreadSerialNumber(i));
+          if (thread == null) {
+            addChild(index, children, null, null, child, null, -1);
+          } else if (thread.exclusion == null || !thread.exclusion.alwaysExclude) {
+            // We switch the parent node with the thread instance that holds
+            // the local reference.
+            addChild(index, children, thread.exclusion, thread.node, child, LOCAL, -1);
           }
           break;
         case INTERNED_STRING:
@@ -163,162 +682,297 @@ final class ShortestPathFinder {
           // Input or output parameters in native code.
         case NATIVE_STACK:
         case JAVA_STATIC:
-          enqueue(null, null, rootObj, null);
+          addChild(index, children, null, null, child, null, -1);
           break;
         default:
-          throw new UnsupportedOperationException("Unknown root type:" + rootObj.getRootType());
+          throw new UnsupportedOperationException("Unknown root type:" + index.rootType(i));
       }
     }
   }
 
-  private boolean checkSeen(LeakNode node) {
-    return !visitedSet.add(node.instance);
+  /** Null if there is no thread instance with that serial number in the heap dump. */
+  private RootThread rootThread(TIntObjectHashMap<RootThread> threads, BitSet resolvedThreads,
+      int threadSerialNumber) {
+    RootThread thread = threads.get(threadSerialNumber);
+    if (thread == null && !resolvedThreads.get(threadSerialNumber)) {
+      resolvedThreads.set(threadSerialNumber);
+      int threadOrdinal = index.threadOrdinal(threadSerialNumber);
+      if (threadOrdinal != NO_OBJECT) {
+        String threadName = threadName(index, threadOrdinal);
+        thread = new RootThread(new LeakNode(null, threadOrdinal, null, null, -1),
+            excludedRefs.threadNames.get(threadName));
+      }
+      threads.put(threadSerialNumber, thread);
+    }
+    return thread;
   }
 
-  private void visitRootObj(LeakNode node) {
-    RootObj rootObj = (RootObj) node.instance;
-    Instance child = rootObj.getReferredInstance();
-
-    if (rootObj.getRootType() == RootType.JAVA_LOCAL) {
-      Instance holder = HahaSpy.allocatingThread(rootObj);
-      // We switch the parent node with the thread instance that holds
-      // the local reference.
-      Exclusion exclusion = null;
-      if (node.exclusion != null) {
-        exclusion = node.exclusion;
-      }
-      LeakNode parent = new LeakNode(null, holder, null, null);
-      enqueue(exclusion, parent, child, new LeakReference(LOCAL, null, null));
-    } else {
-      enqueue(null, node, child, null);
+  private boolean checkSeen(LeakNode node) {
+    if (visitedSet.get(node.instance)) {
+      return true;
     }
+    visitedSet.set(node.instance);
+    return false;
   }
 
-  private void visitClassObj(LeakNode node) {
-    ClassObj classObj = (ClassObj) node.instance;
-    Map<String, Exclusion> ignoredStaticFields =
-        excludedRefs.staticFieldNameByClassName.get(classObj.getClassName());
-    for (Map.Entry<Field, Object> entry : classObj.getStaticFieldValues().entrySet()) {
-      Field field = entry.getKey();
+  private void visitClassObj(HprofIndex index, LeakNode node, Children children) {
+    IndexedClass classObj = index.asClass(node.instance);
+    ClassExclusions.Entry exclusions = classExclusions.forClass(classObj);
+    Exclusion[] ignoredStaticFields = exclusions == null ? null : exclusions.staticFieldExclusions;
+    for (int i = 0; i < classObj.staticFields.length; i++) {
+      Field field = classObj.staticFields[i];
       if (field.getType() != Type.OBJECT) {
         continue;
       }
-      String fieldName = field.getName();
-      if (fieldName.equals("$staticOverhead")) {
+      if (field.getName().equals("$staticOverhead")) {
         continue;
       }
-      Instance child = (Instance) entry.getValue();
-      boolean visit = true;
-      String fieldValue = entry.getValue() == null ? "null" : entry.getValue().toString();
-      LeakReference leakReference = new LeakReference(STATIC_FIELD, fieldName, fieldValue);
-      if (ignoredStaticFields != null) {
-        Exclusion params = ignoredStaticFields.get(fieldName);
-        if (params != null) {
-          visit = false;
-          if (!params.alwaysExclude) {
-            enqueue(params, node, child, leakReference);
-          }
-        }
-      }
-      if (visit) {
-        enqueue(null, node, child, leakReference);
+      int child = index.ordinalOf(classObj.staticValues[i]);
+      Exclusion params = ignoredStaticFields == null ? null : ignoredStaticFields[i];
+      if (params == null) {
+        addChild(index, children, null, node, child, STATIC_FIELD, i);
+      } else if (!params.alwaysExclude) {
+        addChild(index, children, params, node, child, STATIC_FIELD, i);
       }
     }
   }
 
-  private void visitClassInstance(LeakNode node) {
-    ClassInstance classInstance = (ClassInstance) node.instance;
-    Map<String, Exclusion> ignoredFields = new LinkedHashMap<>();
-    ClassObj superClassObj = classInstance.getClassObj();
+  private void visitClassInstance(HprofIndex index, LeakNode node, Children children) {
+    IndexedClass indexedClass = index.classOf(node.instance);
+    ClassExclusions.Entry exclusions = classExclusions.forClass(indexedClass);
     Exclusion classExclusion = null;
-    while (superClassObj != null) {
-      Exclusion params = excludedRefs.classNames.get(superClassObj.getClassName());
-      if (params != null) {
-        // true overrides null or false.
-        if (classExclusion == null || !classExclusion.alwaysExclude) {
-          classExclusion = params;
-        }
-      }
-      Map<String, Exclusion> classIgnoredFields =
-          excludedRefs.fieldNameByClassName.get(superClassObj.getClassName());
-      if (classIgnoredFields != null) {
-        ignoredFields.putAll(classIgnoredFields);
-      }
-      superClassObj = superClassObj.getSuperClassObj();
+    Exclusion[] ignoredFields = null;
+    if (exclusions != null) {
+      classExclusion = exclusions.classExclusion;
+      ignoredFields = exclusions.fieldExclusions;
     }
 
     if (classExclusion != null && classExclusion.alwaysExclude) {
       return;
     }
 
-    for (ClassInstance.FieldValue fieldValue : classInstance.getValues()) {
-      Exclusion fieldExclusion = classExclusion;
-      Field field = fieldValue.getField();
-      if (field.getType() != Type.OBJECT) {
+    FieldLayout layout = index.fieldLayout(indexedClass);
+    for (int i = 0; i < layout.fields.length; i++) {
+      if (layout.fields[i].getType() != Type.OBJECT) {
         continue;
       }
-      Instance child = (Instance) fieldValue.getValue();
-      String fieldName = field.getName();
-      Exclusion params = ignoredFields.get(fieldName);
+      Exclusion fieldExclusion = classExclusion;
+      int child = index.ordinalOf(index.readReferenceField(node.instance, layout.offsets[i]));
+      Exclusion params = ignoredFields == null ? null : ignoredFields[i];
       // If we found a field exclusion and it's stronger than a class exclusion
       if (params != null && (fieldExclusion == null || (params.alwaysExclude
           && !fieldExclusion.alwaysExclude))) {
         fieldExclusion = params;
       }
-      String value = fieldValue.getValue() == null ? "null" : fieldValue.getValue().toString();
-      enqueue(fieldExclusion, node, child, new LeakReference(INSTANCE_FIELD, fieldName, value));
+      addChild(index, children, fieldExclusion, node, child, INSTANCE_FIELD, i);
     }
   }
 
-  private void visitArrayInstance(LeakNode node) {
-    ArrayInstance arrayInstance = (ArrayInstance) node.instance;
-    Type arrayType = arrayInstance.getArrayType();
-    if (arrayType == Type.OBJECT) {
-      Object[] values = arrayInstance.getValues();
+  private void visitArrayInstance(HprofIndex index, LeakNode node, Children children) {
+    if (index.kindAt(node.instance) == HprofIndex.OBJECT_ARRAY) {
+      long[] values = index.objectArrayElements(node.instance);
       for (int i = 0; i < values.length; i++) {
-        Instance child = (Instance) values[i];
-        String name = Integer.toString(i);
-        String value = child == null ? "null" : child.toString();
-        enqueue(null, node, child, new LeakReference(ARRAY_ENTRY, name, value));
+        addChild(index, children, null, node, index.ordinalOf(values[i]), ARRAY_ENTRY,
+            i);
       }
     }
   }
 
-  private void enqueue(Exclusion exclusion, LeakNode parent, Instance child,
-      LeakReference leakReference) {
-    if (child == null) {
+  /**
+   * Filters out the children that will never be enqueued, based on their content. Only reads the
+   * visited sets, so that it can run concurrently.
+   */
+  private void addChild(HprofIndex index, Children children, Exclusion exclusion,
+      LeakNode parent, int child, LeakTraceElement.Type referenceType, int referenceIndex) {
+    if (child == NO_OBJECT) {
       return;
     }
-    if (isPrimitiveOrWrapperArray(child) || isPrimitiveWrapper(child)) {
+    if (isPrimitiveOrWrapperArray(index, child) || isPrimitiveWrapper(index, child)) {
       return;
     }
-    // Whether we want to visit now or later, we should skip if this is already to visit.
-    if (toVisitSet.contains(child)) {
+    if ((toVisitSet.get(child) || visitedSet.get(child)) && !wantsMorePathsSet.get(child)) {
       return;
     }
-    boolean visitNow = exclusion == null;
-    if (!visitNow && toVisitIfNoPathSet.contains(child)) {
+    if (canIgnoreStrings && isString(index, child)) {
       return;
     }
-    if (canIgnoreStrings && isString(child)) {
-      return;
+    children.add(exclusion, parent, child, referenceType, referenceIndex);
+  }
+
+  private void enqueue(Children children) {
+    for (int i = 0; i < children.size; i++) {
+      int child = children.instances[i];
+      Exclusion exclusion = children.exclusions[i];
+      boolean visitNow = exclusion == null;
+      if (!wantsMorePathsSet.get(child)) {
+        // Whether we want to visit now or later, we should skip if this is already to visit.
+        if (toVisitSet.get(child)) {
+          continue;
+        }
+        if (!visitNow && toVisitIfNoPathSet.get(child)) {
+          continue;
+        }
+        if (visitedSet.get(child)) {
+          continue;
+        }
+      }
+      LeakNode childNode = new LeakNode(exclusion, child, children.parents[i],
+          children.referenceTypes[i], children.referenceIndexes[i]);
+      if (visitNow) {
+        toVisitSet.set(child);
+        toVisitQueue.add(childNode);
+      } else {
+        toVisitIfNoPathSet.set(child);
+        toVisitIfNoPathQueue.add(childNode);
+      }
+      enqueuedNodeCount++;
     }
-    if (visitedSet.contains(child)) {
-      return;
+    peakQueueSize =
+        Math.max(peakQueueSize, toVisitQueue.size() + toVisitIfNoPathQueue.size());
+  }
+
+  private static boolean isString(HprofIndex index, int instance) {
+    return String.class.getName().equals(index.classNameOf(instance));
+  }
+
+  /**
+   * How each visited node was reached, indexed by ordinal. Written once per node, when it is
+   * visited, so it always holds the first path found to each node.
+   */
+  private static final class ParentTable {
+    private static final LeakTraceElement.Type[] REFERENCE_TYPES = LeakTraceElement.Type.values();
+
+    /** Ordinal of the parent, {@link HprofIndex#NO_OBJECT} for objects held by GC roots. */
+    private final IntArray parents;
+    /** Ordinal of the reference type + 1, 0 when there is none. */
+    private final ByteArray referenceTypes;
+    private final IntArray referenceIndexes;
+    /** Only the few references that go through exclusions have one. */
+    private final TIntObjectHashMap<Exclusion> exclusions = new TIntObjectHashMap<>();
+
+    ParentTable(ScratchSpace space, int objectCount) {
+      parents = space.newIntArray(objectCount);
+      referenceTypes = space.newByteArray(objectCount);
+      referenceIndexes = space.newIntArray(objectCount);
     }
-    LeakNode childNode = new LeakNode(exclusion, child, parent, leakReference);
-    if (visitNow) {
-      toVisitSet.add(child);
-      toVisitQueue.add(childNode);
-    } else {
-      toVisitIfNoPathSet.add(child);
-      toVisitIfNoPathQueue.add(childNode);
+
+    /** Records how {@code node} was reached, returns a copy of it without parent. */
+    LeakNode record(LeakNode node) {
+      int ordinal = node.instance;
+      parents.set(ordinal, node.parent == null ? NO_OBJECT : node.parent.instance);
+      referenceTypes.set(ordinal,
+          (byte) (node.referenceType == null ? 0 : node.referenceType.ordinal() + 1));
+      referenceIndexes.set(ordinal, node.referenceIndex);
+      if (node.exclusion != null) {
+        exclusions.put(ordinal, node.exclusion);
+      }
+      return new LeakNode(node.exclusion, ordinal, null, node.referenceType, node.referenceIndex);
+    }
+
+    /** Replaces the parent copy of a queued node with the full path to that parent. */
+    LeakNode attach(LeakNode node) {
+      // Local references are held by the thread of the GC root, which has no parent.
+      if (node.parent == null || node.referenceType == LOCAL) {
+        return node;
+      }
+      return new LeakNode(node.exclusion, node.instance, pathTo(node.parent.instance),
+          node.referenceType, node.referenceIndex);
+    }
+
+    private LeakNode pathTo(int ordinal) {
+      int[] path = new int[16];
+      int length = 0;
+      for (int node = ordinal; node != NO_OBJECT; node = parents.get(node)) {
+        if (length == path.length) {
+          path = Arrays.copyOf(path, length * 2);
+        }
+        path[length++] = node;
+        if (referenceType(node) == LOCAL) {
+          break;
+        }
+      }
+      LeakNode parent = null;
+      for (int i = length - 1; i >= 0; i--) {
+        int node = path[i];
+        LeakTraceElement.Type referenceType = referenceType(node);
+        if (referenceType == LOCAL) {
+          parent = new LeakNode(null, parents.get(node), null, null, -1);
+        }
+        parent = new LeakNode(exclusions.get(node), node, parent, referenceType,
+            referenceIndexes.get(node));
+      }
+      return parent;
+    }
+
+    private LeakTraceElement.Type referenceType(int ordinal) {
+      int referenceType = referenceTypes.get(ordinal);
+      return referenceType == 0 ? null : REFERENCE_TYPES[referenceType - 1];
     }
   }
 
-  private boolean isString(Instance instance) {
-    return instance.getClassObj() != null && instance.getClassObj()
-        .getClassName()
-        .equals(String.class.getName());
+  /** An object found by the backward search, with its reference toward the leaking reference. */
+  private static final class BackwardNode {
+    final int instance;
+    /** Null for the leaking reference. */
+    final BackwardNode next;
+    /** How {@link #instance} references {@code next.instance}. */
+    final LeakTraceElement.Type referenceType;
+    final int referenceIndex;
+
+    BackwardNode(int instance, BackwardNode next, LeakTraceElement.Type referenceType,
+        int referenceIndex) {
+      this.instance = instance;
+      this.next = next;
+      this.referenceType = referenceType;
+      this.referenceIndex = referenceIndex;
+    }
+  }
+
+  /** A thread that holds java local roots, with the exclusion that matches its name. */
+  private static final class RootThread {
+    /** Parent node of the locals of the thread. */
+    final LeakNode node;
+    /** May be null. */
+    final Exclusion exclusion;
+
+    RootThread(LeakNode node, Exclusion exclusion) {
+      this.node = node;
+      this.exclusion = exclusion;
+    }
+  }
+
+  /** Candidate children of expanded nodes, in the order they were found. */
+  private static final class Children {
+    Exclusion[] exclusions = new Exclusion[16];
+    LeakNode[] parents = new LeakNode[16];
+    int[] instances = new int[16];
+    LeakTraceElement.Type[] referenceTypes = new LeakTraceElement.Type[16];
+    int[] referenceIndexes = new int[16];
+    int size;
+
+    void add(Exclusion exclusion, LeakNode parent, int instance,
+        LeakTraceElement.Type referenceType, int referenceIndex) {
+      if (size == instances.length) {
+        int capacity = size * 2;
+        exclusions = Arrays.copyOf(exclusions, capacity);
+        parents = Arrays.copyOf(parents, capacity);
+        instances = Arrays.copyOf(instances, capacity);
+        referenceTypes = Arrays.copyOf(referenceTypes, capacity);
+        referenceIndexes = Arrays.copyOf(referenceIndexes, capacity);
+      }
+      exclusions[size] = exclusion;
+      parents[size] = parent;
+      instances[size] = instance;
+      referenceTypes[size] = referenceType;
+      referenceIndexes[size] = referenceIndex;
+      size++;
+    }
+
+    void clear() {
+      Arrays.fill(exclusions, 0, size, null);
+      Arrays.fill(parents, 0, size, null);
+      Arrays.fill(referenceTypes, 0, size, null);
+      size = 0;
+    }
   }
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.Type;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static com.squareup.leakcanary.HprofIndex.NO_OBJECT;
+
+/**
+ * Decodes {@link String} instances of an {@link HprofIndex}. The offsets of the {@code count},
+ * {@code value} and {@code offset} fields are looked up once in the {@link FieldLayout} of the
+ * String class, then each string is read straight from the heap dump without decoding its other
+ * fields.
+ *
+ * Decoded strings are kept in a small direct mapped cache indexed by object ordinal, since the same
+ * thread names and keys are decoded again and again.
+ *
+ * Not thread safe, like the {@link HprofIndex} it reads from.
+ */
+final class StringDecoder {
+
+  private static final int CACHE_SIZE = 4096;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final HprofIndex index;
+  private final int[] cachedOrdinals;
+  private final String[] cachedStrings;
+
+  /** Id of the class the field offsets below were resolved for, 0 until resolved. */
+  private long stringClassId;
+  private int countOffset;
+  private int valueOffset;
+  /** -1 as of Marshmallow, where substrings no longer share the char array of their parent. */
+  private int offsetOffset;
+
+  StringDecoder(HprofIndex index) {
+    this.index = index;
+    cachedOrdinals = new int[CACHE_SIZE];
+    Arrays.fill(cachedOrdinals, NO_OBJECT);
+    cachedStrings = new String[CACHE_SIZE];
+  }
+
+  String decode(int stringOrdinal) {
+    int slot = stringOrdinal & (CACHE_SIZE - 1);
+    if (cachedOrdinals[slot] == stringOrdinal) {
+      return cachedStrings[slot];
+    }
+    String string = read(stringOrdinal);
+    cachedOrdinals[slot] = stringOrdinal;
+    cachedStrings[slot] = string;
+    return string;
+  }
+
+  /**
+   * Hash of the content of a string, read straight from its value array: {@link String#hashCode()}
+   * for char arrays, {@link HprofIndex#hashBytes(int, int)} for byte arrays. Does not decode the
+   * string.
+   */
+  int hash(int stringOrdinal) {
+    int count = count(stringOrdinal);
+    if (count == 0) {
+      return 0;
+    }
+    int arrayOrdinal = valueArray(stringOrdinal);
+    if (index.primitiveArrayType(arrayOrdinal) == Type.CHAR) {
+      return index.hashChars(arrayOrdinal, charOffset(stringOrdinal), count);
+    } else {
+      return index.hashBytes(arrayOrdinal, count);
+    }
+  }
+
+  private String read(int stringOrdinal) {
+    int count = count(stringOrdinal);
+    if (count == 0) {
+      return "";
+    }
+    int arrayOrdinal = valueArray(stringOrdinal);
+    if (index.primitiveArrayType(arrayOrdinal) == Type.CHAR) {
+      // < API 23
+      return new String(index.readChars(arrayOrdinal, charOffset(stringOrdinal), count));
+    } else {
+      // In API 26, Strings are now internally represented as byte arrays.
+      return new String(index.readBytes(arrayOrdinal, count), UTF_8);
+    }
+  }
+
+  private int count(int stringOrdinal) {
+    IndexedClass stringClass = index.classOf(stringOrdinal);
+    if (stringClass.id != stringClassId) {
+      resolveFieldOffsets(stringClass);
+    }
+    return index.readIntField(stringOrdinal, countOffset);
+  }
+
+  /** Ordinal of the char or byte array holding the characters of a non empty string. */
+  private int valueArray(int stringOrdinal) {
+    long valueId = index.readReferenceField(stringOrdinal, valueOffset);
+    if (valueId == 0) {
+      throw new NullPointerException("value must not be null");
+    }
+    int arrayOrdinal = index.ordinalOf(valueId);
+    Type arrayType = arrayOrdinal != NO_OBJECT && index.kindAt(arrayOrdinal)
+        == HprofIndex.PRIMITIVE_ARRAY ? index.primitiveArrayType(arrayOrdinal) : null;
+    if (arrayType != Type.CHAR && arrayType != Type.BYTE) {
+      throw new UnsupportedOperationException(
+          "Could not find char array in " + index.describe(stringOrdinal));
+    }
+    return arrayOrdinal;
+  }
+
+  private int charOffset(int stringOrdinal) {
+    return offsetOffset == -1 ? 0 : index.readIntField(stringOrdinal, offsetOffset);
+  }
+
+  private void resolveFieldOffsets(IndexedClass stringClass) {
+    FieldLayout layout = index.fieldLayout(stringClass);
+    countOffset = layout.offsetOf("count", Type.INT);
+    valueOffset = layout.offsetOf("value", Type.OBJECT);
+    offsetOffset = layout.indexOf("offset") == -1 ? -1 : layout.offsetOf("offset", Type.INT);
+    stringClassId = stringClass.id;
+  }
+}
@@ -80,6 +80,15 @@ public class AsyncTaskLeakTest {
     assertThat(gcRoot.extra, containsString(ASYNC_TASK_THREAD));
   }
 
+  @Test public void bidirectionalSearchFindsSameLeakTrace() {
+    AnalysisResult forward = analyze(heapDumpFile, excludedRefs, PathSearchMode.FORWARD);
+    AnalysisResult bidirectional =
+        analyze(heapDumpFile, excludedRefs, PathSearchMode.BIDIRECTIONAL);
+    assertTrue(bidirectional.leakFound);
+    assertFalse(bidirectional.excludedLeak);
+    assertEquals(forward.leakTrace.toString(), bidirectional.leakTrace.toString());
+  }
+
   @Test public void excludeThread() {
     excludedRefs.thread(ASYNC_TASK_THREAD);
     AnalysisResult result = analyze(heapDumpFile, excludedRefs);
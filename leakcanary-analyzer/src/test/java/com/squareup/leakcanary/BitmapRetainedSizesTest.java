@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.ArrayInstance;
+import com.squareup.haha.perflib.ClassInstance;
+import com.squareup.haha.perflib.HprofParser;
+import com.squareup.haha.perflib.Instance;
+import com.squareup.haha.perflib.RootObj;
+import com.squareup.haha.perflib.RootType;
+import com.squareup.haha.perflib.Snapshot;
+import com.squareup.haha.perflib.io.MemoryMappedFileBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import static com.squareup.leakcanary.BitmapRetainedSizes.BITMAP_CLASS_NAME;
+import static com.squareup.leakcanary.HahaHelper.classInstanceValues;
+import static com.squareup.leakcanary.HahaHelper.fieldValue;
+import static com.squareup.leakcanary.HahaHelper.hasField;
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_M;
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_O;
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_PRE_M;
+import static com.squareup.leakcanary.TestUtil.NO_EXCLUDED_REFS;
+import static com.squareup.leakcanary.TestUtil.fileFromName;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks the sizes summed over the merged dominator tree against a walk up the dominators of every
+ * bitmap, done separately for each instance.
+ */
+@RunWith(Parameterized.class) //
+public class BitmapRetainedSizesTest {
+
+  @Parameterized.Parameters public static Collection<Object[]> data() {
+    return Arrays.asList(new Object[][] {
+        { ASYNC_TASK_PRE_M }, //
+        { ASYNC_TASK_M }, //
+        { ASYNC_TASK_O }, //
+    });
+  }
+
+  private final TestUtil.HeapDumpFile heapDumpFile;
+  private Snapshot snapshot;
+  private HprofIndex index;
+
+  public BitmapRetainedSizesTest(TestUtil.HeapDumpFile heapDumpFile) {
+    this.heapDumpFile = heapDumpFile;
+  }
+
+  @Before public void setUp() throws IOException {
+    File file = fileFromName(heapDumpFile.filename);
+    snapshot = new HprofParser(new MemoryMappedFileBuffer(file)).parse();
+    new HeapAnalyzer(NO_EXCLUDED_REFS).deduplicateGcRoots(snapshot);
+    snapshot.computeDominators();
+    index = new HprofIndexer(new MemoryMappedFileBuffer(file),
+        Collections.singleton(BITMAP_CLASS_NAME)).index();
+  }
+
+  @Test public void ignoredSizesMatchDominatorWalks() {
+    BitmapRetainedSizes bitmapSizes =
+        BitmapRetainedSizes.compute(BitmapRetainedSizes.findBuffers(index), snapshot);
+    List<Instance> bitmaps = snapshot.findClass(BITMAP_CLASS_NAME).getInstancesList();
+
+    // Only the instances on the dominator chain of a bitmap can have an ignored size.
+    Set<Instance> dominators = Collections.newSetFromMap(new IdentityHashMap<Instance, Boolean>());
+    for (Instance bitmap : bitmaps) {
+      for (Instance instance = nextDominator(bitmap); instance != null;
+          instance = nextDominator(instance)) {
+        dominators.add(instance);
+      }
+    }
+    assertThat(dominators).isNotEmpty();
+
+    for (Instance dominator : dominators) {
+      assertThat(bitmapSizes.ignoredSize(dominator)).describedAs(dominator.toString())
+          .isEqualTo(ignoredBitmapSize(bitmaps, dominator));
+    }
+  }
+
+  /** The size of the bitmaps dominated by {@code dominator} through a native root. */
+  private static long ignoredBitmapSize(List<Instance> bitmaps, Instance dominator) {
+    long ignoredSize = 0;
+    for (Instance bitmap : bitmaps) {
+      if (!isIgnoredDominator(dominator, bitmap)) {
+        continue;
+      }
+      List<ClassInstance.FieldValue> values = classInstanceValues(bitmap);
+      if (!hasField(values, "mBuffer")) {
+        continue;
+      }
+      ArrayInstance mBuffer = fieldValue(values, "mBuffer");
+      if (mBuffer == null) {
+        continue;
+      }
+      long bufferSize = mBuffer.getTotalRetainedSize();
+      long bitmapSize = bitmap.getTotalRetainedSize();
+      if (bitmapSize < bufferSize) {
+        bitmapSize += bufferSize;
+      }
+      ignoredSize += bitmapSize;
+    }
+    return ignoredSize;
+  }
+
+  private static boolean isIgnoredDominator(Instance dominator, Instance instance) {
+    boolean foundNativeRoot = false;
+    while (true) {
+      if (isNativeRoot(instance.getImmediateDominator())) {
+        foundNativeRoot = true;
+      }
+      instance = nextDominator(instance);
+      if (instance == null) {
+        return false;
+      }
+      if (instance == dominator) {
+        return foundNativeRoot;
+      }
+    }
+  }
+
+  /** The immediate dominator, skipping native roots. */
+  private static Instance nextDominator(Instance instance) {
+    Instance immediateDominator = instance.getImmediateDominator();
+    return isNativeRoot(immediateDominator) ? instance.getNextInstanceToGcRoot()
+        : immediateDominator;
+  }
+
+  private static boolean isNativeRoot(Instance instance) {
+    return instance instanceof RootObj && ((RootObj) instance).getRootType() == RootType.UNKNOWN;
+  }
+}
@@ -0,0 +1,136 @@
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.Field;
+import com.squareup.haha.perflib.io.MemoryMappedFileBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_M;
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_O;
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_PRE_M;
+import static com.squareup.leakcanary.TestUtil.NO_EXCLUDED_REFS;
+import static com.squareup.leakcanary.TestUtil.fileFromName;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(Parameterized.class) //
+public class ClassExclusionsTest {
+
+  private static final String THREAD = Thread.class.getName();
+
+  @Parameterized.Parameters public static Collection<Object[]> data() {
+    return Arrays.asList(new Object[][] {
+        { ASYNC_TASK_PRE_M }, //
+        { ASYNC_TASK_M }, //
+        { ASYNC_TASK_O }, //
+    });
+  }
+
+  private final TestUtil.HeapDumpFile heapDumpFile;
+  private HprofIndex index;
+
+  public ClassExclusionsTest(TestUtil.HeapDumpFile heapDumpFile) {
+    this.heapDumpFile = heapDumpFile;
+  }
+
+  @Before public void setUp() throws IOException {
+    File file = fileFromName(heapDumpFile.filename);
+    index = new HprofIndexer(new MemoryMappedFileBuffer(file),
+        Collections.singleton(KeyedWeakReference.class.getName())).index();
+  }
+
+  @Test public void compilesNothingWithoutExclusions() {
+    ClassExclusions exclusions = ClassExclusions.compile(NO_EXCLUDED_REFS, index);
+    for (int ordinal : index.classOrdinals()) {
+      assertThat(exclusions.forClass(index.asClass(ordinal))).isNull();
+    }
+  }
+
+  @Test public void excludesSubclassesOfExcludedClass() {
+    ClassExclusions exclusions =
+        ClassExclusions.compile(ExcludedRefs.builder().clazz(THREAD).build(), index);
+    for (int ordinal : index.classOrdinals()) {
+      IndexedClass indexedClass = index.asClass(ordinal);
+      ClassExclusions.Entry entry = exclusions.forClass(indexedClass);
+      if (extendsThread(indexedClass)) {
+        assertThat(entry.classExclusion.matching).contains(THREAD);
+      } else {
+        assertThat(entry).isNull();
+      }
+    }
+  }
+
+  @Test public void alwaysExcludeOverridesSubclassExclusion() {
+    ExcludedRefs excludedRefs = ExcludedRefs.builder()
+        .clazz(THREAD)
+        .clazz(Object.class.getName())
+        .alwaysExclude()
+        .build();
+    ClassExclusions exclusions = ClassExclusions.compile(excludedRefs, index);
+    ClassExclusions.Entry entry = exclusions.forClass(classNamed(THREAD));
+    assertThat(entry.classExclusion.alwaysExclude).isTrue();
+  }
+
+  @Test public void excludesInheritedInstanceFields() {
+    ClassExclusions exclusions = ClassExclusions.compile(
+        ExcludedRefs.builder().instanceField(THREAD, "name").build(), index);
+    for (int ordinal : index.classOrdinals()) {
+      IndexedClass indexedClass = index.asClass(ordinal);
+      ClassExclusions.Entry entry = exclusions.forClass(indexedClass);
+      if (!extendsThread(indexedClass)) {
+        assertThat(entry).isNull();
+        continue;
+      }
+      Field[] fields = index.fieldLayout(indexedClass).fields;
+      assertThat(entry.fieldExclusions).hasSize(fields.length);
+      for (int i = 0; i < fields.length; i++) {
+        assertThat(entry.fieldExclusions[i] != null).isEqualTo(
+            fields[i].getName().equals("name"));
+      }
+    }
+  }
+
+  @Test public void excludesStaticFieldsOfDeclaringClassOnly() {
+    IndexedClass thread = classNamed(THREAD);
+    assertThat(thread.staticFields).isNotEmpty();
+    String staticFieldName = thread.staticFields[0].getName();
+    ClassExclusions exclusions = ClassExclusions.compile(
+        ExcludedRefs.builder().staticField(THREAD, staticFieldName).build(), index);
+    for (int ordinal : index.classOrdinals()) {
+      IndexedClass indexedClass = index.asClass(ordinal);
+      ClassExclusions.Entry entry = exclusions.forClass(indexedClass);
+      if (indexedClass != thread) {
+        assertThat(entry).isNull();
+        continue;
+      }
+      assertThat(entry.classExclusion).isNull();
+      assertThat(entry.fieldExclusions).isNull();
+      assertThat(entry.staticFieldExclusions[0].matching).contains(staticFieldName);
+    }
+  }
+
+  private boolean extendsThread(IndexedClass indexedClass) {
+    for (IndexedClass clazz = indexedClass; clazz != null; clazz = index.superClassOf(clazz)) {
+      if (clazz.name.equals(THREAD)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private IndexedClass classNamed(String className) {
+    for (int ordinal : index.classOrdinals()) {
+      IndexedClass indexedClass = index.asClass(ordinal);
+      if (indexedClass.name.equals(className)) {
+        return indexedClass;
+      }
+    }
+    throw new AssertionError("No class named " + className);
+  }
+}
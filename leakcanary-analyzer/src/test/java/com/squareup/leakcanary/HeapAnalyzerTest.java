@@ -2,20 +2,32 @@ package com.squareup.leakcanary;
 
 import com.squareup.haha.perflib.RootObj;
 import com.squareup.haha.perflib.Snapshot;
+import com.squareup.haha.perflib.io.MemoryMappedFileBuffer;
 
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 
 import static com.squareup.haha.perflib.RootType.NATIVE_STATIC;
 import static com.squareup.haha.perflib.RootType.SYSTEM_CLASS;
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_PRE_M;
 import static com.squareup.leakcanary.TestUtil.NO_EXCLUDED_REFS;
+import static com.squareup.leakcanary.TestUtil.fileFromName;
+import static com.squareup.leakcanary.TestUtil.findTrackedReferences;
 import static java.util.Arrays.asList;
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -27,6 +39,10 @@ public class HeapAnalyzerTest {
                   new RootObj(SYSTEM_CLASS, 3L),
                   new RootObj(SYSTEM_CLASS, 5L),
                   new RootObj(NATIVE_STATIC, 3L));
+  private static final int CHAIN_DEPTH = 20;
+  private static final int LEAK_COUNT = 3;
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
 
   private HeapAnalyzer heapAnalyzer;
 
@@ -39,7 +55,8 @@ public class HeapAnalyzerTest {
   public void ensureUniqueRoots() {
     Snapshot snapshot = createSnapshot(DUP_ROOTS);
 
-    heapAnalyzer.deduplicateGcRoots(snapshot);
+    int duplicatedRootCount = heapAnalyzer.deduplicateGcRoots(snapshot);
+    assertThat(duplicatedRootCount).isEqualTo(1);
 
     Collection<RootObj> uniqueRoots = snapshot.getGCRoots();
     assertThat(uniqueRoots).hasSize(4);
@@ -54,6 +71,197 @@ public class HeapAnalyzerTest {
     assertThat(rootIds).containsExactly(3L, 3L, 5L, 6L);
   }
 
+  @Test
+  public void checkForLeaksAnalyzesEveryKeyLikeCheckForLeak() {
+    File file = fileFromName(ASYNC_TASK_PRE_M.filename);
+    Set<String> keys = new LinkedHashSet<>();
+    for (TrackedReference reference : findTrackedReferences(ASYNC_TASK_PRE_M)) {
+      keys.add(reference.key);
+    }
+    keys.add("unknown key");
+
+    Map<String, AnalysisResult> results = heapAnalyzer.checkForLeaks(file, keys);
+
+    assertThat(results.keySet()).containsExactlyElementsOf(keys);
+    for (String key : keys) {
+      AnalysisResult expected = heapAnalyzer.checkForLeak(file, key);
+      AnalysisResult actual = results.get(key);
+      assertThat(actual.leakFound).isEqualTo(expected.leakFound);
+      assertThat(actual.excludedLeak).isEqualTo(expected.excludedLeak);
+      assertThat(actual.retainedHeapSize).isEqualTo(expected.retainedHeapSize);
+      assertThat(String.valueOf(actual.leakTrace)).isEqualTo(String.valueOf(expected.leakTrace));
+      assertThat(actual.failure == null).isEqualTo(expected.failure == null);
+    }
+    assertThat(results.get("unknown key").failure).isInstanceOf(IllegalStateException.class);
+  }
+
+  @Test
+  public void parallelPathFinderFindsSameLeakTraces() {
+    HeapAnalyzer parallelHeapAnalyzer =
+        HeapAnalyzer.builder().excludedRefs(NO_EXCLUDED_REFS).pathFinderThreadCount(4).build();
+    for (TestUtil.HeapDumpFile heapDumpFile : TestUtil.HeapDumpFile.values()) {
+      File file = fileFromName(heapDumpFile.filename);
+      AnalysisResult expected = heapAnalyzer.checkForLeak(file, heapDumpFile.referenceKey);
+      AnalysisResult actual = parallelHeapAnalyzer.checkForLeak(file, heapDumpFile.referenceKey);
+      assertThat(actual.leakFound).isTrue();
+      assertThat(String.valueOf(actual.leakTrace)).isEqualTo(String.valueOf(expected.leakTrace));
+    }
+  }
+
+  @Test
+  public void findsOtherPathsToEachLeak() throws IOException {
+    File heapDumpFile = syntheticHeapDump(HprofGenerator.builder()
+        .objectCount(1_000)
+        .leakReferenceCount(2));
+    HeapAnalyzer heapAnalyzer = reachabilityAnalyzer().pathsPerLeak(3).build();
+
+    Map<String, AnalysisResult> results =
+        heapAnalyzer.checkForLeaks(heapDumpFile, syntheticLeakKeys());
+
+    for (AnalysisResult result : results.values()) {
+      assertThat(result.leakFound).isTrue();
+      // Each leak is referenced from two entries of the same array, so there is no third path.
+      assertThat(result.otherLeakTraces).hasSize(1);
+      LeakTrace otherLeakTrace = result.otherLeakTraces.get(0);
+      assertThat(otherLeakTrace.elements).hasSize(result.leakTrace.elements.size());
+      int arrayElement = CHAIN_DEPTH + 1;
+      assertThat(otherLeakTrace.elements.get(arrayElement).referenceName).isNotEqualTo(
+          result.leakTrace.elements.get(arrayElement).referenceName);
+    }
+  }
+
+  @Test
+  public void findsSamePathsBidirectionally() throws IOException {
+    File heapDumpFile = syntheticHeapDump(HprofGenerator.builder().objectCount(5_000));
+    HeapAnalyzer heapAnalyzer =
+        reachabilityAnalyzer().pathSearchMode(PathSearchMode.BIDIRECTIONAL).build();
+
+    Map<String, AnalysisResult> results =
+        heapAnalyzer.checkForLeaks(heapDumpFile, syntheticLeakKeys());
+
+    for (AnalysisResult result : results.values()) {
+      assertThat(result.leakFound).isTrue();
+      assertThat(result.excludedLeak).isFalse();
+      assertThat(result.leakTrace.elements).hasSize(CHAIN_DEPTH + 3);
+      assertThat(result.leakTrace.elements.get(0).className).isEqualTo(
+          HprofGenerator.LEAK_HOLDER_CLASS_NAME);
+    }
+  }
+
+  @Test
+  public void recordsAnalysisStats() throws IOException {
+    File heapDumpFile = syntheticHeapDump(HprofGenerator.builder()
+        .objectCount(5_000)
+        .rootCopies(3));
+    HprofIndex index = new HprofIndexer(new MemoryMappedFileBuffer(heapDumpFile),
+        Collections.singleton(KeyedWeakReference.class.getName())).index();
+    HeapAnalyzer heapAnalyzer = reachabilityAnalyzer().build();
+
+    AnalysisResult result = heapAnalyzer.checkForLeak(heapDumpFile, HprofGenerator.leakKey(0));
+
+    AnalysisStats stats = result.stats;
+    assertThat(stats.objectCount).isEqualTo(index.objectCount());
+    assertThat(stats.uniqueGcRootCount).isEqualTo(index.rootCount());
+    assertThat(stats.gcRootCount).isEqualTo(index.rootCount() + index.duplicatedRootCount());
+    // The leaking instance is at the end of a chain of CHAIN_DEPTH nodes.
+    assertThat(stats.visitedNodeCount).isGreaterThan(CHAIN_DEPTH);
+    assertThat(stats.enqueuedNodeCount).isGreaterThanOrEqualTo(stats.visitedNodeCount);
+    assertThat(stats.peakQueueSize).isPositive();
+    assertThat(stats.dominatorsDurationMs).isZero();
+  }
+
+  @Test
+  public void keepsLeakTracesWhenCanceled() throws IOException {
+    AnalyzerProgressListener cancelBeforeRetainedSize = new AnalyzerProgressListener() {
+      boolean canceled;
+
+      @Override public void onProgressUpdate(Step step) {
+        canceled = step == Step.COMPUTING_REACHABILITY;
+      }
+
+      @Override public void onNodesVisited(long visitedNodeCount) {
+      }
+
+      @Override public boolean isCanceled() {
+        return canceled;
+      }
+    };
+    File heapDumpFile = syntheticHeapDump(HprofGenerator.builder().objectCount(5_000));
+    HeapAnalyzer heapAnalyzer = reachabilityAnalyzer().listener(cancelBeforeRetainedSize).build();
+
+    AnalysisResult result = heapAnalyzer.checkForLeak(heapDumpFile, HprofGenerator.leakKey(0));
+
+    assertThat(result.canceled).isTrue();
+    assertThat(result.leakFound).isTrue();
+    assertThat(result.leakTrace.elements).hasSize(CHAIN_DEPTH + 3);
+    assertThat(result.retainedHeapSize).isZero();
+  }
+
+  @Test
+  public void dropsLeakTracesOnFailure() throws IOException {
+    AnalyzerProgressListener failBeforeRetainedSize = new AnalyzerProgressListener() {
+      @Override public void onProgressUpdate(Step step) {
+        if (step == Step.COMPUTING_REACHABILITY) {
+          throw new IllegalStateException("Failing at " + step);
+        }
+      }
+
+      @Override public void onNodesVisited(long visitedNodeCount) {
+      }
+
+      @Override public boolean isCanceled() {
+        return false;
+      }
+    };
+    File heapDumpFile = syntheticHeapDump(HprofGenerator.builder().objectCount(5_000));
+    HeapAnalyzer heapAnalyzer = reachabilityAnalyzer().listener(failBeforeRetainedSize).build();
+
+    AnalysisResult result = heapAnalyzer.checkForLeak(heapDumpFile, HprofGenerator.leakKey(0));
+
+    assertThat(result.canceled).isFalse();
+    assertThat(result.leakFound).isFalse();
+    assertThat(result.failure).isInstanceOf(IllegalStateException.class);
+  }
+
+  @Test
+  public void budgetCancelsPathFinding() throws IOException {
+    File heapDumpFile = syntheticHeapDump(
+        HprofGenerator.builder().objectCount(ShortestPathFinder.PROGRESS_INTERVAL * 4));
+    AnalysisBudget budget =
+        new AnalysisBudget(AnalyzerProgressListener.NONE, AnalysisBudget.UNLIMITED, 0);
+    HeapAnalyzer heapAnalyzer = reachabilityAnalyzer().listener(budget).build();
+
+    AnalysisResult result = heapAnalyzer.checkForLeak(heapDumpFile, HprofGenerator.leakKey(0));
+
+    assertThat(result.canceled).isTrue();
+    assertThat(result.leakFound).isFalse();
+    assertThat(result.failure).isInstanceOf(CancellationException.class);
+    assertThat(result.stats.visitedNodeCount).isLessThan(ShortestPathFinder.PROGRESS_INTERVAL * 2);
+  }
+
+  @Test
+  public void findsSamePathsFromScratchFiles() throws IOException {
+    File heapDumpFile = syntheticHeapDump(HprofGenerator.builder().objectCount(5_000));
+    HeapAnalyzer onHeap = reachabilityAnalyzer().build();
+    HeapAnalyzer fromScratchFiles = HeapAnalyzer.builder()
+        .excludedRefs(NO_EXCLUDED_REFS)
+        .pathSearchMode(PathSearchMode.BIDIRECTIONAL)
+        .pathFinderThreadCount(2)
+        .memoryMode(MemoryMode.SCRATCH_FILES)
+        .build();
+
+    AnalysisResult expected = onHeap.checkForLeak(heapDumpFile, HprofGenerator.leakKey(0));
+    AnalysisResult result = fromScratchFiles.checkForLeak(heapDumpFile, HprofGenerator.leakKey(0));
+
+    assertThat(result.leakFound).isTrue();
+    assertThat(result.leakTrace.toString()).isEqualTo(expected.leakTrace.toString());
+    // Retained sizes fall back to reachability, see MemoryMode.SCRATCH_FILES.
+    assertThat(result.retainedHeapSize).isEqualTo(expected.retainedHeapSize);
+    assertThat(result.stats.dominatorsDurationMs).isZero();
+    // Scratch files are deleted once the analysis is done.
+    assertThat(heapDumpFile.getParentFile().list()).containsExactly(heapDumpFile.getName());
+  }
+
   private Snapshot createSnapshot(List<RootObj> gcRoots) {
     Snapshot snapshot = new Snapshot(null);
     for (RootObj root : gcRoots) {
@@ -61,4 +269,28 @@ public class HeapAnalyzerTest {
     }
     return snapshot;
   }
+
+  /**
+   * Writes a heap dump where each of {@link #LEAK_COUNT} leaks is at the end of a chain of {@link
+   * #CHAIN_DEPTH} nodes, see {@link HprofGenerator}.
+   */
+  private File syntheticHeapDump(HprofGenerator.Builder generator) throws IOException {
+    File heapDumpFile = new File(temporaryFolder.newFolder(), "synthetic.hprof");
+    generator.chainDepth(CHAIN_DEPTH).leakCount(LEAK_COUNT).build().write(heapDumpFile);
+    return heapDumpFile;
+  }
+
+  private static Set<String> syntheticLeakKeys() {
+    Set<String> keys = new LinkedHashSet<>();
+    for (int i = 0; i < LEAK_COUNT; i++) {
+      keys.add(HprofGenerator.leakKey(i));
+    }
+    return keys;
+  }
+
+  private static HeapAnalyzer.Builder reachabilityAnalyzer() {
+    return HeapAnalyzer.builder()
+        .excludedRefs(NO_EXCLUDED_REFS)
+        .retainedSizeMode(RetainedSizeMode.REACHABILITY);
+  }
 }
@@ -0,0 +1,616 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Writes synthetic heap dumps in the Android hprof format, from a few thousand objects to hundreds
+ * of millions, to test how the analyzer scales without real heap dumps. Objects are written as they
+ * are generated, so generating a huge heap dump only needs a small amount of memory.
+ *
+ * The heap has {@link Builder#objectCount(int)} nodes that reference each other randomly, reachable
+ * from JNI global and java local GC roots. A static field of {@link #LEAK_HOLDER_CLASS_NAME} is the
+ * head of a linked list of {@link Builder#chainDepth(int)} nodes, the last of which holds an array
+ * of {@link #LEAKING_CLASS_NAME} instances. Each of them is the referent of a {@link
+ * KeyedWeakReference} with key {@link #leakKey(int)}, so the leak trace of every leak goes through
+ * the whole list.
+ */
+final class HprofGenerator {
+
+  static final String LEAK_HOLDER_CLASS_NAME = "com.example.LeakHolder";
+  static final String LEAKING_CLASS_NAME = "com.example.LeakingActivity";
+  /** Size of the byte array retained by each leaking instance. */
+  static final int LEAKING_CONTENT_SIZE = 1024;
+
+  private static final int ID_SIZE = 4;
+  /** Object ids look like addresses, which keeps them sorted in the order they are written. */
+  private static final long FIRST_OBJECT_ID = 0x1000;
+  private static final int OBJECT_ID_STRIDE = 8;
+  /** Heap dump segments are flushed once they reach this size. */
+  private static final int SEGMENT_SIZE = 1 << 20;
+
+  private static final int STRING_IN_UTF8 = 0x01;
+  private static final int LOAD_CLASS = 0x02;
+  private static final int STACK_TRACE = 0x05;
+  private static final int HEAP_DUMP_SEGMENT = 0x1c;
+  private static final int HEAP_DUMP_END = 0x2c;
+
+  private static final int ROOT_JNI_GLOBAL = 0x01;
+  private static final int ROOT_JAVA_FRAME = 0x03;
+  private static final int ROOT_STICKY_CLASS = 0x05;
+  private static final int ROOT_THREAD_OBJECT = 0x08;
+  private static final int CLASS_DUMP = 0x20;
+  private static final int INSTANCE_DUMP = 0x21;
+  private static final int OBJECT_ARRAY_DUMP = 0x22;
+  private static final int PRIMITIVE_ARRAY_DUMP = 0x23;
+  private static final int HEAP_DUMP_INFO = 0xfe;
+
+  private static final int TYPE_OBJECT = 2;
+  private static final int TYPE_CHAR = 5;
+  private static final int TYPE_BYTE = 8;
+  private static final int TYPE_INT = 10;
+
+  private static final int APP_HEAP_ID = 'A';
+  private static final int THREAD_SERIAL_NUMBER = 1;
+  private static final int STACK_TRACE_SERIAL_NUMBER = 1;
+
+  static Builder builder() {
+    return new Builder();
+  }
+
+  static final class Builder {
+    int objectCount = 10_000;
+    int fanOut = 4;
+    int chainDepth = 10;
+    int wideArrayLength = 1_000;
+    int gcRootCount = 100;
+    int rootCopies = 1;
+    int leakCount = 1;
+    int leakReferenceCount = 1;
+    long seed = 42;
+
+    /** Number of randomly connected nodes, at least 1. */
+    Builder objectCount(int objectCount) {
+      this.objectCount = objectCount;
+      return this;
+    }
+
+    /** Number of reference fields of each node, at least 1. */
+    Builder fanOut(int fanOut) {
+      this.fanOut = fanOut;
+      return this;
+    }
+
+    /** Length of the linked list between the GC roots and the leaking instances, at least 1. */
+    Builder chainDepth(int chainDepth) {
+      this.chainDepth = chainDepth;
+      return this;
+    }
+
+    /** Length of an object array of random nodes held by a GC root, 0 for none. */
+    Builder wideArrayLength(int wideArrayLength) {
+      this.wideArrayLength = wideArrayLength;
+      return this;
+    }
+
+    /** Number of distinct GC roots that reference random nodes. */
+    Builder gcRootCount(int gcRootCount) {
+      this.gcRootCount = gcRootCount;
+      return this;
+    }
+
+    /**
+     * Number of times each GC root is written. Marshmallow heap dumps list the same roots many
+     * times.
+     */
+    Builder rootCopies(int rootCopies) {
+      this.rootCopies = rootCopies;
+      return this;
+    }
+
+    /** Number of leaking instances, each watched by a {@link KeyedWeakReference}. */
+    Builder leakCount(int leakCount) {
+      this.leakCount = leakCount;
+      return this;
+    }
+
+    /**
+     * Number of entries of the array of leaks that reference each leaking instance, i.e. the number
+     * of distinct shortest paths to each leak.
+     */
+    Builder leakReferenceCount(int leakReferenceCount) {
+      this.leakReferenceCount = leakReferenceCount;
+      return this;
+    }
+
+    Builder seed(long seed) {
+      this.seed = seed;
+      return this;
+    }
+
+    HprofGenerator build() {
+      if (objectCount < 1 || fanOut < 1 || chainDepth < 1 || rootCopies < 1
+          || leakReferenceCount < 1) {
+        throw new IllegalArgumentException("objectCount, fanOut, chainDepth, rootCopies and "
+            + "leakReferenceCount must be at least 1");
+      }
+      if (wideArrayLength < 0 || gcRootCount < 0 || leakCount < 0) {
+        throw new IllegalArgumentException(
+            "wideArrayLength, gcRootCount and leakCount must not be negative");
+      }
+      return new HprofGenerator(this);
+    }
+  }
+
+  /** The key of the {@link KeyedWeakReference} that watches the leaking instance {@code leak}. */
+  static String leakKey(int leak) {
+    return "synthetic-leak-" + leak;
+  }
+
+  private final int objectCount;
+  private final int fanOut;
+  private final int chainDepth;
+  private final int wideArrayLength;
+  private final int gcRootCount;
+  private final int rootCopies;
+  private final int leakCount;
+  private final int leakReferenceCount;
+  private final long seed;
+
+  private final List<ClassDef> classes = new ArrayList<>();
+  private final Map<String, Long> stringIds = new LinkedHashMap<>();
+
+  private final ClassDef stringClass;
+  private final ClassDef threadClass;
+  private final ClassDef keyedWeakReferenceClass;
+  private final ClassDef nodeClass;
+  private final ClassDef chainNodeClass;
+  private final ClassDef leakHolderClass;
+  private final ClassDef leakingClass;
+  private final ClassDef objectArrayClass;
+
+  // Ordinals of the objects, ids are derived from them with objectId().
+  private final long threadOrdinal;
+  private final long threadNameOrdinal;
+  private final long referenceNameOrdinal;
+  private final long firstNodeOrdinal;
+  private final long firstChainNodeOrdinal;
+  private final long leaksArrayOrdinal;
+  private final long wideArrayOrdinal;
+  private final long firstLeakOrdinal;
+  private final long objectTotal;
+
+  private HprofGenerator(Builder builder) {
+    objectCount = builder.objectCount;
+    fanOut = builder.fanOut;
+    chainDepth = builder.chainDepth;
+    wideArrayLength = builder.wideArrayLength;
+    gcRootCount = builder.gcRootCount;
+    rootCopies = builder.rootCopies;
+    leakCount = builder.leakCount;
+    leakReferenceCount = builder.leakReferenceCount;
+    seed = builder.seed;
+
+    ClassDef objectClass = addClass("java.lang.Object", null);
+    addClass("java.lang.Class", objectClass);
+    stringClass = addClass("java.lang.String", objectClass, "count", TYPE_INT, "hash", TYPE_INT,
+        "value", TYPE_OBJECT);
+    threadClass = addClass("java.lang.Thread", objectClass, "name", TYPE_OBJECT);
+    ClassDef referenceClass = addClass("java.lang.ref.Reference", objectClass, "referent",
+        TYPE_OBJECT, "queue", TYPE_OBJECT);
+    ClassDef weakReferenceClass = addClass("java.lang.ref.WeakReference", referenceClass);
+    keyedWeakReferenceClass =
+        addClass(KeyedWeakReference.class.getName(), weakReferenceClass, "key", TYPE_OBJECT,
+            "name", TYPE_OBJECT);
+    addClass("android.graphics.Bitmap", objectClass, "mBuffer", TYPE_OBJECT, "mWidth", TYPE_INT,
+        "mHeight", TYPE_INT);
+    Object[] nodeFields = new Object[fanOut * 2];
+    for (int i = 0; i < fanOut; i++) {
+      nodeFields[i * 2] = "ref" + i;
+      nodeFields[i * 2 + 1] = TYPE_OBJECT;
+    }
+    nodeClass = addClass("com.example.Node", objectClass, nodeFields);
+    chainNodeClass =
+        addClass("com.example.ChainNode", objectClass, "next", TYPE_OBJECT, "leaks", TYPE_OBJECT);
+    leakHolderClass = addClass(LEAK_HOLDER_CLASS_NAME, objectClass);
+    leakingClass = addClass(LEAKING_CLASS_NAME, objectClass, "content", TYPE_OBJECT);
+    addClass("char[]", objectClass);
+    addClass("byte[]", objectClass);
+    objectArrayClass = addClass("java.lang.Object[]", objectClass);
+
+    long ordinal = classes.size();
+    threadOrdinal = ordinal++;
+    // String instance then its char array.
+    threadNameOrdinal = ordinal;
+    ordinal += 2;
+    referenceNameOrdinal = ordinal;
+    ordinal += 2;
+    firstNodeOrdinal = ordinal;
+    ordinal += objectCount;
+    firstChainNodeOrdinal = ordinal;
+    ordinal += chainDepth;
+    leaksArrayOrdinal = ordinal++;
+    wideArrayOrdinal = wideArrayLength > 0 ? ordinal++ : -1;
+    // Leaking instance, its content, its weak reference, the key string and its char array.
+    firstLeakOrdinal = ordinal;
+    ordinal += 5L * leakCount;
+    objectTotal = ordinal;
+    if (objectId(objectTotal) > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many objects for 4 byte ids: " + objectTotal);
+    }
+  }
+
+  /** Number of objects in the heap dump, classes included. */
+  long objectTotal() {
+    return objectTotal;
+  }
+
+  void write(File file) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file), 64 * 1024))) {
+      out.write("JAVA PROFILE 1.0.3".getBytes(Charset.forName("US-ASCII")));
+      out.write(0);
+      out.writeInt(ID_SIZE);
+      out.writeLong(System.currentTimeMillis());
+
+      writeStrings(out);
+      for (int i = 0; i < classes.size(); i++) {
+        ClassDef classDef = classes.get(i);
+        Segment record = new Segment(64);
+        record.writeInt(i + 1);
+        record.writeId(classDef.id);
+        record.writeInt(STACK_TRACE_SERIAL_NUMBER);
+        record.writeId(stringIds.get(classDef.name));
+        record.flushRecord(out, LOAD_CLASS);
+      }
+      Segment stackTrace = new Segment(64);
+      stackTrace.writeInt(STACK_TRACE_SERIAL_NUMBER);
+      stackTrace.writeInt(THREAD_SERIAL_NUMBER);
+      // No frames.
+      stackTrace.writeInt(0);
+      stackTrace.flushRecord(out, STACK_TRACE);
+
+      Segment segment = new Segment(SEGMENT_SIZE);
+      writeRoots(out, segment);
+      segment.writeByte(HEAP_DUMP_INFO);
+      segment.writeInt(APP_HEAP_ID);
+      segment.writeId(stringIds.get("app"));
+      for (ClassDef classDef : classes) {
+        writeClassDump(segment, classDef);
+      }
+      segment.flushIfFull(out);
+      writeObjects(out, segment);
+      segment.flushRecord(out, HEAP_DUMP_SEGMENT);
+
+      out.writeByte(HEAP_DUMP_END);
+      out.writeInt(0);
+      out.writeInt(0);
+    }
+  }
+
+  private void writeStrings(DataOutputStream out) throws IOException {
+    stringId("app");
+    for (ClassDef classDef : classes) {
+      stringId(classDef.name);
+      for (String staticField : classDef.staticFieldNames) {
+        stringId(staticField);
+      }
+      for (String field : classDef.fieldNames) {
+        stringId(field);
+      }
+    }
+    for (Map.Entry<String, Long> entry : stringIds.entrySet()) {
+      Segment record = new Segment(64);
+      record.writeId(entry.getValue());
+      record.write(entry.getKey().getBytes(Charset.forName("UTF-8")));
+      record.flushRecord(out, STRING_IN_UTF8);
+    }
+  }
+
+  private void writeRoots(DataOutputStream out, Segment segment) throws IOException {
+    for (ClassDef classDef : classes) {
+      segment.writeByte(ROOT_STICKY_CLASS);
+      segment.writeId(classDef.id);
+    }
+    segment.writeByte(ROOT_THREAD_OBJECT);
+    segment.writeId(objectId(threadOrdinal));
+    segment.writeInt(THREAD_SERIAL_NUMBER);
+    segment.writeInt(STACK_TRACE_SERIAL_NUMBER);
+    if (wideArrayLength > 0) {
+      segment.writeByte(ROOT_JNI_GLOBAL);
+      segment.writeId(objectId(wideArrayOrdinal));
+      segment.writeId(0);
+    }
+    for (int copy = 0; copy < rootCopies; copy++) {
+      Random random = new Random(seed);
+      for (int i = 0; i < gcRootCount; i++) {
+        long nodeId = randomNodeId(random);
+        if (i % 2 == 0) {
+          segment.writeByte(ROOT_JNI_GLOBAL);
+          segment.writeId(nodeId);
+          segment.writeId(0);
+        } else {
+          segment.writeByte(ROOT_JAVA_FRAME);
+          segment.writeId(nodeId);
+          segment.writeInt(THREAD_SERIAL_NUMBER);
+          // Frame number.
+          segment.writeInt(0);
+        }
+        segment.flushIfFull(out);
+      }
+    }
+  }
+
+  private void writeClassDump(Segment segment, ClassDef classDef) {
+    segment.writeByte(CLASS_DUMP);
+    segment.writeId(classDef.id);
+    segment.writeInt(STACK_TRACE_SERIAL_NUMBER);
+    segment.writeId(classDef.superClass == null ? 0 : classDef.superClass.id);
+    // Class loader id, signers id, protection domain id, 2 reserved ids.
+    for (int i = 0; i < 5; i++) {
+      segment.writeId(0);
+    }
+    segment.writeInt(classDef.instanceSize());
+    // Constant pool.
+    segment.writeShort(0);
+    if (classDef == leakHolderClass) {
+      segment.writeShort(1);
+      segment.writeId(stringIds.get("chain"));
+      segment.writeByte(TYPE_OBJECT);
+      segment.writeId(objectId(firstChainNodeOrdinal));
+    } else {
+      segment.writeShort(0);
+    }
+    segment.writeShort(classDef.fieldNames.length);
+    for (int i = 0; i < classDef.fieldNames.length; i++) {
+      segment.writeId(stringIds.get(classDef.fieldNames[i]));
+      segment.writeByte(classDef.fieldTypes[i]);
+    }
+  }
+
+  private void writeObjects(DataOutputStream out, Segment segment) throws IOException {
+    writeInstance(segment, threadOrdinal, threadClass, objectId(threadNameOrdinal));
+    writeString(segment, threadNameOrdinal, "main");
+    writeString(segment, referenceNameOrdinal, LEAKING_CLASS_NAME);
+
+    Random random = new Random(seed + 1);
+    long[] references = new long[fanOut];
+    for (int i = 0; i < objectCount; i++) {
+      // The first reference links all nodes in a ring, the others are random.
+      references[0] = objectId(firstNodeOrdinal + (i + 1) % objectCount);
+      for (int j = 1; j < fanOut; j++) {
+        references[j] = randomNodeId(random);
+      }
+      writeInstance(segment, firstNodeOrdinal + i, nodeClass, references);
+      segment.flushIfFull(out);
+    }
+
+    for (int i = 0; i < chainDepth; i++) {
+      long next = i == chainDepth - 1 ? 0 : objectId(firstChainNodeOrdinal + i + 1);
+      long leaks = i == chainDepth - 1 ? objectId(leaksArrayOrdinal) : 0;
+      writeInstance(segment, firstChainNodeOrdinal + i, chainNodeClass, next, leaks);
+      segment.flushIfFull(out);
+    }
+
+    long[] leakIds = new long[leakCount * leakReferenceCount];
+    for (int i = 0; i < leakIds.length; i++) {
+      leakIds[i] = objectId(firstLeakOrdinal + 5L * (i % leakCount));
+    }
+    writeObjectArray(segment, leaksArrayOrdinal, leakIds);
+    segment.flushIfFull(out);
+
+    if (wideArrayLength > 0) {
+      long[] elements = new long[wideArrayLength];
+      for (int i = 0; i < wideArrayLength; i++) {
+        elements[i] = randomNodeId(random);
+      }
+      writeObjectArray(segment, wideArrayOrdinal, elements);
+      segment.flushIfFull(out);
+    }
+
+    for (int i = 0; i < leakCount; i++) {
+      long leakOrdinal = firstLeakOrdinal + 5L * i;
+      writeInstance(segment, leakOrdinal, leakingClass, objectId(leakOrdinal + 1));
+      writePrimitiveArrayHeader(segment, leakOrdinal + 1, TYPE_BYTE, LEAKING_CONTENT_SIZE);
+      segment.write(new byte[LEAKING_CONTENT_SIZE]);
+      // key, name, then the referent and queue fields declared by java.lang.ref.Reference.
+      writeInstance(segment, leakOrdinal + 2, keyedWeakReferenceClass, objectId(leakOrdinal + 3),
+          objectId(referenceNameOrdinal), objectId(leakOrdinal), 0);
+      writeString(segment, leakOrdinal + 3, leakKey(i));
+      segment.flushIfFull(out);
+    }
+  }
+
+  /** Writes a string instance at {@code ordinal} and its char array at {@code ordinal + 1}. */
+  private void writeString(Segment segment, long ordinal, String value) {
+    segment.writeByte(INSTANCE_DUMP);
+    segment.writeId(objectId(ordinal));
+    segment.writeInt(STACK_TRACE_SERIAL_NUMBER);
+    segment.writeId(stringClass.id);
+    segment.writeInt(stringClass.instanceSize());
+    segment.writeInt(value.length());
+    segment.writeInt(value.hashCode());
+    segment.writeId(objectId(ordinal + 1));
+
+    writePrimitiveArrayHeader(segment, ordinal + 1, TYPE_CHAR, value.length());
+    for (int i = 0; i < value.length(); i++) {
+      segment.writeShort(value.charAt(i));
+    }
+  }
+
+  /** Only for classes whose fields, superclass fields included, are all references. */
+  private void writeInstance(Segment segment, long ordinal, ClassDef classDef,
+      long... referenceIds) {
+    segment.writeByte(INSTANCE_DUMP);
+    segment.writeId(objectId(ordinal));
+    segment.writeInt(STACK_TRACE_SERIAL_NUMBER);
+    segment.writeId(classDef.id);
+    segment.writeInt(referenceIds.length * ID_SIZE);
+    for (long referenceId : referenceIds) {
+      segment.writeId(referenceId);
+    }
+  }
+
+  private void writeObjectArray(Segment segment, long ordinal, long[] elementIds) {
+    segment.writeByte(OBJECT_ARRAY_DUMP);
+    segment.writeId(objectId(ordinal));
+    segment.writeInt(STACK_TRACE_SERIAL_NUMBER);
+    segment.writeInt(elementIds.length);
+    segment.writeId(objectArrayClass.id);
+    for (long elementId : elementIds) {
+      segment.writeId(elementId);
+    }
+  }
+
+  private void writePrimitiveArrayHeader(Segment segment, long ordinal, int type, int length) {
+    segment.writeByte(PRIMITIVE_ARRAY_DUMP);
+    segment.writeId(objectId(ordinal));
+    segment.writeInt(STACK_TRACE_SERIAL_NUMBER);
+    segment.writeInt(length);
+    segment.writeByte(type);
+  }
+
+  private long randomNodeId(Random random) {
+    return objectId(firstNodeOrdinal + random.nextInt(objectCount));
+  }
+
+  private static long objectId(long ordinal) {
+    return FIRST_OBJECT_ID + ordinal * OBJECT_ID_STRIDE;
+  }
+
+  private long stringId(String string) {
+    Long id = stringIds.get(string);
+    if (id == null) {
+      id = (long) stringIds.size() + 1;
+      stringIds.put(string, id);
+    }
+    return id;
+  }
+
+  /** @param fields pairs of field name and type. */
+  private ClassDef addClass(String name, ClassDef superClass, Object... fields) {
+    String[] fieldNames = new String[fields.length / 2];
+    int[] fieldTypes = new int[fields.length / 2];
+    for (int i = 0; i < fieldNames.length; i++) {
+      fieldNames[i] = (String) fields[i * 2];
+      fieldTypes[i] = (Integer) fields[i * 2 + 1];
+    }
+    String[] staticFieldNames =
+        name.equals(LEAK_HOLDER_CLASS_NAME) ? new String[] { "chain" } : new String[0];
+    ClassDef classDef =
+        new ClassDef(objectId(classes.size()), name, superClass, staticFieldNames, fieldNames,
+            fieldTypes);
+    classes.add(classDef);
+    return classDef;
+  }
+
+  private static final class ClassDef {
+    final long id;
+    final String name;
+    final ClassDef superClass;
+    final String[] staticFieldNames;
+    final String[] fieldNames;
+    final int[] fieldTypes;
+
+    ClassDef(long id, String name, ClassDef superClass, String[] staticFieldNames,
+        String[] fieldNames, int[] fieldTypes) {
+      this.id = id;
+      this.name = name;
+      this.superClass = superClass;
+      this.staticFieldNames = staticFieldNames;
+      this.fieldNames = fieldNames;
+      this.fieldTypes = fieldTypes;
+    }
+
+    /** All field types used here are 4 bytes long. */
+    int instanceSize() {
+      return fieldNames.length * 4 + (superClass == null ? 0 : superClass.instanceSize());
+    }
+  }
+
+  /** A growable record body, written out with its record header once complete. */
+  private static final class Segment {
+    byte[] bytes;
+    int size;
+
+    Segment(int capacity) {
+      bytes = new byte[capacity];
+    }
+
+    void writeByte(int value) {
+      ensureCapacity(1);
+      bytes[size++] = (byte) value;
+    }
+
+    void writeShort(int value) {
+      ensureCapacity(2);
+      bytes[size++] = (byte) (value >>> 8);
+      bytes[size++] = (byte) value;
+    }
+
+    void writeInt(int value) {
+      ensureCapacity(4);
+      bytes[size++] = (byte) (value >>> 24);
+      bytes[size++] = (byte) (value >>> 16);
+      bytes[size++] = (byte) (value >>> 8);
+      bytes[size++] = (byte) value;
+    }
+
+    void writeId(long id) {
+      writeInt((int) id);
+    }
+
+    void write(byte[] values) {
+      ensureCapacity(values.length);
+      System.arraycopy(values, 0, bytes, size, values.length);
+      size += values.length;
+    }
+
+    /** Flushes as a heap dump segment once the segment is full, only between object records. */
+    void flushIfFull(DataOutputStream out) throws IOException {
+      if (size >= SEGMENT_SIZE) {
+        flushRecord(out, HEAP_DUMP_SEGMENT);
+      }
+    }
+
+    void flushRecord(DataOutputStream out, int tag) throws IOException {
+      out.writeByte(tag);
+      // Time offset.
+      out.writeInt(0);
+      out.writeInt(size);
+      out.write(bytes, 0, size);
+      size = 0;
+    }
+
+    private void ensureCapacity(int byteCount) {
+      if (size + byteCount > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + byteCount));
+      }
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.HprofParser;
+import com.squareup.haha.perflib.Snapshot;
+import com.squareup.haha.perflib.io.MemoryMappedFileBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.squareup.leakcanary.TestUtil.NO_EXCLUDED_REFS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HprofGeneratorTest {
+
+  private static final int CHAIN_DEPTH = 20;
+  private static final int LEAK_COUNT = 3;
+  private static final int GC_ROOT_COUNT = 200;
+  private static final int ROOT_COPIES = 3;
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private HprofGenerator generator;
+  private File heapDumpFile;
+
+  @Before public void setUp() throws IOException {
+    generator = HprofGenerator.builder()
+        .objectCount(5_000)
+        .chainDepth(CHAIN_DEPTH)
+        .gcRootCount(GC_ROOT_COUNT)
+        .rootCopies(ROOT_COPIES)
+        .leakCount(LEAK_COUNT)
+        .build();
+    heapDumpFile = temporaryFolder.newFile("synthetic.hprof");
+    generator.write(heapDumpFile);
+  }
+
+  @Test public void indexesEveryObject() throws IOException {
+    HprofIndex index = new HprofIndexer(new MemoryMappedFileBuffer(heapDumpFile),
+        Collections.singleton(KeyedWeakReference.class.getName())).index();
+    assertThat((long) index.objectCount()).isEqualTo(generator.objectTotal());
+    assertThat(index.instancesOf(KeyedWeakReference.class.getName())).hasSize(LEAK_COUNT);
+  }
+
+  @Test public void dropsDuplicatedRoots() throws IOException {
+    HprofIndex index = new HprofIndexer(new MemoryMappedFileBuffer(heapDumpFile),
+        Collections.singleton(KeyedWeakReference.class.getName())).index();
+    // Every copy after the first one is dropped, and so are random roots picked twice.
+    assertThat(index.duplicatedRootCount()).isGreaterThanOrEqualTo(
+        (ROOT_COPIES - 1) * GC_ROOT_COUNT);
+  }
+
+  @Test public void parsesWithHaha() throws IOException {
+    Snapshot snapshot = new HprofParser(new MemoryMappedFileBuffer(heapDumpFile)).parse();
+    assertThat(snapshot.findClass(HprofGenerator.LEAKING_CLASS_NAME).getInstancesList()).hasSize(
+        LEAK_COUNT);
+  }
+
+  @Test public void findsEveryPlantedLeak() {
+    Set<String> keys = new LinkedHashSet<>();
+    for (int i = 0; i < LEAK_COUNT; i++) {
+      keys.add(HprofGenerator.leakKey(i));
+    }
+    HeapAnalyzer heapAnalyzer = reachabilityAnalyzer().build();
+
+    Map<String, AnalysisResult> results = heapAnalyzer.checkForLeaks(heapDumpFile, keys);
+
+    for (AnalysisResult result : results.values()) {
+      assertThat(result.leakFound).isTrue();
+      assertThat(result.className).isEqualTo(HprofGenerator.LEAKING_CLASS_NAME);
+      // The holder class, every node of the chain, the array of leaks and the leaking instance.
+      assertThat(result.leakTrace.elements).hasSize(CHAIN_DEPTH + 3);
+      assertThat(result.leakTrace.elements.get(0).className).isEqualTo(
+          HprofGenerator.LEAK_HOLDER_CLASS_NAME);
+      // The leaking instance has one reference field and holds its content array.
+      assertThat(result.retainedHeapSize).isEqualTo(4 + HprofGenerator.LEAKING_CONTENT_SIZE);
+    }
+  }
+
+  private static HeapAnalyzer.Builder reachabilityAnalyzer() {
+    return HeapAnalyzer.builder()
+        .excludedRefs(NO_EXCLUDED_REFS)
+        .retainedSizeMode(RetainedSizeMode.REACHABILITY);
+  }
+}
@@ -0,0 +1,153 @@
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.ClassInstance;
+import com.squareup.haha.perflib.ClassObj;
+import com.squareup.haha.perflib.Heap;
+import com.squareup.haha.perflib.HprofParser;
+import com.squareup.haha.perflib.Instance;
+import com.squareup.haha.perflib.RootObj;
+import com.squareup.haha.perflib.Snapshot;
+import com.squareup.haha.perflib.io.MemoryMappedFileBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_M;
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_O;
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_PRE_M;
+import static com.squareup.leakcanary.TestUtil.fileFromName;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(Parameterized.class) //
+public class HprofIndexTest {
+
+  @Parameterized.Parameters public static Collection<Object[]> data() {
+    return Arrays.asList(new Object[][] {
+        { ASYNC_TASK_PRE_M }, //
+        { ASYNC_TASK_M }, //
+        { ASYNC_TASK_O }, //
+    });
+  }
+
+  private final TestUtil.HeapDumpFile heapDumpFile;
+  private Snapshot snapshot;
+  private HprofIndex index;
+
+  public HprofIndexTest(TestUtil.HeapDumpFile heapDumpFile) {
+    this.heapDumpFile = heapDumpFile;
+  }
+
+  @Before public void setUp() throws IOException {
+    File file = fileFromName(heapDumpFile.filename);
+    snapshot = new HprofParser(new MemoryMappedFileBuffer(file)).parse();
+    index = new HprofIndexer(new MemoryMappedFileBuffer(file),
+        Collections.singleton(KeyedWeakReference.class.getName())).index();
+  }
+
+  @Test public void indexesRootsOfAllHeaps() {
+    Set<String> indexedRoots = new HashSet<>();
+    for (int i = 0; i < index.rootCount(); i++) {
+      indexedRoots.add(index.rootType(i) + "@" + index.rootId(i));
+    }
+    Set<String> snapshotRoots = new HashSet<>();
+    for (RootObj root : snapshot.getGCRoots()) {
+      snapshotRoots.add(root.getRootType() + "@" + root.getId());
+    }
+    // Snapshot.getGCRoots() only returns the roots of the default heap.
+    snapshotRoots.removeAll(indexedRoots);
+    assertThat(snapshotRoots).isEmpty();
+  }
+
+  @Test public void describesObjectsLikeSnapshot() {
+    int objectCount = 0;
+    for (Heap heap : snapshot.getHeaps()) {
+      for (Instance instance : heap.getInstances()) {
+        int ordinal = index.ordinalOf(instance.getId());
+        assertThat(ordinal).isNotEqualTo(HprofIndex.NO_OBJECT);
+        assertThat(index.describe(ordinal)).isEqualTo(instance.toString());
+        objectCount++;
+      }
+      for (ClassObj classObj : heap.getClasses()) {
+        int ordinal = index.ordinalOf(classObj.getId());
+        assertThat(index.kindAt(ordinal)).isEqualTo(HprofIndex.CLASS);
+        assertThat(index.describe(ordinal)).isEqualTo(classObj.toString());
+        objectCount++;
+      }
+    }
+    assertThat(index.objectCount()).isEqualTo(objectCount);
+  }
+
+  @Test public void listsEveryClassInOrder() {
+    Set<Integer> snapshotClasses = new HashSet<>();
+    for (Heap heap : snapshot.getHeaps()) {
+      for (ClassObj classObj : heap.getClasses()) {
+        snapshotClasses.add(index.ordinalOf(classObj.getId()));
+      }
+    }
+    int[] classOrdinals = index.classOrdinals();
+    assertThat(classOrdinals).hasSize(snapshotClasses.size());
+    for (int i = 0; i < classOrdinals.length; i++) {
+      assertThat(snapshotClasses).contains(classOrdinals[i]);
+      if (i > 0) {
+        assertThat(classOrdinals[i]).isGreaterThan(classOrdinals[i - 1]);
+      }
+    }
+  }
+
+  @Test public void readsStringsLikeSnapshot() {
+    ClassObj stringClass = snapshot.findClass(String.class.getName());
+    for (Instance string : stringClass.getInstancesList()) {
+      if (string instanceof ClassInstance) {
+        int ordinal = index.ordinalOf(string.getId());
+        assertThat(HahaHelper.asString(index, ordinal)).isEqualTo(HahaHelper.asString(string));
+      }
+    }
+  }
+
+  @Test public void readsFieldsByOffsetLikeSnapshot() {
+    ClassObj threadClass = snapshot.findClass(Thread.class.getName());
+    for (Instance thread : threadClass.getInstancesList()) {
+      int ordinal = index.ordinalOf(thread.getId());
+      List<ClassInstance.FieldValue> values = HahaHelper.classInstanceValues(thread);
+      FieldLayout layout = index.fieldLayout(index.classOf(ordinal));
+      assertThat(layout.fields).hasSize(values.size());
+      for (int i = 0; i < values.size(); i++) {
+        assertThat(layout.fields[i].getName()).isEqualTo(values.get(i).getField().getName());
+      }
+      Instance name = HahaHelper.fieldValue(values, "name");
+      assertThat(index.readReferenceField(ordinal, "name")).isEqualTo(
+          name == null ? 0 : name.getId());
+      assertThat(index.readIntField(ordinal, "priority")).isEqualTo(
+          HahaHelper.<Integer>fieldValue(values, "priority"));
+    }
+  }
+
+  @Test public void findsKeyedWeakReferences() {
+    ClassObj refClass = snapshot.findClass(KeyedWeakReference.class.getName());
+    assertThat(index.instancesOf(KeyedWeakReference.class.getName())).hasSize(
+        refClass.getInstancesList().size());
+  }
+
+  @Test public void findsKeyedWeakReferencesByKey() {
+    ReferenceKeyIndex weakRefsByKey = ReferenceKeyIndex.build(index);
+    ClassObj refClass = snapshot.findClass(KeyedWeakReference.class.getName());
+    for (Instance weakRef : refClass.getInstancesList()) {
+      String key = HahaHelper.asString(
+          HahaHelper.<Object>fieldValue(HahaHelper.classInstanceValues(weakRef), "key"));
+      int found = weakRefsByKey.find(key);
+      assertThat(found).isNotEqualTo(HprofIndex.NO_OBJECT);
+      assertThat(HahaHelper.asString(index,
+          index.ordinalOf(index.readReferenceField(found, "key")))).isEqualTo(key);
+    }
+    assertThat(weakRefsByKey.find("not a key")).isEqualTo(HprofIndex.NO_OBJECT);
+  }
+}
@@ -20,21 +20,35 @@ import static org.junit.Assert.assertEquals;
 @RunWith(Parameterized.class) //
 public class RetainedSizeTest {
 
+  /**
+   * Heap dump, dominator tree retained size, reachability retained size.
+   *
+   * The reachability sizes are the exact retained sets of the leaking activity: every object in
+   * them is only reachable from the GC roots through the activity, in the reference graph of HAHA
+   * too. On pre M, HAHA dominates the same 546 objects (33_367 bytes) and the dominator tree size
+   * adds 174_040 bytes of bitmaps held by native GC roots, see {@link BitmapRetainedSizes}. On M
+   * and O, HAHA's dominators put most of the view hierarchy (885 and 972 objects) under the
+   * AsyncTask that holds the activity, although every path to those views goes through the
+   * activity.
+   */
   @Parameterized.Parameters public static Collection<Object[]> data() {
     return Arrays.asList(new Object[][] {
-        { ASYNC_TASK_PRE_M, 207_407 }, //
-        { ASYNC_TASK_M, 1_870 }, //
-        { ASYNC_TASK_O, 753 }, //
+        { ASYNC_TASK_PRE_M, 207_407, 33_367 }, //
+        { ASYNC_TASK_M, 1_870, 49_584 }, //
+        { ASYNC_TASK_O, 753, 46_259 }, //
     });
   }
 
   private final TestUtil.HeapDumpFile heapDumpFile;
   private final long expectedRetainedHeapSize;
+  private final long expectedReachableRetainedHeapSize;
   ExcludedRefs.BuilderWithParams excludedRefs;
 
-  public RetainedSizeTest(TestUtil.HeapDumpFile heapDumpFile, long expectedRetainedHeapSize) {
+  public RetainedSizeTest(TestUtil.HeapDumpFile heapDumpFile, long expectedRetainedHeapSize,
+      long expectedReachableRetainedHeapSize) {
     this.heapDumpFile = heapDumpFile;
     this.expectedRetainedHeapSize = expectedRetainedHeapSize;
+    this.expectedReachableRetainedHeapSize = expectedReachableRetainedHeapSize;
   }
 
   @Before public void setUp() {
@@ -48,4 +62,9 @@ public class RetainedSizeTest {
     AnalysisResult result = analyze(heapDumpFile, excludedRefs);
     assertEquals(expectedRetainedHeapSize, result.retainedHeapSize);
   }
+
+  @Test public void leakFoundWithReachability() {
+    AnalysisResult result = analyze(heapDumpFile, excludedRefs, RetainedSizeMode.REACHABILITY);
+    assertEquals(expectedReachableRetainedHeapSize, result.retainedHeapSize);
+  }
 }
@@ -0,0 +1,175 @@
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.RootType;
+import com.squareup.haha.perflib.io.MemoryMappedFileBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import static com.squareup.leakcanary.TestUtil.NO_EXCLUDED_REFS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(Parameterized.class) //
+public class ShortestPathFinderTest {
+
+  private static final int CHAIN_DEPTH = 20;
+  private static final int LEAK_COUNT = 3;
+
+  @Parameterized.Parameters public static Collection<Object[]> data() {
+    return Arrays.asList(new Object[][] {
+        { false }, //
+        { true }, //
+    });
+  }
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final boolean mapped;
+  private ScratchSpace space;
+  private HprofIndex index;
+  private int[] leakingRefs;
+
+  public ShortestPathFinderTest(boolean mapped) {
+    this.mapped = mapped;
+  }
+
+  @Before public void setUp() throws IOException {
+    space = mapped ? ScratchSpace.mapped(temporaryFolder.newFolder(), "visited")
+        : ScratchSpace.onHeap();
+    File heapDumpFile = temporaryFolder.newFile("synthetic.hprof");
+    HprofGenerator.builder()
+        .objectCount(5_000)
+        .chainDepth(CHAIN_DEPTH)
+        .gcRootCount(200)
+        .rootCopies(3)
+        .leakCount(LEAK_COUNT)
+        .build()
+        .write(heapDumpFile);
+    index = new HprofIndexer(new MemoryMappedFileBuffer(heapDumpFile),
+        Collections.singleton(HprofGenerator.LEAKING_CLASS_NAME)).index();
+    leakingRefs = index.instancesOf(HprofGenerator.LEAKING_CLASS_NAME);
+  }
+
+  @After public void tearDown() {
+    space.close();
+  }
+
+  @Test public void visitsEachObjectOnce() {
+    ShortestPathFinder pathFinder =
+        new ShortestPathFinder(NO_EXCLUDED_REFS, 1, AnalyzerProgressListener.NONE, space);
+
+    ShortestPathFinder.Result[] results = pathFinder.findPaths(index, leakingRefs);
+
+    assertThat(results).hasSize(LEAK_COUNT);
+    for (ShortestPathFinder.Result result : results) {
+      // The holder class, every node of the chain, the array of leaks and the leaking instance.
+      assertThat(pathLength(result.leakingNode)).isEqualTo(CHAIN_DEPTH + 3);
+    }
+    // Roots are duplicated and nodes are referenced several times, yet each is only visited once.
+    assertThat(pathFinder.visitedNodeCount()).isLessThanOrEqualTo(index.objectCount());
+    assertThat(pathFinder.enqueuedNodeCount()).isLessThanOrEqualTo(index.objectCount());
+  }
+
+  @Test public void startsEachSearchFromScratch() {
+    ShortestPathFinder pathFinder =
+        new ShortestPathFinder(NO_EXCLUDED_REFS, 1, AnalyzerProgressListener.NONE, space);
+    ShortestPathFinder.Result[] first = pathFinder.findPaths(index, leakingRefs);
+    long visitedNodeCount = pathFinder.visitedNodeCount();
+
+    ShortestPathFinder.Result[] second = pathFinder.findPaths(index, leakingRefs);
+
+    assertThat(pathFinder.visitedNodeCount()).isEqualTo(visitedNodeCount);
+    for (int i = 0; i < LEAK_COUNT; i++) {
+      assertThat(pathLength(second[i].leakingNode)).isEqualTo(pathLength(first[i].leakingNode));
+    }
+  }
+
+  @Test public void recordsWhereEachReferenceIsHeld() {
+    ShortestPathFinder pathFinder =
+        new ShortestPathFinder(NO_EXCLUDED_REFS, 1, AnalyzerProgressListener.NONE, space);
+
+    ShortestPathFinder.Result[] results = pathFinder.findPaths(index, leakingRefs);
+
+    Set<LeakTraceElement.Type> referenceTypes = EnumSet.noneOf(LeakTraceElement.Type.class);
+    for (ShortestPathFinder.Result result : results) {
+      for (LeakNode node = result.leakingNode; node.parent != null; node = node.parent) {
+        referenceTypes.add(node.referenceType);
+        assertThat(heldReference(node)).isEqualTo(index.idAt(node.instance));
+      }
+    }
+    assertThat(referenceTypes).isEqualTo(EnumSet.of(LeakTraceElement.Type.STATIC_FIELD,
+        LeakTraceElement.Type.INSTANCE_FIELD, LeakTraceElement.Type.ARRAY_ENTRY));
+  }
+
+  @Test public void reachesJavaLocalsThroughTheirThread() {
+    // Objects only held by local variables, other roots would be a path just as short.
+    Set<Integer> localOnly = new LinkedHashSet<>();
+    Set<Integer> otherRoots = new HashSet<>();
+    for (int i = 0; i < index.rootCount(); i++) {
+      int child = index.ordinalOf(index.rootId(i));
+      if (index.rootType(i) == RootType.JAVA_LOCAL) {
+        localOnly.add(child);
+      } else {
+        otherRoots.add(child);
+      }
+    }
+    localOnly.removeAll(otherRoots);
+    assertThat(localOnly).isNotEmpty();
+    int[] locals = new int[localOnly.size()];
+    int count = 0;
+    for (int local : localOnly) {
+      locals[count++] = local;
+    }
+    ShortestPathFinder pathFinder =
+        new ShortestPathFinder(NO_EXCLUDED_REFS, 1, AnalyzerProgressListener.NONE, space);
+
+    ShortestPathFinder.Result[] results = pathFinder.findPaths(index, locals);
+
+    LeakNode threadNode = results[0].leakingNode.parent;
+    assertThat(index.classNameOf(threadNode.instance)).isEqualTo(Thread.class.getName());
+    assertThat(threadNode.parent).isNull();
+    for (ShortestPathFinder.Result result : results) {
+      assertThat(result.leakingNode.referenceType).isEqualTo(LeakTraceElement.Type.LOCAL);
+      // Every local of the thread shares the node resolved for it.
+      assertThat(result.leakingNode.parent).isSameAs(threadNode);
+    }
+  }
+
+  /** Id of the object that the parent of {@code node} holds where the node says it does. */
+  private long heldReference(LeakNode node) {
+    int holder = node.parent.instance;
+    switch (node.referenceType) {
+      case STATIC_FIELD:
+        Object value = index.asClass(holder).staticValues[node.referenceIndex];
+        return index.idAt(index.ordinalOf(value));
+      case INSTANCE_FIELD:
+        FieldLayout layout = index.fieldLayout(index.classOf(holder));
+        return index.readReferenceField(holder, layout.offsets[node.referenceIndex]);
+      case ARRAY_ENTRY:
+        return index.objectArrayElements(holder)[node.referenceIndex];
+      default:
+        throw new AssertionError("Unexpected reference type " + node.referenceType);
+    }
+  }
+
+  private static int pathLength(LeakNode node) {
+    int length = 0;
+    for (; node != null; node = node.parent) {
+      length++;
+    }
+    return length;
+  }
+}
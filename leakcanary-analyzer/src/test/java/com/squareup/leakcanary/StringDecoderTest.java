@@ -0,0 +1,127 @@
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.ClassInstance;
+import com.squareup.haha.perflib.ClassObj;
+import com.squareup.haha.perflib.HprofParser;
+import com.squareup.haha.perflib.Instance;
+import com.squareup.haha.perflib.Snapshot;
+import com.squareup.haha.perflib.Type;
+import com.squareup.haha.perflib.io.MemoryMappedFileBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_M;
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_O;
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_PRE_M;
+import static com.squareup.leakcanary.TestUtil.fileFromName;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(Parameterized.class) //
+public class StringDecoderTest {
+
+  /** Same as the cache size of {@link StringDecoder}. */
+  private static final int CACHE_SIZE = 4096;
+
+  @Parameterized.Parameters public static Collection<Object[]> data() {
+    return Arrays.asList(new Object[][] {
+        { ASYNC_TASK_PRE_M, EnumSet.of(Type.CHAR) }, //
+        { ASYNC_TASK_M, EnumSet.of(Type.CHAR) }, //
+        // Compressed strings hold their Latin-1 characters in a byte array.
+        { ASYNC_TASK_O, EnumSet.of(Type.BYTE, Type.CHAR) }, //
+    });
+  }
+
+  private final TestUtil.HeapDumpFile heapDumpFile;
+  private final Set<Type> valueTypes;
+  private HprofIndex index;
+  /** Content of every non empty string, by ordinal, as decoded by HAHA. */
+  private Map<Integer, String> expectedStrings;
+
+  public StringDecoderTest(TestUtil.HeapDumpFile heapDumpFile, Set<Type> valueTypes) {
+    this.heapDumpFile = heapDumpFile;
+    this.valueTypes = valueTypes;
+  }
+
+  @Before public void setUp() throws IOException {
+    File file = fileFromName(heapDumpFile.filename);
+    Snapshot snapshot = new HprofParser(new MemoryMappedFileBuffer(file)).parse();
+    index = new HprofIndexer(new MemoryMappedFileBuffer(file),
+        Collections.singleton(KeyedWeakReference.class.getName())).index();
+    expectedStrings = new LinkedHashMap<>();
+    ClassObj stringClass = snapshot.findClass(String.class.getName());
+    for (Instance string : stringClass.getInstancesList()) {
+      if (string instanceof ClassInstance) {
+        String value = HahaHelper.asString(string);
+        if (!value.isEmpty()) {
+          expectedStrings.put(index.ordinalOf(string.getId()), value);
+        }
+      }
+    }
+    assertThat(expectedStrings).isNotEmpty();
+  }
+
+  @Test public void decodesEveryValueArrayType() {
+    StringDecoder decoder = new StringDecoder(index);
+    Set<Type> decodedTypes = EnumSet.noneOf(Type.class);
+    for (int ordinal : expectedStrings.keySet()) {
+      decodedTypes.add(valueType(ordinal));
+      assertThat(decoder.decode(ordinal)).isEqualTo(expectedStrings.get(ordinal));
+    }
+    assertThat(decodedTypes).isEqualTo(valueTypes);
+  }
+
+  @Test public void hashesWithoutDecoding() {
+    StringDecoder decoder = new StringDecoder(index);
+    for (Map.Entry<Integer, String> entry : expectedStrings.entrySet()) {
+      int ordinal = entry.getKey();
+      int expectedHash;
+      if (valueType(ordinal) == Type.CHAR) {
+        expectedHash = entry.getValue().hashCode();
+      } else {
+        int arrayOrdinal = index.ordinalOf(index.readReferenceField(ordinal, "value"));
+        expectedHash = 0;
+        for (byte b : index.readBytes(arrayOrdinal, index.readIntField(ordinal, "count"))) {
+          expectedHash = 31 * expectedHash + (b & 0xff);
+        }
+      }
+      assertThat(decoder.hash(ordinal)).isEqualTo(expectedHash);
+    }
+  }
+
+  @Test public void evictsStringsSharingACacheSlot() {
+    List<Integer> sameSlot = new ArrayList<>();
+    Map<Integer, Integer> firstBySlot = new LinkedHashMap<>();
+    for (int ordinal : expectedStrings.keySet()) {
+      Integer first = firstBySlot.put(ordinal & (CACHE_SIZE - 1), ordinal);
+      if (first != null && !expectedStrings.get(first).equals(expectedStrings.get(ordinal))) {
+        sameSlot.add(first);
+        sameSlot.add(ordinal);
+        break;
+      }
+    }
+    assertThat(sameSlot).hasSize(2);
+
+    StringDecoder decoder = new StringDecoder(index);
+    for (int ordinal : Arrays.asList(sameSlot.get(0), sameSlot.get(1), sameSlot.get(0))) {
+      assertThat(decoder.decode(ordinal)).isEqualTo(expectedStrings.get(ordinal));
+    }
+  }
+
+  private Type valueType(int stringOrdinal) {
+    return index.primitiveArrayType(
+        index.ordinalOf(index.readReferenceField(stringOrdinal, "value")));
+  }
+}
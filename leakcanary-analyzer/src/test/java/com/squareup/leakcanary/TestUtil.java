@@ -51,9 +51,27 @@ final class TestUtil {
   }
 
   static AnalysisResult analyze(HeapDumpFile heapDumpFile, ExcludedRefs.BuilderWithParams excludedRefs) {
+    return analyze(heapDumpFile, excludedRefs, RetainedSizeMode.DOMINATOR_TREE);
+  }
+
+  static AnalysisResult analyze(HeapDumpFile heapDumpFile,
+      ExcludedRefs.BuilderWithParams excludedRefs, RetainedSizeMode retainedSizeMode) {
+    return analyze(heapDumpFile, HeapAnalyzer.builder()
+        .excludedRefs(excludedRefs.build())
+        .retainedSizeMode(retainedSizeMode)
+        .build());
+  }
+
+  static AnalysisResult analyze(HeapDumpFile heapDumpFile,
+      ExcludedRefs.BuilderWithParams excludedRefs, PathSearchMode pathSearchMode) {
+    return analyze(heapDumpFile,
+        HeapAnalyzer.builder().excludedRefs(excludedRefs.build()).pathSearchMode(pathSearchMode)
+            .build());
+  }
+
+  private static AnalysisResult analyze(HeapDumpFile heapDumpFile, HeapAnalyzer heapAnalyzer) {
     File file = fileFromName(heapDumpFile.filename);
     String referenceKey = heapDumpFile.referenceKey;
-    HeapAnalyzer heapAnalyzer = new HeapAnalyzer(excludedRefs.build());
     AnalysisResult result = heapAnalyzer.checkForLeak(file, referenceKey);
     if (result.failure != null) {
       result.failure.printStackTrace();
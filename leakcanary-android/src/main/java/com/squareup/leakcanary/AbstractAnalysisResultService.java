@@ -18,14 +18,28 @@ package com.squareup.leakcanary;
 import android.app.IntentService;
 import android.content.Context;
 import android.content.Intent;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public abstract class AbstractAnalysisResultService extends IntentService {
 
   private static final String HEAP_DUMP_EXTRA = "heap_dump_extra";
-  private static final String RESULT_EXTRA = "result_extra";
+  private static final String RESULTS_EXTRA = "results_extra";
 
   public static void sendResultToListener(Context context, String listenerServiceClassName,
       HeapDump heapDump, AnalysisResult result) {
+    sendResultsToListener(context, listenerServiceClassName, heapDump,
+        Collections.singletonMap(heapDump.referenceKey, result));
+  }
+
+  /**
+   * Sends the results of the references analyzed together in {@code heapDump}, by reference key.
+   * {@link #onHeapAnalyzed(HeapDump, AnalysisResult)} is called once per result, in the iteration
+   * order of {@code results}, and the heap dump file is deleted after the last one.
+   */
+  public static void sendResultsToListener(Context context, String listenerServiceClassName,
+      HeapDump heapDump, Map<String, AnalysisResult> results) {
     Class<?> listenerServiceClass;
     try {
       listenerServiceClass = Class.forName(listenerServiceClassName);
@@ -36,7 +50,7 @@ public abstract class AbstractAnalysisResultService extends IntentService {
     Intent intent = new Intent(context, listenerServiceClass);
     //将分析的信息传回给Service,发出内存泄漏的通知
     intent.putExtra(HEAP_DUMP_EXTRA, heapDump);
-    intent.putExtra(RESULT_EXTRA, result);
+    intent.putExtra(RESULTS_EXTRA, new LinkedHashMap<>(results));
     context.startService(intent);
   }
 
@@ -46,15 +60,46 @@ public abstract class AbstractAnalysisResultService extends IntentService {
 
   @Override protected final void onHandleIntent(Intent intent) {
     HeapDump heapDump = (HeapDump) intent.getSerializableExtra(HEAP_DUMP_EXTRA);
-    AnalysisResult result = (AnalysisResult) intent.getSerializableExtra(RESULT_EXTRA);
+    @SuppressWarnings("unchecked") Map<String, AnalysisResult> results =
+        (Map<String, AnalysisResult>) intent.getSerializableExtra(RESULTS_EXTRA);
     try {
-      onHeapAnalyzed(heapDump, result);
+      onHeapDumpAnalyzed(heapDump, results);
     } finally {
       //noinspection ResultOfMethodCallIgnored
       heapDump.heapDumpFile.delete();
     }
   }
 
+  /**
+   * Called with the results of all the references analyzed together in {@code heapDump}, by
+   * reference key. Calls {@link #onHeapAnalyzed(HeapDump, AnalysisResult)} for each of them by
+   * default, with the heap dump as seen from that reference, see {@link
+   * #referenceHeapDump(HeapDump, String)}.
+   *
+   * This will be called from a background intent service thread, and the heap dump file will be
+   * deleted immediately after it returns.
+   */
+  protected void onHeapDumpAnalyzed(HeapDump heapDump, Map<String, AnalysisResult> results) {
+    for (Map.Entry<String, AnalysisResult> entry : results.entrySet()) {
+      onHeapAnalyzed(referenceHeapDump(heapDump, entry.getKey()), entry.getValue());
+    }
+  }
+
+  /**
+   * Returns {@code heapDump} with {@link HeapDump#referenceKey} and {@link HeapDump#referenceName}
+   * set to those of one of its {@link HeapDump#retainedReferenceNames}.
+   */
+  protected static HeapDump referenceHeapDump(HeapDump heapDump, String referenceKey) {
+    if (referenceKey.equals(heapDump.referenceKey)) {
+      return heapDump;
+    }
+    String referenceName = heapDump.retainedReferenceNames.get(referenceKey);
+    return heapDump.buildUpon()
+        .referenceKey(referenceKey)
+        .referenceName(referenceName != null ? referenceName : "")
+        .build();
+  }
+
   /**
    * Called after a heap dump is analyzed, whether or not a leak was found.
    * Check {@link AnalysisResult#leakFound} and {@link AnalysisResult#excludedLeak} to see if there
@@ -64,7 +109,9 @@ public abstract class AbstractAnalysisResultService extends IntentService {
    * <p>
    * It's OK to block here and wait for the heap dump to be uploaded.
    * <p>
-   * The heap dump file will be deleted immediately after this callback returns.
+   * The heap dump file will be deleted immediately after this callback returns for the last result
+   * of the heap dump. References retained together share the same heap dump, and this is called
+   * once for each of them.
    */
   protected abstract void onHeapAnalyzed(HeapDump heapDump, AnalysisResult result);
 }
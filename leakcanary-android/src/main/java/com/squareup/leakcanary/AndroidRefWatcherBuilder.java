@@ -79,6 +79,7 @@ public final class AndroidRefWatcherBuilder extends RefWatcherBuilder<AndroidRef
     if (refWatcher != DISABLED) {
 
       LeakCanary.enableDisplayLeakActivity(context);
+      AppVisibilityWatcher.install((Application) context, refWatcher);
       //默认为true
       if (watchActivities) {
         //注意，在这里通过监听Application,监听Activity的生命周期
@@ -111,6 +112,14 @@ public final class AndroidRefWatcherBuilder extends RefWatcherBuilder<AndroidRef
     return AndroidExcludedRefs.createAppDefaults().build();
   }
 
+  @Override protected RetainedReferenceListener defaultRetainedReferenceListener() {
+    return new RetainedReferenceListener() {
+      @Override public void onReferencesRetained(int retainedCount, int threshold) {
+        CanaryLog.d("%d retained references, dumping the heap at %d", retainedCount, threshold);
+      }
+    };
+  }
+
   @Override protected WatchExecutor defaultWatchExecutor() {
     //默认线程池，5s
     return new AndroidWatchExecutor(DEFAULT_WATCH_DELAY_MILLIS);
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+
+/**
+ * Tells the {@link RefWatcher} when the app goes to the background, which is when no activity is
+ * started, so that it applies {@link RefWatcherBuilder#backgroundRetainedThreshold(int)}.
+ */
+final class AppVisibilityWatcher implements Application.ActivityLifecycleCallbacks {
+
+  static void install(Application application, RefWatcher refWatcher) {
+    application.registerActivityLifecycleCallbacks(new AppVisibilityWatcher(refWatcher));
+  }
+
+  private final RefWatcher refWatcher;
+  /** Lifecycle callbacks are called on the main thread. */
+  private int startedActivityCount;
+
+  private AppVisibilityWatcher(RefWatcher refWatcher) {
+    this.refWatcher = refWatcher;
+  }
+
+  @Override public void onActivityStarted(Activity activity) {
+    if (startedActivityCount++ == 0) {
+      refWatcher.setAppVisible(true);
+    }
+  }
+
+  @Override public void onActivityStopped(Activity activity) {
+    // An activity recreated for a configuration change is started again right away.
+    if (--startedActivityCount == 0 && !activity.isChangingConfigurations()) {
+      refWatcher.setAppVisible(false);
+    }
+  }
+
+  @Override public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+  }
+
+  @Override public void onActivityResumed(Activity activity) {
+  }
+
+  @Override public void onActivityPaused(Activity activity) {
+  }
+
+  @Override public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+  }
+
+  @Override public void onActivityDestroyed(Activity activity) {
+  }
+}
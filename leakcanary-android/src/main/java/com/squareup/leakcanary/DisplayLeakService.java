@@ -23,8 +23,10 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Locale;
+import java.util.Map;
 
 import static android.text.format.Formatter.formatShortFileSize;
 import static com.squareup.leakcanary.LeakCanary.leakInfo;
@@ -45,13 +47,33 @@ import static com.squareup.leakcanary.internal.LeakCanaryInternals.showNotificat
 public class DisplayLeakService extends AbstractAnalysisResultService {
 
   @Override protected final void onHeapAnalyzed(HeapDump heapDump, AnalysisResult result) {
+    onHeapDumpAnalyzed(heapDump, Collections.singletonMap(heapDump.referenceKey, result));
+  }
+
+  /** The results of references retained together share the heap dump, which is renamed once. */
+  @Override protected final void onHeapDumpAnalyzed(HeapDump heapDump,
+      Map<String, AnalysisResult> results) {
+    File renamedHeapDumpFile = null;
+    for (Map.Entry<String, AnalysisResult> entry : results.entrySet()) {
+      HeapDump referenceHeapDump = referenceHeapDump(heapDump, entry.getKey());
+      AnalysisResult result = entry.getValue();
+      if (result.leakFound || result.failure != null) {
+        if (renamedHeapDumpFile == null) {
+          renamedHeapDumpFile = renameHeapdump(heapDump.heapDumpFile);
+        }
+        referenceHeapDump = referenceHeapDump.buildUpon().heapDumpFile(renamedHeapDumpFile).build();
+      }
+      handleResult(referenceHeapDump, result);
+    }
+  }
+
+  private void handleResult(HeapDump heapDump, AnalysisResult result) {
     String leakInfo = leakInfo(this, heapDump, result, true);
     CanaryLog.d("%s", leakInfo);
 
     boolean resultSaved = false;
     boolean shouldSaveResult = result.leakFound || result.failure != null;
     if (shouldSaveResult) {
-      heapDump = renameHeapdump(heapDump);
       resultSaved = saveResult(heapDump, result);
     }
 
@@ -95,6 +117,11 @@ public class DisplayLeakService extends AbstractAnalysisResultService {
   private boolean saveResult(HeapDump heapDump, AnalysisResult result) {
     File resultFile = new File(heapDump.heapDumpFile.getParentFile(),
         heapDump.heapDumpFile.getName() + ".result");
+    if (resultFile.exists()) {
+      // Another reference retained in the same heap dump already saved its result.
+      resultFile = new File(heapDump.heapDumpFile.getParentFile(),
+          heapDump.heapDumpFile.getName() + "_" + heapDump.referenceKey + ".result");
+    }
     FileOutputStream fos = null;
     try {
       fos = new FileOutputStream(resultFile);
@@ -115,19 +142,17 @@ public class DisplayLeakService extends AbstractAnalysisResultService {
     return false;
   }
 
-  private HeapDump renameHeapdump(HeapDump heapDump) {
+  private File renameHeapdump(File heapDumpFile) {
     String fileName =
         new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss_SSS'.hprof'", Locale.US).format(new Date());
 
-    File newFile = new File(heapDump.heapDumpFile.getParent(), fileName);
-    boolean renamed = heapDump.heapDumpFile.renameTo(newFile);
+    File newFile = new File(heapDumpFile.getParent(), fileName);
+    boolean renamed = heapDumpFile.renameTo(newFile);
     if (!renamed) {
-      CanaryLog.d("Could not rename heap dump file %s to %s", heapDump.heapDumpFile.getPath(),
+      CanaryLog.d("Could not rename heap dump file %s to %s", heapDumpFile.getPath(),
           newFile.getPath());
     }
-    return new HeapDump(newFile, heapDump.referenceKey, heapDump.referenceName,
-        heapDump.excludedRefs, heapDump.watchDurationMs, heapDump.gcDurationMs,
-        heapDump.heapDumpDurationMs);
+    return newFile;
   }
 
   /**
@@ -101,7 +101,14 @@ public final class LeakCanary {
         info += " (" + heapDump.referenceName + ")";
       }
       info += " has leaked:\n" + result.leakTrace.toString() + "\n";
-      info += "* Retaining: " + formatShortFileSize(context, result.retainedHeapSize) + ".\n";
+      for (int i = 0; i < result.otherLeakTraces.size(); i++) {
+        info += "* Other path " + (i + 1) + ":\n" + result.otherLeakTraces.get(i) + "\n";
+      }
+      if (result.canceled) {
+        info += "* Analysis canceled before the retained size was computed.\n";
+      } else {
+        info += "* Retaining: " + formatShortFileSize(context, result.retainedHeapSize) + ".\n";
+      }
       if (detailed) {
         detailedString = "\n* Details:\n" + result.leakTrace.toDetailedString();
       }
@@ -148,6 +155,7 @@ public final class LeakCanary {
         + result.analysisDurationMs
         + "ms"
         + "\n"
+        + (result.stats != null ? result.stats.toString() : "")
         + detailedString;
 
     return info;
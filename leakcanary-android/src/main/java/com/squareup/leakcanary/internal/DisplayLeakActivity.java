@@ -234,12 +234,22 @@ public final class DisplayLeakActivity extends Activity {
     if (!resultDeleted) {
       CanaryLog.d("Could not delete result file %s", resultFile.getPath());
     }
-    boolean heapDumpDeleted = heapDumpFile.delete();
-    if (!heapDumpDeleted) {
-      CanaryLog.d("Could not delete heap dump file %s", heapDumpFile.getPath());
-    }
     visibleLeakRefKey = null;
     leaks.remove(visibleLeak);
+    // References retained together share a heap dump, keep it until their last result is deleted.
+    boolean heapDumpShared = false;
+    for (Leak leak : leaks) {
+      if (leak.heapDump.heapDumpFile.equals(heapDumpFile)) {
+        heapDumpShared = true;
+        break;
+      }
+    }
+    if (!heapDumpShared) {
+      boolean heapDumpDeleted = heapDumpFile.delete();
+      if (!heapDumpDeleted) {
+        CanaryLog.d("Could not delete heap dump file %s", heapDumpFile.getPath());
+      }
+    }
     updateUi();
   }
 
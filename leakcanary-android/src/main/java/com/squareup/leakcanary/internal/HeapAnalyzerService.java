@@ -19,19 +19,30 @@ import android.app.IntentService;
 import android.content.Context;
 import android.content.Intent;
 import com.squareup.leakcanary.AbstractAnalysisResultService;
+import com.squareup.leakcanary.AnalysisBudget;
 import com.squareup.leakcanary.AnalysisResult;
+import com.squareup.leakcanary.AnalyzerProgressListener;
 import com.squareup.leakcanary.CanaryLog;
 import com.squareup.leakcanary.HeapAnalyzer;
 import com.squareup.leakcanary.HeapDump;
+import com.squareup.leakcanary.MemoryMode;
+import com.squareup.leakcanary.RetainedSizeMode;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
 
 /**
  * This service runs in a separate process to avoid slowing down the app process or making it run
  * out of memory.
  */
-public final class HeapAnalyzerService extends IntentService {
+public final class HeapAnalyzerService extends IntentService
+    implements AnalyzerProgressListener {
 
   private static final String LISTENER_CLASS_EXTRA = "listener_class_extra";
   private static final String HEAPDUMP_EXTRA = "heapdump_extra";
+  /** Analyses running longer than this are canceled, and report what they found so far. */
+  private static final long MAX_ANALYSIS_DURATION_MS = MINUTES.toMillis(10);
 
   public static void runAnalysis(Context context, HeapDump heapDump,
       Class<? extends AbstractAnalysisResultService> listenerServiceClass) {
@@ -56,10 +67,47 @@ public final class HeapAnalyzerService extends IntentService {
     String listenerClassName = intent.getStringExtra(LISTENER_CLASS_EXTRA);
     HeapDump heapDump = (HeapDump) intent.getSerializableExtra(HEAPDUMP_EXTRA);
 
-    HeapAnalyzer heapAnalyzer = new HeapAnalyzer(heapDump.excludedRefs);
+    // This process only analyzes the heap dump, all the cores can search for the leak trace.
+    int pathFinderThreadCount = Runtime.getRuntime().availableProcessors();
+    AnalyzerProgressListener listener =
+        new AnalysisBudget(this, MAX_ANALYSIS_DURATION_MS, AnalysisBudget.UNLIMITED);
+    // Heap dumps too large for the heap of this process are analyzed from scratch files. Retained
+    // sizes come from reachability: dominators would parse the whole heap dump into a Snapshot.
+    HeapAnalyzer heapAnalyzer = HeapAnalyzer.builder()
+        .excludedRefs(heapDump.excludedRefs)
+        .retainedSizeMode(RetainedSizeMode.REACHABILITY)
+        .pathFinderThreadCount(pathFinderThreadCount)
+        .listener(listener)
+        .memoryMode(MemoryMode.AUTOMATIC)
+        .build();
     //分析获得结果,haha库就在内部调用的，注意分析
-    AnalysisResult result = heapAnalyzer.checkForLeak(heapDump.heapDumpFile, heapDump.referenceKey);
+    // References checked together share this heap dump, a single pass analyzes all of them.
+    Map<String, AnalysisResult> results = heapAnalyzer.checkForLeaks(heapDump.heapDumpFile,
+        heapDump.retainedReferenceNames.keySet());
+    // The other keys are only reported when they leak or fail: like the first key, the others can
+    // have been cleared by the time the heap was dumped, and would each report that no leak was
+    // found.
+    Map<String, AnalysisResult> reportedResults = new LinkedHashMap<>();
+    for (Map.Entry<String, AnalysisResult> entry : results.entrySet()) {
+      AnalysisResult result = entry.getValue();
+      if (entry.getKey().equals(heapDump.referenceKey) || result.leakFound
+          || result.failure != null) {
+        reportedResults.put(entry.getKey(), result);
+      }
+    }
     //回调结果
-    AbstractAnalysisResultService.sendResultToListener(this, listenerClassName, heapDump, result);
+    AbstractAnalysisResultService.sendResultsToListener(this, listenerClassName, heapDump,
+        reportedResults);
+  }
+
+  @Override public void onProgressUpdate(Step step) {
+    CanaryLog.d("Analysis in progress, working on: %s", step.name());
+  }
+
+  @Override public void onNodesVisited(long visitedNodeCount) {
+  }
+
+  @Override public boolean isCanceled() {
+    return false;
   }
 }
@@ -21,7 +21,14 @@ package com.squareup.leakcanary;
  * RefWatcher} checks the reference queue again, to avoid taking a heap dump if possible.
  */
 public interface GcTrigger {
-  GcTrigger DEFAULT = new GcTrigger() {
+  /**
+   * Runs the GC then sleeps 100ms. As a {@link ReferenceQueueAware} trigger, a {@link RefWatcher}
+   * has it wait on its reference queue instead, for a time that adapts to the device. It then runs
+   * the GC again while that enqueues more of the checked references, at most 3 times.
+   */
+  GcTrigger DEFAULT = new ReferenceQueueAware() {
+    private static final int MAX_GC_COUNT = 3;
+
     @Override public void runGc() {
       // Code taken from AOSP FinalizationTest:
       // https://android.googlesource.com/platform/libcore/+/master/support/src/test/java/libcore/
@@ -36,6 +43,18 @@ public interface GcTrigger {
       System.runFinalization();
     }
 
+    @Override public void runGc(EnqueueAwaiter enqueueAwaiter) {
+      for (int gcCount = 0; gcCount < MAX_GC_COUNT; gcCount++) {
+        long gcStartNanoTime = System.nanoTime();
+        Runtime.getRuntime().gc();
+        if (!enqueueAwaiter.awaitEnqueued(gcStartNanoTime)) {
+          // Either nothing is left, or this GC did not enqueue anything and another one won't.
+          return;
+        }
+        System.runFinalization();
+      }
+    }
+
     private void enqueueReferences() {
       // Hack. We don't have a programmatic way to wait for the reference queue daemon to move
       // references to the appropriate queues.
@@ -48,4 +67,23 @@ public interface GcTrigger {
   };
 
   void runGc();
-}
\ No newline at end of file
+
+  /** Waits for the references a {@link RefWatcher} checks to be enqueued in its reference queue. */
+  interface EnqueueAwaiter {
+    /**
+     * Waits until all the checked references are enqueued, or until the watcher stops expecting
+     * more of them after the GC that started at {@code gcStartNanoTime}. Returns true if running
+     * the GC again may enqueue more of them: some were enqueued, but not all.
+     */
+    boolean awaitEnqueued(long gcStartNanoTime);
+  }
+
+  /**
+   * A {@link GcTrigger} that waits on the reference queue of the {@link RefWatcher} rather than
+   * for a fixed time. The watcher calls {@link #runGc(EnqueueAwaiter)} instead of {@link
+   * #runGc()}.
+   */
+  interface ReferenceQueueAware extends GcTrigger {
+    void runGc(EnqueueAwaiter enqueueAwaiter);
+  }
+}
@@ -17,6 +17,9 @@ package com.squareup.leakcanary;
 
 import java.io.File;
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import static com.squareup.leakcanary.Preconditions.checkNotNull;
 
@@ -50,22 +53,138 @@ public final class HeapDump implements Serializable {
    */
   public final String referenceName;
 
+  /**
+   * Names of every {@link KeyedWeakReference} that was still retained when the heap was dumped, by
+   * key, starting with {@link #referenceKey}. References checked together share a single heap
+   * dump, so all of them can be analyzed in one pass.
+   */
+  public final Map<String, String> retainedReferenceNames;
+
   /** References that should be ignored when analyzing this heap dump. */
   public final ExcludedRefs excludedRefs;
 
   /** Time from the request to watch the reference until the GC was triggered. */
   public final long watchDurationMs;
+  /**
+   * Time spent running the GC and waiting for the watched references to be enqueued, which
+   * depends on how fast the device enqueues references.
+   */
   public final long gcDurationMs;
   public final long heapDumpDurationMs;
 
+  public static Builder builder() {
+    return new Builder();
+  }
+
   public HeapDump(File heapDumpFile, String referenceKey, String referenceName,
       ExcludedRefs excludedRefs, long watchDurationMs, long gcDurationMs, long heapDumpDurationMs) {
-    this.heapDumpFile = checkNotNull(heapDumpFile, "heapDumpFile");
-    this.referenceKey = checkNotNull(referenceKey, "referenceKey");
-    this.referenceName = checkNotNull(referenceName, "referenceName");
-    this.excludedRefs = checkNotNull(excludedRefs, "excludedRefs");
-    this.watchDurationMs = watchDurationMs;
-    this.gcDurationMs = gcDurationMs;
-    this.heapDumpDurationMs = heapDumpDurationMs;
+    this(builder().heapDumpFile(heapDumpFile)
+        .referenceKey(referenceKey)
+        .referenceName(referenceName)
+        .excludedRefs(excludedRefs)
+        .watchDurationMs(watchDurationMs)
+        .gcDurationMs(gcDurationMs)
+        .heapDumpDurationMs(heapDumpDurationMs));
+  }
+
+  private HeapDump(Builder builder) {
+    this.heapDumpFile = checkNotNull(builder.heapDumpFile, "heapDumpFile");
+    this.referenceKey = checkNotNull(builder.referenceKey, "referenceKey");
+    this.referenceName = checkNotNull(builder.referenceName, "referenceName");
+    this.excludedRefs = checkNotNull(builder.excludedRefs, "excludedRefs");
+    this.watchDurationMs = builder.watchDurationMs;
+    this.gcDurationMs = builder.gcDurationMs;
+    this.heapDumpDurationMs = builder.heapDumpDurationMs;
+    Map<String, String> names = new LinkedHashMap<>();
+    names.put(referenceKey, referenceName);
+    for (Map.Entry<String, String> entry : checkNotNull(builder.retainedReferenceNames,
+        "retainedReferenceNames").entrySet()) {
+      if (!names.containsKey(entry.getKey())) {
+        names.put(entry.getKey(), entry.getValue());
+      }
+    }
+    this.retainedReferenceNames = Collections.unmodifiableMap(names);
+  }
+
+  /** A builder initialized with the values of this heap dump. */
+  public Builder buildUpon() {
+    return new Builder(this);
+  }
+
+  public static final class Builder {
+    File heapDumpFile;
+    String referenceKey;
+    String referenceName = "";
+    ExcludedRefs excludedRefs;
+    long watchDurationMs;
+    long gcDurationMs;
+    long heapDumpDurationMs;
+    Map<String, String> retainedReferenceNames = Collections.emptyMap();
+
+    Builder() {
+    }
+
+    Builder(HeapDump heapDump) {
+      heapDumpFile = heapDump.heapDumpFile;
+      referenceKey = heapDump.referenceKey;
+      referenceName = heapDump.referenceName;
+      excludedRefs = heapDump.excludedRefs;
+      watchDurationMs = heapDump.watchDurationMs;
+      gcDurationMs = heapDump.gcDurationMs;
+      heapDumpDurationMs = heapDump.heapDumpDurationMs;
+      retainedReferenceNames = heapDump.retainedReferenceNames;
+    }
+
+    /** @see HeapDump#heapDumpFile */
+    public Builder heapDumpFile(File heapDumpFile) {
+      this.heapDumpFile = heapDumpFile;
+      return this;
+    }
+
+    /** @see HeapDump#referenceKey */
+    public Builder referenceKey(String referenceKey) {
+      this.referenceKey = referenceKey;
+      return this;
+    }
+
+    /** @see HeapDump#referenceName */
+    public Builder referenceName(String referenceName) {
+      this.referenceName = referenceName;
+      return this;
+    }
+
+    /** @see HeapDump#excludedRefs */
+    public Builder excludedRefs(ExcludedRefs excludedRefs) {
+      this.excludedRefs = excludedRefs;
+      return this;
+    }
+
+    /** @see HeapDump#watchDurationMs */
+    public Builder watchDurationMs(long watchDurationMs) {
+      this.watchDurationMs = watchDurationMs;
+      return this;
+    }
+
+    /** @see HeapDump#gcDurationMs */
+    public Builder gcDurationMs(long gcDurationMs) {
+      this.gcDurationMs = gcDurationMs;
+      return this;
+    }
+
+    /** @see HeapDump#heapDumpDurationMs */
+    public Builder heapDumpDurationMs(long heapDumpDurationMs) {
+      this.heapDumpDurationMs = heapDumpDurationMs;
+      return this;
+    }
+
+    /** @see HeapDump#retainedReferenceNames */
+    public Builder retainedReferenceNames(Map<String, String> retainedReferenceNames) {
+      this.retainedReferenceNames = retainedReferenceNames;
+      return this;
+    }
+
+    public HeapDump build() {
+      return new HeapDump(this);
+    }
   }
 }
@@ -24,11 +24,14 @@ import static com.squareup.leakcanary.Preconditions.checkNotNull;
 final class KeyedWeakReference extends WeakReference<Object> {
   public final String key;
   public final String name;
+  /** {@link System#nanoTime()} when the referent started being watched. */
+  final long watchStartNanoTime;
 
   KeyedWeakReference(Object referent, String key, String name,
-      ReferenceQueue<Object> referenceQueue) {
+      ReferenceQueue<Object> referenceQueue, long watchStartNanoTime) {
     super(checkNotNull(referent, "referent"), checkNotNull(referenceQueue, "referenceQueue"));
     this.key = checkNotNull(key, "key");
     this.name = checkNotNull(name, "name");
+    this.watchStartNanoTime = watchStartNanoTime;
   }
 }
\ No newline at end of file
@@ -17,14 +17,26 @@ package com.squareup.leakcanary;
 
 import java.io.File;
 import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
 import java.util.Set;
-import java.util.UUID;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.squareup.leakcanary.HeapDumper.RETRY_LATER;
 import static com.squareup.leakcanary.Preconditions.checkNotNull;
 import static com.squareup.leakcanary.Retryable.Result.DONE;
 import static com.squareup.leakcanary.Retryable.Result.RETRY;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 /**
@@ -37,6 +49,19 @@ public final class RefWatcher {
 
   public static final RefWatcher DISABLED = new RefWatcherBuilder<>().build();
 
+  /**
+   * Keys are a counter, unique within this process, prefixed with a random nonce drawn once per
+   * process so that they stay unique across processes and heap dumps.
+   */
+  private static final String KEY_NONCE =
+      Long.toString(new Random().nextLong() & Long.MAX_VALUE, Character.MAX_RADIX);
+  private static final AtomicLong KEY_COUNTER = new AtomicLong();
+
+  static final long MIN_ENQUEUE_TIMEOUT_MS = 10;
+  static final long MAX_ENQUEUE_TIMEOUT_MS = 1000;
+  /** The sleep of the original {@link GcTrigger#DEFAULT}, until a reference is seen enqueued. */
+  static final long INITIAL_ENQUEUE_TIMEOUT_MS = 100;
+
   // 执行内存泄漏检测的 executor
   private final WatchExecutor watchExecutor;
   // 调试中不会执行内存泄漏检测
@@ -47,23 +72,60 @@ public final class RefWatcher {
   private final HeapDumper heapDumper;
   // 持有那些待检测以及产生内存泄露的引用的key
   private final Set<String> retainedKeys;
+  /** Size of {@link #retainedKeys}, kept on the side since counting a concurrent set is O(n). */
+  private final AtomicInteger retainedKeyCount;
   // 用于判断弱引用所持有的对象是否已被GC,如果被回收，会存在队列中，反之，没有存在队列中则泄漏了
   private final ReferenceQueue<Object> queue;
   // 用于分析产生的heap文件
   private final HeapDump.Listener heapdumpListener;
   // 排除一些系统的bug引起的内存泄漏
   private final ExcludedRefs excludedRefs;
+  /** Watched references waiting for the next check, see {@link #scheduleCheck()}. */
+  private final Queue<KeyedWeakReference> pendingReferences;
+  /** True from the time a check is handed to the {@link #watchExecutor} until it is done. */
+  private final AtomicBoolean checkScheduled;
+  /**
+   * References taken from {@link #pendingReferences} by a check and not found retained yet. Only
+   * touched by the check, on the {@link #watchExecutor}, and kept across retries.
+   */
+  private final List<KeyedWeakReference> checkedReferences;
+  /**
+   * References found retained after a GC while below the threshold, in the order they were
+   * watched. Later checks do not run the GC for them again, they only drop the ones that got
+   * enqueued in the meantime. Only touched by the check.
+   */
+  private final List<KeyedWeakReference> retainedReferences;
+  private final RetainedThresholds retainedThresholds;
+  private volatile boolean appVisible;
+  /**
+   * How long to wait for references to be enqueued after a GC: twice the average time they took
+   * to be enqueued so far. Only touched by the check.
+   */
+  private long enqueueTimeoutMs;
+  /** See {@link #lastEnqueueDurationMs()}. Only touched by the check. */
+  private long lastEnqueueDurationMs;
 
   RefWatcher(WatchExecutor watchExecutor, DebuggerControl debuggerControl, GcTrigger gcTrigger,
-      HeapDumper heapDumper, HeapDump.Listener heapdumpListener, ExcludedRefs excludedRefs) {
+      HeapDumper heapDumper, HeapDump.Listener heapdumpListener, ExcludedRefs excludedRefs,
+      RetainedThresholds retainedThresholds) {
     this.watchExecutor = checkNotNull(watchExecutor, "watchExecutor");
     this.debuggerControl = checkNotNull(debuggerControl, "debuggerControl");
     this.gcTrigger = checkNotNull(gcTrigger, "gcTrigger");
     this.heapDumper = checkNotNull(heapDumper, "heapDumper");
     this.heapdumpListener = checkNotNull(heapdumpListener, "heapdumpListener");
     this.excludedRefs = checkNotNull(excludedRefs, "excludedRefs");
-    retainedKeys = new CopyOnWriteArraySet<>();
+    // Adding or removing a key is O(1) and does not block the threads calling watch().
+    retainedKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    retainedKeyCount = new AtomicInteger();
     queue = new ReferenceQueue<>();
+    pendingReferences = new ConcurrentLinkedQueue<>();
+    checkScheduled = new AtomicBoolean();
+    checkedReferences = new ArrayList<>();
+    retainedReferences = new ArrayList<>();
+    this.retainedThresholds = checkNotNull(retainedThresholds, "retainedThresholds");
+    appVisible = true;
+    enqueueTimeoutMs = INITIAL_ENQUEUE_TIMEOUT_MS;
+    lastEnqueueDurationMs = -1;
   }
 
   /**
@@ -91,31 +153,96 @@ public final class RefWatcher {
     //获得当前时间
     final long watchStartNanoTime = System.nanoTime();
     //生成一个唯一的key
-    String key = UUID.randomUUID().toString();
+    String key = newKey();
     //保存这个key
-    retainedKeys.add(key);
+    if (retainedKeys.add(key)) {
+      retainedKeyCount.incrementAndGet();
+    }
     //将检查内存泄漏的对象保存为一个弱引用，注意queue
-    final KeyedWeakReference reference =
-        new KeyedWeakReference(watchedReference, key, referenceName, queue);
+    KeyedWeakReference reference =
+        new KeyedWeakReference(watchedReference, key, referenceName, queue, watchStartNanoTime);
     //异步开始分析这个弱引用
-    ensureGoneAsync(watchStartNanoTime, reference);
+    pendingReferences.add(reference);
+    scheduleCheck();
+  }
+
+  /**
+   * Tells the watcher whether the app is visible, which picks between {@link
+   * RefWatcherBuilder#retainedThreshold(int)} and {@link
+   * RefWatcherBuilder#backgroundRetainedThreshold(int)}. Going to the background schedules a check
+   * of the references that were retained while the app was visible. The app is visible by
+   * default.
+   */
+  public void setAppVisible(boolean appVisible) {
+    if (this == DISABLED) {
+      return;
+    }
+    boolean wasVisible = this.appVisible;
+    this.appVisible = appVisible;
+    if (wasVisible && !appVisible) {
+      scheduleCheck();
+    }
+  }
+
+  /**
+   * Number of watched references that have not been found weakly reachable yet, including the
+   * ones that are still waiting for their check. Does not iterate over the references.
+   */
+  public int retainedReferenceCount() {
+    return retainedKeyCount.get();
+  }
+
+  /** Time it took a reference to be enqueued after the last GC that saw one, -1 before that. */
+  long lastEnqueueDurationMs() {
+    return lastEnqueueDurationMs;
+  }
+
+  /** Short and cheap: no {@link java.security.SecureRandom}, unlike a random UUID. */
+  private static String newKey() {
+    return KEY_NONCE + '-' + Long.toString(KEY_COUNTER.incrementAndGet(), Character.MAX_RADIX);
   }
 
-  private void ensureGoneAsync(final long watchStartNanoTime, final KeyedWeakReference reference) {
+  /**
+   * Hands a check to the {@link #watchExecutor} unless one is already waiting there. References
+   * watched before that check runs, or while it retries, join it: they share a single GC and at
+   * most one heap dump. References watched while a check is running wait for the next one.
+   */
+  private void scheduleCheck() {
+    if (!checkScheduled.compareAndSet(false, true)) {
+      return;
+    }
     watchExecutor.execute(new Retryable() {
       @Override public Retryable.Result run() {
-        return ensureGone(reference, watchStartNanoTime);
+        KeyedWeakReference reference;
+        while ((reference = pendingReferences.poll()) != null) {
+          checkedReferences.add(reference);
+        }
+        Retryable.Result result = ensureGone(checkedReferences);
+        if (result == DONE) {
+          checkScheduled.set(false);
+          // A reference may have been added after the last poll but before the flag was reset.
+          if (!pendingReferences.isEmpty()) {
+            scheduleCheck();
+          }
+        }
+        return result;
       }
     });
   }
 
+  /**
+   * Runs the GC if some of {@code references} are not gone yet, then moves those that are still
+   * not gone to {@link #retainedReferences}. Dumps the heap if at least the current threshold of
+   * references are retained, in which case {@link #retainedReferences} is cleared once the dump is
+   * handed to the listener. Otherwise the retained references are reported to the {@link
+   * RetainedReferenceListener}.
+   */
   @SuppressWarnings("ReferenceEquality") // Explicitly checking for named null.
-    // 避免因为gc不及时带来的误判，leakcanay会手动进行gc,进行二次确认进行保证
-  Retryable.Result ensureGone(final KeyedWeakReference reference, final long watchStartNanoTime) {
+  // 避免因为gc不及时带来的误判，leakcanay会手动进行gc,进行二次确认进行保证
+  Retryable.Result ensureGone(List<KeyedWeakReference> references) {
     //System.currentTimeMillis，那么每次的结果将会差别很小，甚至一样，因为现代的计算机运行速度很快
     //检测系统的耗时所用，所以使用System.nanoTime提供相对精确的计时
     long gcStartNanoTime = System.nanoTime();
-    long watchDurationMs = NANOSECONDS.toMillis(gcStartNanoTime - watchStartNanoTime);
     //第一次判断，移除此时已经被回收的对象
     removeWeaklyReachableReferences();
     //调试的的时候是否开启内存泄漏判断，默认是false
@@ -123,33 +250,126 @@ public final class RefWatcher {
       // The debugger can create false leaks.
       return RETRY;
     }
+    removeGone(retainedReferences);
     //如果此时该对象已经不再retainedKeys中说明第一次判断时该对象已经被回收，不存在内存泄漏
-    if (gone(reference)) {
+    if (!removeGone(references)) {
+      //如果当前检测对象还没有被回收，则手动调用gc
+      runGc(references);
+      //再次做一次判断，移除被回收的对象
+      removeWeaklyReachableReferences();
+      removeGone(references);
+      // The GC may have collected previously retained references as well.
+      removeGone(retainedReferences);
+      retainedReferences.addAll(references);
+      references.clear();
+    }
+    if (retainedReferences.isEmpty()) {
       return DONE;
     }
-    //如果当前检测对象还没有被回收，则手动调用gc
-    gcTrigger.runGc();
-    //再次做一次判断，移除被回收的对象
-    removeWeaklyReachableReferences();
-    if (!gone(reference)) {
-      //如果该对象仍然在retainedKey中，则说明内存泄漏了，进行分析
-      long startDumpHeap = System.nanoTime();
-      long gcDurationMs = NANOSECONDS.toMillis(startDumpHeap - gcStartNanoTime);
-      // dump出来heap，此时认为内存确实已经泄漏了
-      File heapDumpFile = heapDumper.dumpHeap();
-      if (heapDumpFile == RETRY_LATER) {
-        // Could not dump the heap.
-        return RETRY;
-      }
-      long heapDumpDurationMs = NANOSECONDS.toMillis(System.nanoTime() - startDumpHeap);
-      //开始分析
-      heapdumpListener.analyze(
-          new HeapDump(heapDumpFile, reference.key, reference.name, excludedRefs, watchDurationMs,
-              gcDurationMs, heapDumpDurationMs));
+    int threshold = retainedThresholds.threshold(appVisible);
+    if (retainedReferences.size() < threshold) {
+      // Dumping freezes the app, wait for more retained references to analyze them together.
+      retainedThresholds.listener.onReferencesRetained(retainedReferences.size(), threshold);
+      return DONE;
+    }
+    //如果该对象仍然在retainedKey中，则说明内存泄漏了，进行分析
+    long startDumpHeap = System.nanoTime();
+    long gcDurationMs = NANOSECONDS.toMillis(startDumpHeap - gcStartNanoTime);
+    // dump出来heap，此时认为内存确实已经泄漏了
+    File heapDumpFile = heapDumper.dumpHeap();
+    if (heapDumpFile == RETRY_LATER) {
+      // Could not dump the heap.
+      return RETRY;
+    }
+    long heapDumpDurationMs = NANOSECONDS.toMillis(System.nanoTime() - startDumpHeap);
+    // References are checked in the order they were watched.
+    KeyedWeakReference oldest = retainedReferences.get(0);
+    long watchDurationMs = NANOSECONDS.toMillis(gcStartNanoTime - oldest.watchStartNanoTime);
+    Map<String, String> retainedReferenceNames = new LinkedHashMap<>();
+    for (KeyedWeakReference reference : retainedReferences) {
+      retainedReferenceNames.put(reference.key, reference.name);
     }
+    retainedReferences.clear();
+    //开始分析
+    heapdumpListener.analyze(HeapDump.builder()
+        .heapDumpFile(heapDumpFile)
+        .referenceKey(oldest.key)
+        .referenceName(oldest.name)
+        .excludedRefs(excludedRefs)
+        .watchDurationMs(watchDurationMs)
+        .gcDurationMs(gcDurationMs)
+        .heapDumpDurationMs(heapDumpDurationMs)
+        .retainedReferenceNames(retainedReferenceNames)
+        .build());
     return DONE;
   }
 
+  /** Returns true if none of the references are left. */
+  private boolean removeGone(List<KeyedWeakReference> references) {
+    for (Iterator<KeyedWeakReference> iterator = references.iterator(); iterator.hasNext(); ) {
+      if (gone(iterator.next())) {
+        iterator.remove();
+      }
+    }
+    return references.isEmpty();
+  }
+
+  /**
+   * Lets a {@link GcTrigger.ReferenceQueueAware} trigger wait on {@link #queue} until {@code
+   * references} are enqueued, rather than for a fixed time.
+   */
+  private void runGc(final List<KeyedWeakReference> references) {
+    if (!(gcTrigger instanceof GcTrigger.ReferenceQueueAware)) {
+      gcTrigger.runGc();
+      return;
+    }
+    ((GcTrigger.ReferenceQueueAware) gcTrigger).runGc(new GcTrigger.EnqueueAwaiter() {
+      @Override public boolean awaitEnqueued(long gcStartNanoTime) {
+        return RefWatcher.this.awaitEnqueued(references, gcStartNanoTime);
+      }
+    });
+  }
+
+  /**
+   * Waits on {@link #queue} until none of {@code references} are left, or {@link
+   * #enqueueTimeoutMs} after the GC started. The timeout follows how long references take to be
+   * enqueued on this device, so it only stays long on slow devices. Returns true if some of {@code
+   * references} were enqueued, but not all.
+   */
+  private boolean awaitEnqueued(List<KeyedWeakReference> references, long gcStartNanoTime) {
+    removeGone(references);
+    int leftBeforeGc = references.size();
+    long deadlineNanoTime = gcStartNanoTime + MILLISECONDS.toNanos(enqueueTimeoutMs);
+    while (!removeGone(references)) {
+      long remainingMs = NANOSECONDS.toMillis(deadlineNanoTime - System.nanoTime());
+      if (remainingMs <= 0) {
+        break;
+      }
+      KeyedWeakReference ref;
+      try {
+        ref = (KeyedWeakReference) queue.remove(remainingMs);
+      } catch (InterruptedException e) {
+        throw new AssertionError();
+      }
+      if (ref == null) {
+        break;
+      }
+      recordEnqueueDuration(NANOSECONDS.toMillis(System.nanoTime() - gcStartNanoTime));
+      if (retainedKeys.remove(ref.key)) {
+        retainedKeyCount.decrementAndGet();
+      }
+    }
+    return !references.isEmpty() && references.size() < leftBeforeGc;
+  }
+
+  private void recordEnqueueDuration(long enqueueDurationMs) {
+    lastEnqueueDurationMs = enqueueDurationMs;
+    // Moving average of the enqueue durations, doubled.
+    long timeoutMs = (enqueueTimeoutMs + 2 * enqueueDurationMs) / 2;
+    enqueueTimeoutMs =
+        Math.max(MIN_ENQUEUE_TIMEOUT_MS, Math.min(MAX_ENQUEUE_TIMEOUT_MS, timeoutMs));
+  }
+
   private boolean gone(KeyedWeakReference reference) {
     //retainedKeys不存在该对象的key
     return !retainedKeys.contains(reference.key);
@@ -162,7 +382,9 @@ public final class RefWatcher {
     //如果此时已经在queue中，说明已经被回收
     while ((ref = (KeyedWeakReference) queue.poll()) != null) {
       //则从retainedKeys中移除
-      retainedKeys.remove(ref.key);
+      if (retainedKeys.remove(ref.key)) {
+        retainedKeyCount.decrementAndGet();
+      }
     }
   }
 }
@@ -12,6 +12,9 @@ public class RefWatcherBuilder<T extends RefWatcherBuilder<T>> {
   private HeapDumper heapDumper;
   private WatchExecutor watchExecutor;
   private GcTrigger gcTrigger;
+  private RetainedReferenceListener retainedReferenceListener;
+  private int retainedThreshold = 1;
+  private int backgroundRetainedThreshold = 1;
 
   /** @see HeapDump.Listener */
   public final T heapDumpListener(HeapDump.Listener heapDumpListener) {
@@ -49,6 +52,43 @@ public class RefWatcherBuilder<T extends RefWatcherBuilder<T>> {
     return self();
   }
 
+  /** @see RetainedReferenceListener */
+  public final T retainedReferenceListener(RetainedReferenceListener retainedReferenceListener) {
+    this.retainedReferenceListener = retainedReferenceListener;
+    return self();
+  }
+
+  /**
+   * Sets how many references must be retained after a GC before the heap is dumped, while the app
+   * is visible. Retained references wait for the next check until there are enough of them,
+   * and are then analyzed together. Default is 1, which dumps the heap for every retained
+   * reference.
+   *
+   * @throws IllegalArgumentException if retainedThreshold < 1.
+   */
+  public final T retainedThreshold(int retainedThreshold) {
+    if (retainedThreshold < 1) {
+      throw new IllegalArgumentException("retainedThreshold must be at least 1");
+    }
+    this.retainedThreshold = retainedThreshold;
+    return self();
+  }
+
+  /**
+   * Same as {@link #retainedThreshold(int)}, while the app is in the background where a heap dump
+   * does not get in the way of the user. Going to the background triggers a check. Default is 1.
+   *
+   * @throws IllegalArgumentException if backgroundRetainedThreshold < 1.
+   * @see RefWatcher#setAppVisible(boolean)
+   */
+  public final T backgroundRetainedThreshold(int backgroundRetainedThreshold) {
+    if (backgroundRetainedThreshold < 1) {
+      throw new IllegalArgumentException("backgroundRetainedThreshold must be at least 1");
+    }
+    this.backgroundRetainedThreshold = backgroundRetainedThreshold;
+    return self();
+  }
+
   /** Creates a {@link RefWatcher}. */
   public final RefWatcher build() {
     // 判断install是否在Analyzer进程里，重复执行
@@ -87,8 +127,15 @@ public class RefWatcherBuilder<T extends RefWatcherBuilder<T>> {
       gcTrigger = defaultGcTrigger();
     }
 
+    RetainedReferenceListener retainedReferenceListener = this.retainedReferenceListener;
+    if (retainedReferenceListener == null) {
+      retainedReferenceListener = defaultRetainedReferenceListener();
+    }
+    RetainedThresholds retainedThresholds = new RetainedThresholds(retainedReferenceListener,
+        retainedThreshold, backgroundRetainedThreshold);
+
     return new RefWatcher(watchExecutor, debuggerControl, gcTrigger, heapDumper, heapDumpListener,
-        excludedRefs);
+        excludedRefs, retainedThresholds);
   }
 
   protected boolean isDisabled() {
@@ -119,6 +166,10 @@ public class RefWatcherBuilder<T extends RefWatcherBuilder<T>> {
     return WatchExecutor.NONE;
   }
 
+  protected RetainedReferenceListener defaultRetainedReferenceListener() {
+    return RetainedReferenceListener.NONE;
+  }
+
   @SuppressWarnings("unchecked")
   protected final T self() {
     return (T) this;
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+/**
+ * Notified when a check finds references that are still retained after a GC, but fewer than the
+ * threshold at which the {@link RefWatcher} dumps the heap.
+ *
+ * @see RefWatcherBuilder#retainedThreshold(int)
+ */
+public interface RetainedReferenceListener {
+  RetainedReferenceListener NONE = new RetainedReferenceListener() {
+    @Override public void onReferencesRetained(int retainedCount, int threshold) {
+    }
+  };
+
+  /**
+   * Called on the thread of the {@link WatchExecutor}.
+   *
+   * @param retainedCount number of references retained and not dumped yet.
+   * @param threshold number of retained references that triggers a heap dump, which depends on
+   * whether the app is visible, see {@link RefWatcher#setAppVisible(boolean)}.
+   */
+  void onReferencesRetained(int retainedCount, int threshold);
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import static com.squareup.leakcanary.Preconditions.checkNotNull;
+
+/**
+ * How many retained references a {@link RefWatcher} waits for before dumping the heap, and who it
+ * tells in the meantime. Resolved by {@link RefWatcherBuilder#build()}.
+ */
+final class RetainedThresholds {
+
+  /** @see RefWatcherBuilder#retainedReferenceListener(RetainedReferenceListener) */
+  final RetainedReferenceListener listener;
+  /** @see RefWatcherBuilder#retainedThreshold(int) */
+  final int retainedThreshold;
+  /** @see RefWatcherBuilder#backgroundRetainedThreshold(int) */
+  final int backgroundRetainedThreshold;
+
+  RetainedThresholds(RetainedReferenceListener listener, int retainedThreshold,
+      int backgroundRetainedThreshold) {
+    this.listener = checkNotNull(listener, "retainedReferenceListener");
+    this.retainedThreshold = retainedThreshold;
+    this.backgroundRetainedThreshold = backgroundRetainedThreshold;
+  }
+
+  int threshold(boolean appVisible) {
+    return appVisible ? retainedThreshold : backgroundRetainedThreshold;
+  }
+}
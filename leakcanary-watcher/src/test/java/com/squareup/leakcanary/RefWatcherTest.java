@@ -16,11 +16,20 @@
 package com.squareup.leakcanary;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 @RunWith(JUnit4.class)
@@ -36,7 +45,12 @@ public class RefWatcherTest {
   }
 
   static class TestListener implements HeapDump.Listener {
+    final List<String> referenceKeys = new ArrayList<>();
+    final Map<String, String> retainedReferenceNames = new LinkedHashMap<>();
+
     @Override public void analyze(HeapDump heapDump) {
+      referenceKeys.add(heapDump.referenceKey);
+      retainedReferenceNames.putAll(heapDump.retainedReferenceNames);
     }
   }
 
@@ -63,6 +77,17 @@ public class RefWatcherTest {
     assertFalse(dumper.called);
   }
 
+  @Test public void unreachableObject_recordsEnqueueDuration() {
+    TestDumper dumper = new TestDumper();
+    TestExecutor executor = new TestExecutor();
+    RefWatcher refWatcher = defaultWatcher(dumper, executor);
+    assertEquals(-1, refWatcher.lastEnqueueDurationMs());
+    refWatcher.watch(new Object());
+    executor.retryable.run();
+    assertFalse(dumper.called);
+    assertTrue(refWatcher.lastEnqueueDurationMs() >= 0);
+  }
+
   @Test public void retainedObject_triggersDump() {
     TestDumper dumper = new TestDumper();
     TestExecutor executor = new TestExecutor();
@@ -73,6 +98,137 @@ public class RefWatcherTest {
     assertTrue(dumper.called);
   }
 
+  @Test public void retainedObject_countedAsRetained() {
+    TestDumper dumper = new TestDumper();
+    TestExecutor executor = new TestExecutor();
+    RefWatcher refWatcher = defaultWatcher(dumper, executor);
+    ref = new Object();
+    refWatcher.watch(ref);
+    assertEquals(1, refWatcher.retainedReferenceCount());
+    executor.retryable.run();
+    assertEquals(1, refWatcher.retainedReferenceCount());
+  }
+
+  @Test public void retainedObjects_haveDistinctKeys() {
+    TestExecutor executor = new TestExecutor();
+    TestListener listener = new TestListener();
+    RefWatcher refWatcher = new RefWatcherBuilder<>().watchExecutor(executor)
+        .heapDumper(new TestDumper())
+        .heapDumpListener(listener)
+        .build();
+    ref = new Object();
+    refWatcher.watch(ref);
+    executor.retryable.run();
+    refWatcher.watch(ref);
+    executor.retryable.run();
+    assertEquals(2, listener.referenceKeys.size());
+    assertNotEquals(listener.referenceKeys.get(0), listener.referenceKeys.get(1));
+  }
+
+  @Test public void retainedObjectsWatchedTogether_shareOneDump() {
+    TestExecutor executor = new TestExecutor();
+    TestListener listener = new TestListener();
+    RefWatcher refWatcher = new RefWatcherBuilder<>().watchExecutor(executor)
+        .heapDumper(new TestDumper())
+        .heapDumpListener(listener)
+        .build();
+    ref = new Object();
+    refWatcher.watch(ref, "first");
+    Retryable check = executor.retryable;
+    refWatcher.watch(ref, "second");
+    assertSame(check, executor.retryable);
+    check.run();
+    assertEquals(1, listener.referenceKeys.size());
+    assertEquals(Arrays.asList("first", "second"),
+        new ArrayList<>(listener.retainedReferenceNames.values()));
+    assertEquals(listener.referenceKeys.get(0),
+        listener.retainedReferenceNames.keySet().iterator().next());
+  }
+
+  @Test public void retainedObjectsBelowThreshold_noDumpUntilBackground() {
+    TestDumper dumper = new TestDumper();
+    TestExecutor executor = new TestExecutor();
+    TestListener listener = new TestListener();
+    final List<Integer> retainedCounts = new ArrayList<>();
+    RefWatcher refWatcher = new RefWatcherBuilder<>().watchExecutor(executor)
+        .heapDumper(dumper)
+        .heapDumpListener(listener)
+        .retainedThreshold(3)
+        .backgroundRetainedThreshold(2)
+        .retainedReferenceListener(new RetainedReferenceListener() {
+          @Override public void onReferencesRetained(int retainedCount, int threshold) {
+            retainedCounts.add(retainedCount);
+          }
+        })
+        .build();
+    ref = new Object();
+    refWatcher.watch(ref);
+    executor.retryable.run();
+    refWatcher.watch(ref);
+    executor.retryable.run();
+    assertFalse(dumper.called);
+    assertEquals(Arrays.asList(1, 2), retainedCounts);
+    refWatcher.setAppVisible(false);
+    executor.retryable.run();
+    assertTrue(dumper.called);
+    assertEquals(2, listener.retainedReferenceNames.size());
+  }
+
+  @Test public void retainedObjectsBelowThreshold_notGcCheckedAgain() {
+    TestDumper dumper = new TestDumper();
+    TestExecutor executor = new TestExecutor();
+    final AtomicInteger gcCount = new AtomicInteger();
+    RefWatcher refWatcher = new RefWatcherBuilder<>().watchExecutor(executor)
+        .heapDumper(dumper)
+        .heapDumpListener(new TestListener())
+        .retainedThreshold(2)
+        .gcTrigger(new GcTrigger() {
+          @Override public void runGc() {
+            gcCount.incrementAndGet();
+          }
+        })
+        .build();
+    ref = new Object();
+    refWatcher.watch(ref);
+    executor.retryable.run();
+    assertEquals(1, gcCount.get());
+    assertFalse(dumper.called);
+    refWatcher.setAppVisible(false);
+    executor.retryable.run();
+    assertEquals(1, gcCount.get());
+    assertTrue(dumper.called);
+  }
+
+  @Test public void retainedObject_gcNotRetriedWithoutProgress() {
+    TestExecutor executor = new TestExecutor();
+    final List<Boolean> retryAfterGc = new ArrayList<>();
+    RefWatcher refWatcher = new RefWatcherBuilder<>().watchExecutor(executor)
+        .heapDumper(new TestDumper())
+        .heapDumpListener(new TestListener())
+        .gcTrigger(new GcTrigger.ReferenceQueueAware() {
+          @Override public void runGc() {
+            throw new AssertionError();
+          }
+
+          @Override public void runGc(EnqueueAwaiter enqueueAwaiter) {
+            boolean retry;
+            do {
+              long gcStartNanoTime = System.nanoTime();
+              Runtime.getRuntime().gc();
+              retry = enqueueAwaiter.awaitEnqueued(gcStartNanoTime);
+              retryAfterGc.add(retry);
+            } while (retry && retryAfterGc.size() < 5);
+          }
+        })
+        .build();
+    ref = new Object();
+    refWatcher.watch(ref);
+    refWatcher.watch(new Object());
+    executor.retryable.run();
+    // The first GC enqueues the unreachable object, the second one nothing.
+    assertEquals(Arrays.asList(true, false), retryAfterGc);
+  }
+
   private RefWatcher defaultWatcher(TestDumper dumper, TestExecutor executor) {
     return new RefWatcherBuilder<>().watchExecutor(executor)
         .heapDumper(dumper)